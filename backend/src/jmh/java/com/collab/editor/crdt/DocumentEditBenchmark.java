@@ -0,0 +1,100 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// CRDTDocument.applyOperation and getText for the edit patterns clients send:
+// typing at the end, keystrokes at random positions, and pasting a block at a
+// random position. Each invocation undoes its own edit, so the visible size
+// stays fixed; deleted characters stay behind as tombstones like they do
+// between compactions. editThenText reads the text after every edit, which is
+// what a full-content broadcast costs; cachedText reads it unchanged.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentEditBenchmark {
+
+    private static final int PASTE_LENGTH = 200;
+
+    @Param({"10240", "102400", "1048576"})
+    private int documentSize;
+
+    @Param({"append", "random", "paste"})
+    private String pattern;
+
+    private CRDTDocument document;
+    private SplittableRandom random;
+    private CRDTOperation insert;
+    private CRDTOperation delete;
+    private String pasted;
+    private long timestamp;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        document = new CRDTDocument();
+        random = new SplittableRandom(42);
+        timestamp = 1_700_000_000_000L;
+
+        StringBuilder text = new StringBuilder(documentSize);
+        for (int i = 0; i < documentSize; i++) {
+            text.append(i % 64 == 63 ? '\n' : (char) ('a' + i % 26));
+        }
+        document.applyOperation(operation(CRDTOperation.OperationType.INSERT_TEXT, 0, text.toString(), 0));
+
+        StringBuilder block = new StringBuilder(PASTE_LENGTH);
+        for (int i = 0; i < PASTE_LENGTH; i++) {
+            block.append(i % 40 == 39 ? '\n' : (char) ('A' + i % 26));
+        }
+        pasted = block.toString();
+        document.getText();
+    }
+
+    @Benchmark
+    public boolean edit() {
+        return switch (pattern) {
+            case "append" -> {
+                document.applyOperation(operation(CRDTOperation.OperationType.INSERT, documentSize, "x", 0));
+                yield document.applyOperation(operation(CRDTOperation.OperationType.DELETE, documentSize, null, 0));
+            }
+            case "random" -> {
+                int position = random.nextInt(documentSize);
+                document.applyOperation(operation(CRDTOperation.OperationType.INSERT, position, "x", 0));
+                yield document.applyOperation(operation(CRDTOperation.OperationType.DELETE, position, null, 0));
+            }
+            default -> {
+                int position = random.nextInt(documentSize);
+                document.applyOperation(operation(CRDTOperation.OperationType.INSERT_TEXT, position, pasted, 0));
+                yield document.applyOperation(operation(CRDTOperation.OperationType.DELETE_RANGE, position, null, PASTE_LENGTH));
+            }
+        };
+    }
+
+    @Benchmark
+    public String editThenText() {
+        edit();
+        return document.getText();
+    }
+
+    @Benchmark
+    public String cachedText() {
+        return document.getText();
+    }
+
+    private CRDTOperation operation(CRDTOperation.OperationType type, int position, String text, int length) {
+        return CRDTOperation.builder()
+            .operationId("bench")
+            .userId("bench-user")
+            .type(type)
+            .position(position)
+            .character(text)
+            .length(length)
+            .timestamp(++timestamp)
+            .build();
+    }
+}
@@ -0,0 +1,129 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Random-position keystrokes against the previous ArrayList engine and the
+// treap-backed CRDTDocument. Each invocation inserts and then deletes one
+// character so the document size stays fixed for the whole trial.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SequenceEngineBenchmark {
+
+    @Param({"10240", "102400", "1048576"})
+    private int documentSize;
+
+    @Param({"arraylist", "tree"})
+    private String engine;
+
+    private Engine document;
+    private SplittableRandom random;
+    private CRDTOperation insert;
+    private CRDTOperation delete;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        document = "tree".equals(engine) ? new TreeEngine() : new ArrayListEngine();
+        random = new SplittableRandom(42);
+
+        CRDTOperation op = operation(CRDTOperation.OperationType.INSERT);
+        for (int i = 0; i < documentSize; i++) {
+            op.setPosition(i);
+            op.setCharacter(String.valueOf((char) ('a' + i % 26)));
+            document.apply(op);
+        }
+        insert = operation(CRDTOperation.OperationType.INSERT);
+        insert.setCharacter("x");
+        delete = operation(CRDTOperation.OperationType.DELETE);
+    }
+
+    @Benchmark
+    public int randomEdit() {
+        int position = random.nextInt(documentSize);
+        insert.setPosition(position);
+        document.apply(insert);
+        delete.setPosition(position);
+        document.apply(delete);
+        return position;
+    }
+
+    private static CRDTOperation operation(CRDTOperation.OperationType type) {
+        return CRDTOperation.builder()
+            .operationId("bench")
+            .userId("bench-user")
+            .type(type)
+            .timestamp(System.currentTimeMillis())
+            .build();
+    }
+
+    private interface Engine {
+        void apply(CRDTOperation op);
+    }
+
+    private static final class TreeEngine implements Engine {
+        private final CRDTDocument document = new CRDTDocument();
+
+        @Override
+        public void apply(CRDTOperation op) {
+            op.setId(null);
+            document.applyOperation(op);
+            if (document.getTombstoneCount() > 1024) {
+                document.compact(id -> true);
+            }
+        }
+    }
+
+    // Verbatim copy of the CRDTDocument logic before the treap was introduced
+    private static final class ArrayListEngine implements Engine {
+        private final List<PositionedChar> characters = new ArrayList<>();
+        private final Map<String, Integer> vectorClock = new HashMap<>();
+
+        @Override
+        public void apply(CRDTOperation op) {
+            vectorClock.put(op.getUserId(),
+                vectorClock.getOrDefault(op.getUserId(), 0) + 1);
+
+            if (op.getType() == CRDTOperation.OperationType.INSERT) {
+                PositionedChar newChar = new PositionedChar(
+                    op.getCharacter(), op.getUserId(), op.getTimestamp(), op.getPosition(), op.getOperationId());
+                int insertPos = Math.min(op.getPosition(), characters.size());
+                characters.add(insertPos, newChar);
+                for (int i = insertPos + 1; i < characters.size(); i++) {
+                    characters.get(i).position = i;
+                }
+            } else if (op.getPosition() >= 0 && op.getPosition() < characters.size()) {
+                characters.remove(op.getPosition());
+                for (int i = op.getPosition(); i < characters.size(); i++) {
+                    characters.get(i).position = i;
+                }
+            }
+        }
+    }
+
+    private static final class PositionedChar {
+        private final String character;
+        private final String userId;
+        private final long timestamp;
+        private int position;
+        private final String operationId;
+
+        private PositionedChar(String character, String userId, long timestamp, int position, String operationId) {
+            this.character = character;
+            this.userId = userId;
+            this.timestamp = timestamp;
+            this.position = position;
+            this.operationId = operationId;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+// Snapshot encode/decode for the version 1 format and version 2 with and
+// without Deflate. The document is typed by a few authors in bursts with some
+// deletes left as tombstones; snapshot sizes are printed once per trial.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotCodecBenchmark {
+
+    @Param({"10240", "102400"})
+    private int documentSize;
+
+    @Param({"v1", "v2", "v2-deflate"})
+    private String format;
+
+    private CRDTDocument document;
+    private byte[] snapshot;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        document = new CRDTDocument();
+        SplittableRandom random = new SplittableRandom(42);
+        long timestamp = 1_700_000_000_000L;
+        int cursor = 0;
+        while (document.getCharacters().size() < documentSize) {
+            // A burst of typing at one place by one author
+            String author = "user-" + random.nextInt(4);
+            int visible = document.getCharacters().visibleSize();
+            cursor = random.nextInt(8) == 0 ? random.nextInt(visible + 1) : Math.min(cursor, visible);
+            int burst = 1 + random.nextInt(60);
+            for (int i = 0; i < burst; i++) {
+                timestamp += 80 + random.nextInt(200);
+                CRDTOperation op = random.nextInt(10) == 0 && cursor > 0
+                    ? CRDTOperation.builder().type(CRDTOperation.OperationType.DELETE).position(--cursor).build()
+                    : CRDTOperation.builder().type(CRDTOperation.OperationType.INSERT).position(cursor++)
+                        .character(String.valueOf((char) (random.nextInt(8) == 0 ? '\n' : 'a' + random.nextInt(26))))
+                        .build();
+                op.setUserId(author);
+                op.setTimestamp(timestamp);
+                document.applyOperation(op);
+            }
+        }
+        snapshot = encode();
+        System.out.printf("%n%s snapshot of %d chars: %d bytes (%.2f bytes/char)%n",
+            format, document.getCharacters().size(), snapshot.length, (double) snapshot.length / document.getCharacters().size());
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return switch (format) {
+            case "v1" -> CRDTSnapshotCodec.encodeVersion1(document);
+            case "v2" -> CRDTSnapshotCodec.encode(document, false);
+            default -> CRDTSnapshotCodec.encode(document, true);
+        };
+    }
+
+    @Benchmark
+    public CRDTDocument decode() {
+        return CRDTSnapshotCodec.decode(snapshot);
+    }
+}
@@ -0,0 +1,82 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// CRDTSynchronizer under contention: three threads append ops, as the
+// document mailboxes do, while one fetches the ops of the last 64 timestamps,
+// as catching-up clients do. With one document every thread contends for the
+// same log's lock; with 16 the writers spread over them like edits to
+// different files. Logs start full, so appends also drop old segments.
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SynchronizerBenchmark {
+
+    private static final int MAX_OPS = 10_000;
+    private static final AtomicInteger SITES = new AtomicInteger();
+
+    @Param({"1", "16"})
+    private int documents;
+
+    private CRDTSynchronizer synchronizer;
+    private String[] documentIds;
+    private final AtomicLong clock = new AtomicLong(1_700_000_000_000L);
+
+    @State(Scope.Thread)
+    public static class Site {
+        private final String siteId = "site-" + SITES.incrementAndGet();
+        private final SplittableRandom random = new SplittableRandom(siteId.hashCode());
+        private long counter;
+
+        private CRDTOperation next(long timestamp) {
+            counter++;
+            return CRDTOperation.builder()
+                .operationId(siteId + ":" + counter)
+                .id(new CRDTId(siteId, counter))
+                .userId(siteId)
+                .type(CRDTOperation.OperationType.INSERT)
+                .character("x")
+                .timestamp(timestamp)
+                .build();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        synchronizer = new CRDTSynchronizer(MAX_OPS);
+        documentIds = new String[documents];
+        Site site = new Site();
+        for (int d = 0; d < documents; d++) {
+            documentIds[d] = "room-1:file-" + d;
+            synchronizer.initHistory(documentIds[d], Map.of());
+            for (int i = 0; i < MAX_OPS; i++) {
+                synchronizer.addOperation(documentIds[d], site.next(clock.incrementAndGet()));
+            }
+        }
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public long addOperation(Site site) {
+        return synchronizer.addOperation(documentIds[site.random.nextInt(documents)], site.next(clock.incrementAndGet()));
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public List<CRDTOperation> getOperations(Site site) {
+        return synchronizer.getOperations(documentIds[site.random.nextInt(documents)], clock.get() - 64);
+    }
+}
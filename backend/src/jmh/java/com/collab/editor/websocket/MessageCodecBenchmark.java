@@ -0,0 +1,132 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.crdt.CRDTId;
+import com.collab.editor.model.ExecutionResult;
+import com.collab.editor.websocket.MessageHandler.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// MessageHandler.parseMessage and parseClientMessage for every message type
+// clients send and serializeMessage for every type the server sends, with
+// payloads shaped like the real ones: single-character ops, a 64-op batch from
+// a typing burst, a 4 KB full-content update and a sync delta of 256 ops.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageCodecBenchmark {
+
+    private final MessageHandler messageHandler = new MessageHandler(new SimpleMeterRegistry());
+
+    @State(Scope.Thread)
+    public static class Incoming {
+
+        @Param({"CODE_CHANGE", "CODE_CHANGE_CONTENT", "CURSOR_MOVE", "SYNC_REQUEST", "SYNC_ACK", "FILE_CREATE", "FILE_SAVE"})
+        private String type;
+
+        private String payload;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            payload = switch (type) {
+                case "CODE_CHANGE" -> """
+                    {"type":"CODE_CHANGE","roomId":"room-1","fileId":"main","operation":{"operationId":"alice:1024",\
+                    "userId":"alice","type":"INSERT","position":1337,"character":"x","timestamp":1700000000000}}""";
+                case "CODE_CHANGE_CONTENT" -> "{\"type\":\"CODE_CHANGE\",\"roomId\":\"room-1\",\"fileId\":\"main\",\"content\":\""
+                    + source(4096).replace("\n", "\\n") + "\"}";
+                case "CURSOR_MOVE" -> """
+                    {"type":"CURSOR_MOVE","roomId":"room-1","fileId":"main","line":42,"column":17}""";
+                case "SYNC_REQUEST", "SYNC_ACK" -> "{\"type\":\"" + type + "\",\"roomId\":\"room-1\",\"fileId\":\"main\","
+                    + "\"vectorClock\":{\"alice\":1024,\"bob\":512,\"carol\":77}}";
+                case "FILE_CREATE" -> """
+                    {"type":"FILE_CREATE","roomId":"room-1","fileId":"utils","content":""}""";
+                default -> "{\"type\":\"FILE_SAVE\",\"roomId\":\"room-1\",\"fileId\":\"main\",\"content\":\""
+                    + source(4096).replace("\n", "\\n") + "\"}";
+            };
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Outgoing {
+
+        @Param({"OPERATION", "OPS_BATCH", "CODE_UPDATE", "CURSOR_MOVE", "SYNC_DELTA", "USER_JOINED", "EXEC_OUTPUT", "EXEC_RESULT"})
+        private String type;
+
+        private Object message;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            message = switch (type) {
+                case "OPERATION" -> new OperationMessage("room-1", "main", "alice", operation(1024));
+                case "OPS_BATCH" -> new OperationBatchMessage("room-1", "main", operations(64));
+                case "CODE_UPDATE" -> new CodeUpdateMessage("room-1", "main", "alice", source(4096));
+                case "CURSOR_MOVE" -> {
+                    CodeChangeMessage cursor = new CodeChangeMessage();
+                    cursor.setType("CURSOR_MOVE");
+                    cursor.setRoomId("room-1");
+                    cursor.setFileId("main");
+                    cursor.setUserId("alice");
+                    cursor.setLine(42);
+                    cursor.setColumn(17);
+                    yield cursor;
+                }
+                case "SYNC_DELTA" -> new SyncDeltaMessage("room-1", "main", operations(256),
+                    Map.of("alice", 1280L, "bob", 512L));
+                case "USER_JOINED" -> new UserJoinedMessage("alice");
+                case "EXEC_OUTPUT" -> new ExecutionOutputMessage("job-1", "alice", source(512));
+                default -> new ExecutionDoneMessage("job-1", "alice", ExecutionResult.success(source(512)));
+            };
+        }
+    }
+
+    @Benchmark
+    public CodeChangeMessage parse(Incoming incoming) {
+        return messageHandler.parseMessage(incoming.payload, CodeChangeMessage.class);
+    }
+
+    @Benchmark
+    public ClientMessage parseClientMessage(Incoming incoming) {
+        return messageHandler.parseClientMessage(incoming.payload);
+    }
+
+    @Benchmark
+    public String serialize(Outgoing outgoing) {
+        return messageHandler.serializeMessage(outgoing.message);
+    }
+
+    private static CRDTOperationDTO operation(long counter) {
+        CRDTOperationDTO dto = new CRDTOperationDTO();
+        dto.setOperationId("alice:" + counter);
+        dto.setId(new CRDTId("alice", counter));
+        dto.setOriginId(new CRDTId("alice", counter - 1));
+        dto.setUserId("alice");
+        dto.setType("INSERT");
+        dto.setPosition((int) counter);
+        dto.setCharacter("x");
+        dto.setTimestamp(1_700_000_000_000L + counter);
+        return dto;
+    }
+
+    private static List<CRDTOperationDTO> operations(int count) {
+        List<CRDTOperationDTO> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            operations.add(operation(1024 + i));
+        }
+        return operations;
+    }
+
+    private static String source(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("    result = compute(value, ").append(text.length()).append(")\n");
+        }
+        return text.substring(0, length);
+    }
+}
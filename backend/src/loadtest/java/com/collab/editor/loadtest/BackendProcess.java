@@ -0,0 +1,99 @@
+package com.collab.editor.loadtest;
+
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+// The backend under test in its own JVM, started from the harness classpath,
+// so the CPU and heap read from its actuator are the server's alone.
+final class BackendProcess implements AutoCloseable {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Process process;
+    private final URI baseUri;
+    private final Path log;
+    private final HttpClient http = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+
+    private BackendProcess(Process process, URI baseUri, Path log) {
+        this.process = process;
+        this.baseUri = baseUri;
+        this.log = log;
+    }
+
+    static BackendProcess start(int port, Path log) throws IOException {
+        String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                "com.collab.editor.BackendApplication", "--server.port=" + port)
+            .redirectErrorStream(true)
+            .redirectOutput(log.toFile())
+            .start();
+        return new BackendProcess(process, URI.create("http://localhost:" + port), log);
+    }
+
+    URI getBaseUri() {
+        return baseUri;
+    }
+
+    // Health is only UP once MongoDB answers too
+    void awaitHealthy(Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (System.nanoTime() < deadline) {
+            if (!process.isAlive()) {
+                throw new IllegalStateException("Backend exited with " + process.exitValue() + ", see " + log);
+            }
+            try {
+                HttpResponse<Void> response = http.send(HttpRequest.newBuilder(baseUri.resolve("/actuator/health")).build(),
+                    HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    return;
+                }
+            } catch (IOException ignored) {
+                // Not listening yet
+            }
+            Thread.sleep(500);
+        }
+        throw new IllegalStateException("Backend not healthy after " + timeout.toSeconds()
+            + "s, is MongoDB running on localhost:27017? See " + log);
+    }
+
+    // Value of an actuator metric summed over the tag filter, or NaN if it could not be read
+    double metric(String name, String tag) {
+        String path = "/actuator/metrics/" + name + (tag != null ? "?tag=" + tag : "");
+        try {
+            HttpResponse<String> response = http.send(HttpRequest.newBuilder(baseUri.resolve(path)).build(),
+                HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                return Double.NaN;
+            }
+            for (JsonNode measurement : MAPPER.readTree(response.body()).path("measurements")) {
+                if ("VALUE".equals(measurement.path("statistic").asString())) {
+                    return measurement.path("value").asDouble();
+                }
+            }
+            return Double.NaN;
+        } catch (IOException e) {
+            return Double.NaN;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Double.NaN;
+        }
+    }
+
+    // SIGTERM first, so the backend flushes its documents like on a normal shutdown
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(30, TimeUnit.SECONDS)) {
+            process.destroyForcibly();
+        }
+    }
+}
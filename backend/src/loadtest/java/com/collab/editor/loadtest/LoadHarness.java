@@ -0,0 +1,268 @@
+package com.collab.editor.loadtest;
+
+import com.collab.editor.model.CodeFile;
+import com.collab.editor.model.OperationLogEntry;
+import com.collab.editor.model.Room;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.SerializationFeature;
+import tools.jackson.databind.json.JsonMapper;
+
+import java.io.File;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Load test for sizing nodes and catching performance regressions. Forks the
+// backend against the MongoDB on localhost:27017, seeds rooms with one file
+// each, and runs users simulated editors per room over /ws/code (see
+// SimulatedUser); the first user of each room also runs code through
+// /api/execute. After the warmup it measures keystroke-to-remote-echo latency,
+// frames per second both ways, and the server's CPU and heap from its actuator.
+// The report is written as JSON; given the report of an earlier run with the
+// same settings as baseline, a regression beyond the tolerance fails the run.
+//
+// Options: --rooms --users --duration --warmup (seconds) --keystroke-ms
+// --execute-every (seconds, 0 = never) --port --mongo-uri --report --baseline --tolerance
+public class LoadHarness {
+
+    private static final String DATABASE = "collaborative_editor";
+    private static final String FILE_ID = "main";
+
+    private final Map<String, String> options;
+    private final LoadStats stats = new LoadStats();
+
+    private LoadHarness(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        System.exit(new LoadHarness(options).run());
+    }
+
+    private int run() throws Exception {
+        LoadReport.Config config = new LoadReport.Config(intOption("rooms", 10), intOption("users", 5),
+            intOption("duration", 60), intOption("keystroke-ms", 200), intOption("execute-every", 30));
+        int warmup = intOption("warmup", 10);
+        Path reportPath = Path.of(options.getOrDefault("report", "target/loadtest/report.json"));
+        Files.createDirectories(reportPath.toAbsolutePath().getParent());
+
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        List<String> roomIds = new ArrayList<>();
+        for (int r = 0; r < config.rooms(); r++) {
+            roomIds.add("loadtest-" + runId + "-" + r);
+        }
+
+        try (MongoClient mongoClient = MongoClients.create(options.getOrDefault("mongo-uri", "mongodb://localhost:27017"))) {
+            MongoTemplate mongo = new MongoTemplate(mongoClient, DATABASE);
+            seed(mongo, roomIds);
+            try {
+                LoadReport report;
+                try (BackendProcess server = BackendProcess.start(intOption("port", 18080),
+                        reportPath.resolveSibling("server.log"))) {
+                    server.awaitHealthy(Duration.ofSeconds(90));
+                    report = drive(server, config, roomIds, warmup);
+                }
+                return finish(report, reportPath);
+            } finally {
+                cleanUp(mongo, roomIds);
+            }
+        }
+    }
+
+    private LoadReport drive(BackendProcess server, LoadReport.Config config, List<String> roomIds, int warmup)
+            throws InterruptedException {
+        String startedAt = Instant.now().toString();
+        URI baseUri = server.getBaseUri();
+        ExecutorService threads = Executors.newVirtualThreadPerTaskExecutor();
+        HttpClient http = HttpClient.newHttpClient();
+
+        List<SimulatedUser> users = new ArrayList<>();
+        for (String roomId : roomIds) {
+            for (int u = 0; u < config.users(); u++) {
+                SimulatedUser user = new SimulatedUser(roomId, FILE_ID, roomId + "-u" + u, config.keystrokeMillis(),
+                    stats, users.size());
+                user.connect(http, baseUri);
+                users.add(user);
+            }
+        }
+        System.out.printf("Connected %d users in %d rooms%n", users.size(), roomIds.size());
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmup + config.durationSeconds());
+        for (int i = 0; i < users.size(); i++) {
+            SimulatedUser user = users.get(i);
+            threads.execute(() -> user.type(deadline));
+            if (config.executeEverySeconds() > 0 && i % config.users() == 0) {
+                threads.execute(() -> user.execute(http, baseUri, config.executeEverySeconds() * 1000L, deadline));
+            }
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmup));
+        ServerSampler sampler = new ServerSampler(server);
+        ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor();
+        stats.setMeasuring(true);
+        long measureStart = System.nanoTime();
+        sampling.scheduleAtFixedRate(sampler::sample, 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(config.durationSeconds()));
+        stats.setMeasuring(false);
+        double seconds = (System.nanoTime() - measureStart) / 1e9;
+        sampling.shutdownNow();
+
+        threads.shutdown();
+        threads.awaitTermination(30, TimeUnit.SECONDS);
+        users.forEach(SimulatedUser::close);
+
+        long expectedEchoes = stats.getKeystrokes() * (config.users() - 1);
+        return new LoadReport(startedAt, config,
+            LoadReport.Latency.of(stats.getEchoLatency()),
+            LoadReport.Latency.of(stats.getExecutionLatency()),
+            stats.getKeystrokes(),
+            expectedEchoes > 0 ? (double) stats.getEchoes() / expectedEchoes : 1,
+            stats.getFramesSent() / seconds,
+            stats.getFramesReceived() / seconds,
+            sampler.getReceivedPerSecondPeak(),
+            stats.getExecutionsRejected(),
+            stats.getExecutionsFailed(),
+            sampler.getCpuAverage(),
+            sampler.getCpuMax(),
+            sampler.getHeapMaxBytes());
+    }
+
+    private int finish(LoadReport report, Path reportPath) throws Exception {
+        ObjectMapper mapper = JsonMapper.builder().enable(SerializationFeature.INDENT_OUTPUT).build();
+        mapper.writeValue(reportPath.toFile(), report);
+        print(report);
+        System.out.println("Report written to " + reportPath);
+
+        String baselinePath = options.getOrDefault("baseline", "");
+        if (baselinePath.isEmpty()) {
+            return 0;
+        }
+        LoadReport baseline = mapper.readValue(new File(baselinePath), LoadReport.class);
+        if (!baseline.config().equals(report.config())) {
+            System.out.println("Baseline ran with " + baseline.config() + ", not compared");
+            return 0;
+        }
+        List<String> regressions = report.regressionsAgainst(baseline,
+            Double.parseDouble(options.getOrDefault("tolerance", "0.10")));
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions against " + baselinePath);
+            return 0;
+        }
+        System.out.println("Regressions against " + baselinePath + ":");
+        regressions.forEach(regression -> System.out.println("  " + regression));
+        return 1;
+    }
+
+    private static void print(LoadReport report) {
+        LoadReport.Latency echo = report.keystrokeEcho();
+        LoadReport.Latency execution = report.execution();
+        System.out.printf("%nKeystroke echo:   p50 %.2f ms, p99 %.2f ms, p999 %.2f ms, max %.2f ms (%d echoes)%n",
+            echo.p50Millis(), echo.p99Millis(), echo.p999Millis(), echo.maxMillis(), echo.count());
+        System.out.printf("Echo delivery:    %.2f%% of %d keystrokes x other users%n",
+            report.echoDelivery() * 100, report.keystrokes());
+        System.out.printf("Frames:           %.0f/s sent, %.0f/s received (peak %.0f/s)%n",
+            report.sentPerSecond(), report.receivedPerSecond(), report.receivedPerSecondPeak());
+        System.out.printf("Execution:        p50 %.0f ms, p99 %.0f ms (%d ok, %d rejected, %d failed)%n",
+            execution.p50Millis(), execution.p99Millis(), execution.count(),
+            report.executionsRejected(), report.executionsFailed());
+        System.out.printf("Server:           CPU %.1f%% average, %.1f%% max; heap max %d MB%n",
+            report.cpuAverage() * 100, report.cpuMax() * 100, report.heapMaxBytes() / (1024 * 1024));
+    }
+
+    private static void seed(MongoTemplate mongo, List<String> roomIds) {
+        LocalDateTime now = LocalDateTime.now();
+        for (String roomId : roomIds) {
+            Room room = new Room(roomId);
+            room.setName("Load test");
+            room.setActiveUsers(new HashMap<>());
+            room.setCreatedAt(now);
+            room.setLastModified(now);
+            mongo.insert(room);
+            mongo.insert(new CodeFile(null, roomId, FILE_ID, "main.py", "python", "", null, 0, now));
+        }
+    }
+
+    private static void cleanUp(MongoTemplate mongo, List<String> roomIds) {
+        mongo.remove(Query.query(Criteria.where("roomId").in(roomIds)), OperationLogEntry.class);
+        mongo.remove(Query.query(Criteria.where("roomId").in(roomIds)), CodeFile.class);
+        mongo.remove(Query.query(Criteria.where("_id").in(roomIds)), Room.class);
+    }
+
+    private int intOption(String name, int defaultValue) {
+        String value = options.get(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    // Polls the server's CPU and heap and the harness's receive rate once per second
+    private final class ServerSampler {
+        private final BackendProcess server;
+        private double cpuTotal;
+        private double cpuMax;
+        private int cpuSamples;
+        private long heapMaxBytes;
+        private long lastReceived;
+        private double receivedPerSecondPeak;
+
+        private ServerSampler(BackendProcess server) {
+            this.server = server;
+        }
+
+        private synchronized void sample() {
+            double cpu = server.metric("process.cpu.usage", null);
+            if (!Double.isNaN(cpu)) {
+                cpuTotal += cpu;
+                cpuMax = Math.max(cpuMax, cpu);
+                cpuSamples++;
+            }
+            double heap = server.metric("jvm.memory.used", "area:heap");
+            if (!Double.isNaN(heap)) {
+                heapMaxBytes = Math.max(heapMaxBytes, (long) heap);
+            }
+            long received = stats.getFramesReceived();
+            receivedPerSecondPeak = Math.max(receivedPerSecondPeak, received - lastReceived);
+            lastReceived = received;
+        }
+
+        private synchronized double getCpuAverage() {
+            return cpuSamples > 0 ? cpuTotal / cpuSamples : 0;
+        }
+
+        private synchronized double getCpuMax() {
+            return cpuMax;
+        }
+
+        private synchronized long getHeapMaxBytes() {
+            return heapMaxBytes;
+        }
+
+        private synchronized double getReceivedPerSecondPeak() {
+            return receivedPerSecondPeak;
+        }
+    }
+}
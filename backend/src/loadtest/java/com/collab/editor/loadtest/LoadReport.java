@@ -0,0 +1,79 @@
+package com.collab.editor.loadtest;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Result of one run, written as JSON so the next run can be compared against it
+record LoadReport(String startedAt,
+                  Config config,
+                  Latency keystrokeEcho,
+                  Latency execution,
+                  long keystrokes,
+                  double echoDelivery,
+                  double sentPerSecond,
+                  double receivedPerSecond,
+                  double receivedPerSecondPeak,
+                  long executionsRejected,
+                  long executionsFailed,
+                  double cpuAverage,
+                  double cpuMax,
+                  long heapMaxBytes) {
+
+    // Latency differences below this are noise, whatever the tolerance
+    private static final double MIN_LATENCY_DELTA_MILLIS = 1.0;
+
+    record Config(int rooms, int users, int durationSeconds, int keystrokeMillis, int executeEverySeconds) {
+    }
+
+    record Latency(long count, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+
+        static Latency of(Histogram micros) {
+            return new Latency(micros.getTotalCount(),
+                micros.getValueAtPercentile(50) / 1000.0,
+                micros.getValueAtPercentile(99) / 1000.0,
+                micros.getValueAtPercentile(99.9) / 1000.0,
+                micros.getMaxValue() / 1000.0);
+        }
+    }
+
+    // Metrics that got worse than the baseline by more than the tolerance
+    List<String> regressionsAgainst(LoadReport baseline, double tolerance) {
+        List<String> regressions = new ArrayList<>();
+        latency(regressions, "keystroke echo", keystrokeEcho, baseline.keystrokeEcho, tolerance);
+        latency(regressions, "execution", execution, baseline.execution, tolerance);
+        lower(regressions, "echo delivery", echoDelivery, baseline.echoDelivery, tolerance);
+        lower(regressions, "received msg/s", receivedPerSecond, baseline.receivedPerSecond, tolerance);
+        higher(regressions, "server CPU average", cpuAverage, baseline.cpuAverage, tolerance);
+        higher(regressions, "server heap max", heapMaxBytes, baseline.heapMaxBytes, tolerance);
+        return regressions;
+    }
+
+    private static void latency(List<String> regressions, String name, Latency current, Latency baseline, double tolerance) {
+        if (current.count == 0 || baseline.count == 0) {
+            return;
+        }
+        latency(regressions, name + " p50", current.p50Millis, baseline.p50Millis, tolerance);
+        latency(regressions, name + " p99", current.p99Millis, baseline.p99Millis, tolerance);
+        latency(regressions, name + " p999", current.p999Millis, baseline.p999Millis, tolerance);
+    }
+
+    private static void latency(List<String> regressions, String name, double current, double baseline, double tolerance) {
+        if (current - baseline >= MIN_LATENCY_DELTA_MILLIS) {
+            higher(regressions, name, current, baseline, tolerance);
+        }
+    }
+
+    private static void higher(List<String> regressions, String name, double current, double baseline, double tolerance) {
+        if (current > baseline * (1 + tolerance)) {
+            regressions.add(String.format("%s: %.3f -> %.3f", name, baseline, current));
+        }
+    }
+
+    private static void lower(List<String> regressions, String name, double current, double baseline, double tolerance) {
+        if (current < baseline * (1 - tolerance)) {
+            regressions.add(String.format("%s: %.3f -> %.3f", name, baseline, current));
+        }
+    }
+}
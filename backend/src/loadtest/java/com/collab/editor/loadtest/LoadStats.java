@@ -0,0 +1,103 @@
+package com.collab.editor.loadtest;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms shared by all simulated users. Nothing is
+// recorded until the warmup is over and measuring is switched on.
+final class LoadStats {
+
+    // Microseconds, up to an hour, 3 significant digits
+    private final Histogram echoLatency = new ConcurrentHistogram(3_600_000_000L, 3);
+    private final Histogram executionLatency = new ConcurrentHistogram(3_600_000_000L, 3);
+
+    private final LongAdder keystrokes = new LongAdder();
+    private final LongAdder echoes = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder executionsRejected = new LongAdder();
+    private final LongAdder executionsFailed = new LongAdder();
+
+    private volatile boolean measuring;
+
+    void setMeasuring(boolean measuring) {
+        this.measuring = measuring;
+    }
+
+    void keystroke() {
+        if (measuring) {
+            keystrokes.increment();
+        }
+    }
+
+    void echo(long latencyNanos) {
+        if (measuring) {
+            echoes.increment();
+            echoLatency.recordValue(Math.max(latencyNanos / 1000, 0));
+        }
+    }
+
+    void frameSent() {
+        if (measuring) {
+            framesSent.increment();
+        }
+    }
+
+    void frameReceived() {
+        if (measuring) {
+            framesReceived.increment();
+        }
+    }
+
+    void execution(long latencyNanos) {
+        if (measuring) {
+            executionLatency.recordValue(Math.max(latencyNanos / 1000, 0));
+        }
+    }
+
+    void executionRejected() {
+        if (measuring) {
+            executionsRejected.increment();
+        }
+    }
+
+    void executionFailed() {
+        if (measuring) {
+            executionsFailed.increment();
+        }
+    }
+
+    Histogram getEchoLatency() {
+        return echoLatency;
+    }
+
+    Histogram getExecutionLatency() {
+        return executionLatency;
+    }
+
+    long getKeystrokes() {
+        return keystrokes.sum();
+    }
+
+    long getEchoes() {
+        return echoes.sum();
+    }
+
+    long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    long getExecutionsRejected() {
+        return executionsRejected.sum();
+    }
+
+    long getExecutionsFailed() {
+        return executionsFailed.sum();
+    }
+}
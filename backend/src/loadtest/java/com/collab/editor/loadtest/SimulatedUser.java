@@ -0,0 +1,197 @@
+package com.collab.editor.loadtest;
+
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.WebSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// One editor in a room, talking to /ws/code like an operation-based client.
+// It types the sample program at exponentially distributed intervals around
+// keystrokeMillis, backspacing now and then, and sends a cursor move after
+// every key. Its op ids are "userId:sendNanos", so whoever receives an op back
+// from the server knows when it was typed.
+final class SimulatedUser implements WebSocket.Listener {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final String SAMPLE = """
+        def fibonacci(n):
+            a, b = 0, 1
+            for _ in range(n):
+                a, b = b, a + b
+            return a
+
+
+        for i in range(20):
+            print(i, fibonacci(i))
+        """;
+
+    private static final String PROGRAM = "print(sum(i * i for i in range(100000)))\n";
+
+    private final String roomId;
+    private final String fileId;
+    private final String userId;
+    private final long keystrokeNanos;
+    private final LoadStats stats;
+    private final SplittableRandom random;
+
+    private final StringBuilder partial = new StringBuilder();
+    private WebSocket socket;
+
+    // Only touched by the typing thread
+    private int caret;
+    private int line;
+    private int column;
+    private int sampleIndex;
+
+    SimulatedUser(String roomId, String fileId, String userId, long keystrokeMillis, LoadStats stats, long seed) {
+        this.roomId = roomId;
+        this.fileId = fileId;
+        this.userId = userId;
+        this.keystrokeNanos = TimeUnit.MILLISECONDS.toNanos(keystrokeMillis);
+        this.stats = stats;
+        this.random = new SplittableRandom(seed);
+    }
+
+    void connect(HttpClient http, URI baseUri) {
+        URI uri = URI.create("ws://" + baseUri.getAuthority() + "/ws/code?roomId=" + encode(roomId)
+            + "&username=" + encode(userId));
+        socket = http.newWebSocketBuilder().buildAsync(uri, this).join();
+    }
+
+    // Types until the deadline; runs on the user's own thread
+    void type(long deadlineNanos) {
+        while (System.nanoTime() < deadlineNanos && !socket.isOutputClosed()) {
+            long delay = (long) (-keystrokeNanos * Math.log(1 - random.nextDouble()));
+            LockSupport.parkNanos(Math.min(delay, keystrokeNanos * 10));
+
+            Map<String, Object> operation = new LinkedHashMap<>();
+            operation.put("operationId", userId + ":" + System.nanoTime());
+            operation.put("userId", userId);
+            operation.put("timestamp", System.currentTimeMillis());
+            if (caret > 0 && random.nextInt(10) == 0) {
+                operation.put("type", "DELETE");
+                operation.put("position", --caret);
+                column = Math.max(column - 1, 0);
+            } else {
+                char c = SAMPLE.charAt(sampleIndex++ % SAMPLE.length());
+                operation.put("type", "INSERT");
+                operation.put("position", caret++);
+                operation.put("character", String.valueOf(c));
+                if (c == '\n') {
+                    line++;
+                    column = 0;
+                } else {
+                    column++;
+                }
+            }
+            send(message("CODE_CHANGE", "operation", operation));
+            stats.keystroke();
+            send(message("CURSOR_MOVE", "line", line, "column", column));
+        }
+    }
+
+    // Runs the sample program through /api/execute every interval until the deadline
+    void execute(HttpClient http, URI baseUri, long intervalMillis, long deadlineNanos) {
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(random.nextLong(intervalMillis)));
+        while (System.nanoTime() < deadlineNanos) {
+            String body = MAPPER.writeValueAsString(
+                Map.of("code", PROGRAM, "language", "python", "roomId", roomId, "userId", userId));
+            HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("/api/execute"))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+            long start = System.nanoTime();
+            try {
+                HttpResponse<Void> response = http.send(request, HttpResponse.BodyHandlers.discarding());
+                if (response.statusCode() == 200) {
+                    stats.execution(System.nanoTime() - start);
+                } else if (response.statusCode() == 429) {
+                    stats.executionRejected();
+                } else {
+                    stats.executionFailed();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                stats.executionFailed();
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+        }
+    }
+
+    void close() {
+        if (!socket.isOutputClosed()) {
+            socket.sendClose(WebSocket.NORMAL_CLOSURE, "").exceptionally(e -> null).join();
+        }
+    }
+
+    // Type first, like the browser client sends it
+    private Map<String, Object> message(String type, Object... fields) {
+        Map<String, Object> message = new LinkedHashMap<>();
+        message.put("type", type);
+        message.put("roomId", roomId);
+        message.put("fileId", fileId);
+        for (int i = 0; i < fields.length; i += 2) {
+            message.put((String) fields[i], fields[i + 1]);
+        }
+        return message;
+    }
+
+    private void send(Object message) {
+        socket.sendText(MAPPER.writeValueAsString(message), true).join();
+        stats.frameSent();
+    }
+
+    @Override
+    public CompletionStage<?> onText(WebSocket webSocket, CharSequence data, boolean last) {
+        partial.append(data);
+        if (last) {
+            long now = System.nanoTime();
+            stats.frameReceived();
+            received(MAPPER.readTree(partial.toString()), now);
+            partial.setLength(0);
+        }
+        webSocket.request(1);
+        return null;
+    }
+
+    private void received(JsonNode message, long now) {
+        switch (message.path("type").asString()) {
+            case "OPERATION" -> echoed(message.path("operation"), now);
+            case "OPS_BATCH" -> message.path("operations").forEach(operation -> echoed(operation, now));
+            default -> { }
+        }
+    }
+
+    // Ops of the other users in the room; our own only come back in mixed batches
+    private void echoed(JsonNode operation, long now) {
+        String operationId = operation.path("operationId").asString();
+        int separator = operationId.lastIndexOf(':');
+        if (separator < 0 || operationId.substring(0, separator).equals(userId)) {
+            return;
+        }
+        try {
+            stats.echo(now - Long.parseLong(operationId.substring(separator + 1)));
+        } catch (NumberFormatException ignored) {
+            // Not one of ours
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,21 @@
+package com.collab.editor.cluster;
+
+import java.util.function.Consumer;
+
+// Pub/sub transport between the nodes of a cluster. Messages published on a
+// topic reach every subscriber of that topic on any node, in publish order per
+// publisher; a node also receives its own messages if it is subscribed.
+public interface ClusterBus extends AutoCloseable {
+
+    interface Subscription extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    void publish(String topic, byte[] message);
+
+    Subscription subscribe(String topic, Consumer<byte[]> handler);
+
+    @Override
+    void close();
+}
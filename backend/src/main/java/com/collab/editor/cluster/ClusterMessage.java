@@ -0,0 +1,84 @@
+package com.collab.editor.cluster;
+
+import com.collab.editor.model.CRDTOperation;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.Map;
+import java.util.Set;
+
+// What nodes send each other. OPERATION carries an edit from the node the
+// client is connected to over to the room's owner, which applies it; REPLACE
+// does the same for a client that sends the whole file instead of ops; SYNC
+// carries a client's catch-up request there the same way. BROADCAST carries a
+// frame for the room's sessions on every node, already encoded in both wire
+// formats so receivers do not encode it again; DIRECT carries a frame for one
+// session, such as the answer to a SYNC. PRESENCE carries the users connected
+// to the sending node in a room whenever that set changes; a node that hears
+// from another for the first time answers with a PRESENCE_REPLY of its own set.
+// REGISTER, UNREGISTER and ACK tell a room's owner about sessions on other
+// nodes and the clocks they acknowledged, so it knows which tombstones they
+// may still reference. HEARTBEAT and LEAVE are ClusterNode's own, carrying the
+// sender's boot epoch as version.
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterMessage {
+
+    public enum Type {
+        OPERATION, REPLACE, SYNC, BROADCAST, DIRECT, PRESENCE, PRESENCE_REPLY, REGISTER, UNREGISTER, ACK, HEARTBEAT,
+        LEAVE
+    }
+
+    private Type type;
+    private String origin;
+    private String roomId;
+    private String fileId;
+    private String senderSessionId;  // Sender of the op or sync, or a direct frame's target
+    private String userId;  // User behind a REPLACE
+    private Set<String> excludedSessionIds;  // Sessions a broadcast skips
+    private CRDTOperation operation;
+    private Map<String, Long> vectorClock;
+    private String text;
+    private byte[] binary;  // Null if the frame has no binary form
+    private String delivery;
+    private String coalesceKey;
+    private Set<String> users;
+    private long version;  // Orders the PRESENCE messages of one node, or its epoch
+
+    public static ClusterMessage operation(String roomId, String fileId, String senderSessionId, CRDTOperation operation) {
+        return new ClusterMessage(Type.OPERATION, null, roomId, fileId, senderSessionId, null, null, operation, null, null, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage replace(String roomId, String fileId, String senderSessionId, String userId, String content) {
+        return new ClusterMessage(Type.REPLACE, null, roomId, fileId, senderSessionId, userId, null, null, null, content, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage sync(String roomId, String fileId, String senderSessionId, Map<String, Long> vectorClock) {
+        return new ClusterMessage(Type.SYNC, null, roomId, fileId, senderSessionId, null, null, null, vectorClock, null, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage broadcast(String roomId, Set<String> excludedSessionIds, String text, byte[] binary,
+                                           String delivery, String coalesceKey) {
+        return new ClusterMessage(Type.BROADCAST, null, roomId, null, null, null, excludedSessionIds, null, null, text, binary,
+            delivery, coalesceKey, null, 0);
+    }
+
+    public static ClusterMessage direct(String roomId, String targetSessionId, String text) {
+        return new ClusterMessage(Type.DIRECT, null, roomId, null, targetSessionId, null, null, null, null, text, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage replica(Type type, String roomId, String fileId, String sessionId,
+                                         Map<String, Long> vectorClock) {
+        return new ClusterMessage(type, null, roomId, fileId, sessionId, null, null, null, vectorClock, null, null, null, null, null, 0);
+    }
+
+    public static ClusterMessage membership(Type type, long epoch) {
+        return new ClusterMessage(type, null, null, null, null, null, null, null, null, null, null, null, null, null, epoch);
+    }
+
+    public static ClusterMessage presence(Type type, String roomId, Set<String> users, long version) {
+        return new ClusterMessage(type, null, roomId, null, null, null, null, null, null, null, null, null, null, users, version);
+    }
+}
@@ -0,0 +1,305 @@
+package com.collab.editor.cluster;
+
+import com.collab.editor.logging.LogThrottle;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+// This server's place in the cluster. Every room has one owner node, picked on
+// the consistent hash ring, which holds the room's CRDT documents and applies
+// all of its edits; other nodes forward edits to the owner and relay the
+// room's broadcasts to their own sessions. Each node subscribes to its own
+// topic for forwarded edits and to the topic of every room it has sessions in.
+// Nodes also heartbeat on a shared topic, tagged with the time they booted:
+// membership listeners hear when a node is first seen or restarted, and when
+// it stopped or has not been heard from for heartbeat-timeout. With cluster
+// mode off this node owns every room and nothing is published.
+@Slf4j
+@Component
+public class ClusterNode {
+
+    private static final int RING_POINTS_PER_NODE = 128;
+    private static final String MEMBERS_TOPIC = "members";
+
+    public interface MembershipListener {
+        void nodeJoined(String nodeId);
+
+        void nodeLeft(String nodeId);
+    }
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final boolean enabled;
+    private final String nodeId;
+    private final ClusterRing ring;
+    private final String busType;
+    private final String bindAddress;
+    private final int port;
+    private final List<String> peers;
+    private final String secret;
+    private final int maxFrameBytes;
+    private final int queueCapacity;
+    private final long heartbeatIntervalMillis;
+    private final long heartbeatTimeoutMillis;
+    private final long epoch = System.currentTimeMillis();
+
+    private final Map<String, ClusterBus.Subscription> roomSubscriptions = new ConcurrentHashMap<>();
+    private final LogThrottle receiveErrors = new LogThrottle();
+    private volatile Consumer<ClusterMessage> listener = message -> { };
+    private final List<MembershipListener> membershipListeners = new CopyOnWriteArrayList<>();
+    // Other live nodes: their boot epoch and when they were last heard from; guarded by members
+    private final Map<String, long[]> members = new HashMap<>();
+    private volatile boolean stopped;
+    private ClusterBus bus;
+    private boolean ownsBus;
+    private ClusterBus.Subscription nodeSubscription;
+    private ClusterBus.Subscription membersSubscription;
+
+    @Autowired
+    public ClusterNode(@Value("${editor.cluster.enabled:false}") boolean enabled,
+                       @Value("${editor.cluster.node-id:node-1}") String nodeId,
+                       @Value("${editor.cluster.nodes:node-1}") List<String> nodes,
+                       @Value("${editor.cluster.bus:socket}") String busType,
+                       @Value("${editor.cluster.socket.bind-address:127.0.0.1}") String bindAddress,
+                       @Value("${editor.cluster.socket.port:7400}") int port,
+                       @Value("${editor.cluster.socket.peers:}") List<String> peers,
+                       @Value("${editor.cluster.socket.secret:}") String secret,
+                       @Value("${editor.cluster.socket.max-frame-bytes:16777216}") int maxFrameBytes,
+                       @Value("${editor.cluster.socket.queue-capacity:10000}") int queueCapacity,
+                       @Value("${editor.cluster.heartbeat-interval-ms:1000}") long heartbeatIntervalMillis,
+                       @Value("${editor.cluster.heartbeat-timeout-ms:5000}") long heartbeatTimeoutMillis) {
+        this.enabled = enabled;
+        this.nodeId = nodeId;
+        this.ring = new ClusterRing(enabled ? nodes : List.of(nodeId), RING_POINTS_PER_NODE);
+        this.busType = busType;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.peers = peers;
+        this.secret = secret;
+        this.maxFrameBytes = maxFrameBytes;
+        this.queueCapacity = queueCapacity;
+        this.heartbeatIntervalMillis = heartbeatIntervalMillis;
+        this.heartbeatTimeoutMillis = heartbeatTimeoutMillis;
+    }
+
+    // A node on a bus shared with other nodes in the same JVM; it only heartbeats when heartbeat() is called
+    public ClusterNode(String nodeId, List<String> nodes, ClusterBus bus, long heartbeatTimeoutMillis) {
+        this(true, nodeId, nodes, "", "", 0, List.of(), "", 0, 0, 0, heartbeatTimeoutMillis);
+        this.bus = bus;
+    }
+
+    public ClusterNode(String nodeId, List<String> nodes, ClusterBus bus) {
+        this(nodeId, nodes, bus, 5000);
+    }
+
+    @PostConstruct
+    public void start() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        if (bus == null) {
+            bus = createBus();
+            ownsBus = true;
+        }
+        nodeSubscription = bus.subscribe(nodeTopic(nodeId), this::receive);
+        membersSubscription = bus.subscribe(MEMBERS_TOPIC, this::receive);
+        if (heartbeatIntervalMillis > 0) {
+            Thread.ofVirtual().name("cluster-heartbeat").start(() -> {
+                while (!stopped) {
+                    heartbeat();
+                    try {
+                        Thread.sleep(heartbeatIntervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+        log.info("Cluster node {} started", nodeId);
+    }
+
+    // Tells the other nodes this one is alive, and drops the nodes that have been quiet for too long
+    public void heartbeat() {
+        publish(MEMBERS_TOPIC, ClusterMessage.membership(ClusterMessage.Type.HEARTBEAT, epoch));
+        long now = System.currentTimeMillis();
+        List<String> silent = new ArrayList<>();
+        synchronized (members) {
+            members.entrySet().removeIf(member -> {
+                boolean expired = now - member.getValue()[1] > heartbeatTimeoutMillis;
+                if (expired) {
+                    silent.add(member.getKey());
+                }
+                return expired;
+            });
+        }
+        for (String node : silent) {
+            log.warn("Cluster node {} has not been heard from for {} ms", node, heartbeatTimeoutMillis);
+            membershipListeners.forEach(listener -> listener.nodeLeft(node));
+        }
+    }
+
+    private void onMembership(ClusterMessage message) {
+        String node = message.getOrigin();
+        boolean left = false;
+        boolean joined = false;
+        synchronized (members) {
+            long[] member = members.get(node);
+            if (message.getType() == ClusterMessage.Type.LEAVE) {
+                left = member != null && member[0] == message.getVersion() && members.remove(node) != null;
+            } else if (member == null || member[0] != message.getVersion()) {
+                left = member != null;
+                joined = true;
+                members.put(node, new long[]{message.getVersion(), System.currentTimeMillis()});
+            } else {
+                member[1] = System.currentTimeMillis();
+            }
+        }
+        if (left) {
+            membershipListeners.forEach(listener -> listener.nodeLeft(node));
+        }
+        if (joined) {
+            membershipListeners.forEach(listener -> listener.nodeJoined(node));
+        }
+    }
+
+    private ClusterBus createBus() throws IOException {
+        if ("loopback".equals(busType)) {
+            return new LoopbackClusterBus();
+        }
+        List<InetSocketAddress> addresses = peers.stream()
+            .filter(peer -> !peer.isBlank())
+            .map(peer -> {
+                String[] hostPort = peer.trim().split(":");
+                return new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1]));
+            })
+            .toList();
+        SocketClusterBus socketBus = new SocketClusterBus(bindAddress, port, addresses, secret, maxFrameBytes,
+            queueCapacity);
+        socketBus.start();
+        return socketBus;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public boolean isOwner(String roomId) {
+        return !enabled || nodeId.equals(ring.ownerOf(roomId));
+    }
+
+    // Called with messages from other nodes, on the bus's thread
+    public void setListener(Consumer<ClusterMessage> listener) {
+        this.listener = listener;
+    }
+
+    // Called on the bus's or the heartbeat's thread
+    public void addMembershipListener(MembershipListener listener) {
+        membershipListeners.add(listener);
+    }
+
+    // Changes every time this node starts, so other nodes can tell a restart from a node they already know
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public String ownerOf(String roomId) {
+        return enabled ? ring.ownerOf(roomId) : nodeId;
+    }
+
+    public void joinRoom(String roomId) {
+        if (enabled) {
+            roomSubscriptions.computeIfAbsent(roomId, id -> bus.subscribe(roomTopic(id), this::receive));
+        }
+    }
+
+    public void leaveRoom(String roomId) {
+        ClusterBus.Subscription subscription = roomSubscriptions.remove(roomId);
+        if (subscription != null) {
+            subscription.close();
+        }
+    }
+
+    // Sends an edit to the owner of its room
+    public void forward(ClusterMessage message) {
+        publish(nodeTopic(ring.ownerOf(message.getRoomId())), message);
+    }
+
+    // Sends a frame to the room's sessions on the other nodes
+    public void broadcast(ClusterMessage message) {
+        publish(roomTopic(message.getRoomId()), message);
+    }
+
+    private void publish(String topic, ClusterMessage message) {
+        if (!enabled) {
+            return;
+        }
+        message.setOrigin(nodeId);
+        bus.publish(topic, objectMapper.writeValueAsBytes(message));
+    }
+
+    private void receive(byte[] payload) {
+        ClusterMessage message;
+        try {
+            message = objectMapper.readValue(payload, ClusterMessage.class);
+        } catch (RuntimeException e) {
+            receiveErrors.warn(log, "Error parsing cluster message: {}", e.getMessage());
+            return;
+        }
+        if (nodeId.equals(message.getOrigin())) {
+            return;
+        }
+        if (message.getType() == ClusterMessage.Type.HEARTBEAT || message.getType() == ClusterMessage.Type.LEAVE) {
+            onMembership(message);
+            return;
+        }
+        try {
+            listener.accept(message);
+        } catch (RuntimeException e) {
+            receiveErrors.warn(log, "Error handling cluster message for room {}: {}", message.getRoomId(), e.getMessage());
+        }
+    }
+
+    private static String nodeTopic(String nodeId) {
+        return "node:" + nodeId;
+    }
+
+    private static String roomTopic(String roomId) {
+        return "room:" + roomId;
+    }
+
+    @PreDestroy
+    public void stop() {
+        stopped = true;
+        if (bus != null && nodeSubscription != null) {
+            publish(MEMBERS_TOPIC, ClusterMessage.membership(ClusterMessage.Type.LEAVE, epoch));
+        }
+        if (membersSubscription != null) {
+            membersSubscription.close();
+        }
+        roomSubscriptions.values().forEach(ClusterBus.Subscription::close);
+        roomSubscriptions.clear();
+        if (nodeSubscription != null) {
+            nodeSubscription.close();
+        }
+        if (ownsBus) {
+            bus.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.collab.editor.cluster;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Consistent hash ring mapping room ids to owner nodes. Each node is placed at
+// many points on the ring, so rooms spread evenly and adding a node only moves
+// about 1/n of the rooms, all of them onto the new node.
+public final class ClusterRing {
+
+    private final TreeMap<Long, String> points = new TreeMap<>();
+
+    public ClusterRing(List<String> nodes, int pointsPerNode) {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("Cluster needs at least one node");
+        }
+        for (String node : nodes) {
+            for (int i = 0; i < pointsPerNode; i++) {
+                points.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    public String ownerOf(String key) {
+        Map.Entry<Long, String> point = points.ceilingEntry(hash(key));
+        return (point != null ? point : points.firstEntry()).getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ByteBuffer.wrap(digest).getLong();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to hash key: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.collab.editor.cluster;
+
+import com.collab.editor.logging.LogThrottle;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+// In-memory bus: handlers run on the publishing thread. Several nodes sharing
+// one instance behave like a cluster inside a single JVM, which is what tests
+// use; a single node uses it when cluster mode is off.
+@Slf4j
+public class LoopbackClusterBus implements ClusterBus {
+
+    private final Map<String, Set<Consumer<byte[]>>> subscribers = new ConcurrentHashMap<>();
+    private final LogThrottle handlerErrors = new LogThrottle();
+
+    @Override
+    public void publish(String topic, byte[] message) {
+        Set<Consumer<byte[]>> handlers = subscribers.get(topic);
+        if (handlers == null) {
+            return;
+        }
+        for (Consumer<byte[]> handler : handlers) {
+            try {
+                handler.accept(message);
+            } catch (RuntimeException e) {
+                handlerErrors.warn(log, "Error handling cluster message on {}: {}", topic, e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public Subscription subscribe(String topic, Consumer<byte[]> handler) {
+        subscribers.computeIfAbsent(topic, k -> ConcurrentHashMap.newKeySet()).add(handler);
+        return () -> subscribers.computeIfPresent(topic, (k, handlers) -> {
+            handlers.remove(handler);
+            return handlers.isEmpty() ? null : handlers;
+        });
+    }
+
+    @Override
+    public void close() {
+        subscribers.clear();
+    }
+}
@@ -0,0 +1,477 @@
+package com.collab.editor.cluster;
+
+import com.collab.editor.logging.LogThrottle;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// Bus for running several JVMs on one machine or a LAN without a broker. Each
+// node listens on its bind address and keeps one connection to every peer.
+// Both ends of a connection first prove they know the shared secret with an
+// HMAC challenge-response. The accepting node then tells the connecting one
+// which topics it subscribes to, so a message is only written to the peers
+// subscribed to its topic: forwarded edits reach the room's owner only, and
+// broadcasts only the nodes with sessions in the room. Every connection has a
+// bounded queue drained by its own writer thread, so publishing only waits on
+// the network once a peer falls behind by a full queue. Messages are never
+// dropped from a connection that stays up: a peer whose queue stays full for
+// SEND_TIMEOUT_MS is disconnected instead, so it reconnects and starts over
+// rather than miss messages without noticing. Frames are a type
+// byte and the topic, followed for messages by the length-prefixed payload,
+// which may not exceed maxFrameBytes. A peer that is down is retried once per
+// second and gets nothing meanwhile.
+@Slf4j
+public class SocketClusterBus implements ClusterBus {
+
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final long SEND_TIMEOUT_MS = 5000;
+    private static final long SEND_POLL_MS = 100;
+    private static final int NONCE_BYTES = 32;
+    private static final byte MESSAGE = 'M';
+    private static final byte SUBSCRIBE = 'S';
+    private static final byte UNSUBSCRIBE = 'U';
+
+    private final InetSocketAddress bindAddress;
+    private final List<Peer> peers;
+    private final byte[] secret;
+    private final int maxFrameBytes;
+    private final int queueCapacity;
+    private final LoopbackClusterBus local = new LoopbackClusterBus();
+    private final SecureRandom random = new SecureRandom();
+    private final LogThrottle dropped = new LogThrottle();
+    private final LogThrottle stalled = new LogThrottle();
+    private final LogThrottle acceptErrors = new LogThrottle();
+
+    // Both guarded by inbound: topics with local subscribers, and connections from peers to tell about them
+    private final Map<String, Integer> subscribedTopics = new HashMap<>();
+    private final Set<Connection> inbound = new HashSet<>();
+
+    private ServerSocket server;
+    private volatile boolean closed;
+
+    public SocketClusterBus(String bindAddress, int port, List<InetSocketAddress> peers, String secret,
+                            int maxFrameBytes, int queueCapacity) {
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("The cluster bus needs a shared secret");
+        }
+        this.bindAddress = new InetSocketAddress(bindAddress, port);
+        this.peers = peers.stream().map(Peer::new).toList();
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.maxFrameBytes = maxFrameBytes;
+        this.queueCapacity = queueCapacity;
+    }
+
+    public void start() throws IOException {
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(bindAddress);
+        Thread.ofVirtual().name("cluster-accept").start(this::accept);
+        peers.forEach(Peer::start);
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    @Override
+    public void publish(String topic, byte[] message) {
+        local.publish(topic, message);
+        if (message.length > maxFrameBytes) {
+            dropped.warn(log, "Not sending {} bytes on {} to cluster peers, the limit is {}", message.length, topic,
+                maxFrameBytes);
+            return;
+        }
+        byte[] frame = null;
+        for (Peer peer : peers) {
+            if (peer.isSubscribed(topic)) {
+                if (frame == null) {
+                    frame = frame(MESSAGE, topic, message);
+                }
+                peer.send(frame);
+            }
+        }
+    }
+
+    @Override
+    public Subscription subscribe(String topic, Consumer<byte[]> handler) {
+        Subscription subscription = local.subscribe(topic, handler);
+        synchronized (inbound) {
+            if (subscribedTopics.merge(topic, 1, Integer::sum) == 1) {
+                announce(frame(SUBSCRIBE, topic, null));
+            }
+        }
+        AtomicBoolean open = new AtomicBoolean(true);
+        return () -> {
+            if (!open.getAndSet(false)) {
+                return;
+            }
+            subscription.close();
+            synchronized (inbound) {
+                if (subscribedTopics.computeIfPresent(topic, (k, count) -> count > 1 ? count - 1 : null) == null) {
+                    announce(frame(UNSUBSCRIBE, topic, null));
+                }
+            }
+        };
+    }
+
+    // Called holding inbound. A peer that cannot take the change would keep a wrong
+    // view of our topics, so it is disconnected and gets them all again on reconnect.
+    private void announce(byte[] frame) {
+        for (Connection connection : inbound) {
+            if (!connection.offer(frame)) {
+                connection.close();
+            }
+        }
+    }
+
+    private static byte[] frame(byte type, String topic, byte[] message) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(topic.length() + 8 + (message != null ? message.length : 0));
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(type);
+            out.writeUTF(topic);
+            if (message != null) {
+                out.writeInt(message.length);
+                out.write(message);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = server.accept();
+                Thread.ofVirtual().name("cluster-read").start(() -> serve(socket));
+            } catch (IOException e) {
+                if (!closed) {
+                    acceptErrors.warn(log, "Error accepting cluster connection: {}", e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Messages from one peer are handled in the order it sent them
+    private void serve(Socket socket) {
+        Connection connection = null;
+        try {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            BufferedOutputStream buffered = new BufferedOutputStream(socket.getOutputStream());
+            DataOutputStream out = new DataOutputStream(buffered);
+            socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            authenticatePeer(in, out);
+            socket.setSoTimeout(0);
+
+            synchronized (inbound) {
+                // Room for all current topics on top of the usual capacity
+                connection = new Connection(socket, buffered, queueCapacity + subscribedTopics.size());
+                inbound.add(connection);
+                for (String topic : subscribedTopics.keySet()) {
+                    connection.offer(frame(SUBSCRIBE, topic, null));
+                }
+            }
+            Connection writer = connection;
+            Thread.ofVirtual().name("cluster-write").start(() -> writer.drain("peer " + socket.getRemoteSocketAddress()));
+
+            while (!closed) {
+                if (in.readByte() != MESSAGE) {
+                    throw new IOException("Unexpected frame type");
+                }
+                String topic = in.readUTF();
+                local.publish(topic, readPayload(in));
+            }
+        } catch (EOFException ignored) {
+            // Peer went away, it reconnects on its own
+        } catch (IOException e) {
+            if (!closed && !socket.isClosed()) {
+                acceptErrors.warn(log, "Error reading from cluster peer {}: {}", socket.getRemoteSocketAddress(),
+                    e.getMessage());
+            }
+        } finally {
+            if (connection != null) {
+                synchronized (inbound) {
+                    inbound.remove(connection);
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    private byte[] readPayload(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > maxFrameBytes) {
+            throw new IOException("Frame of " + length + " bytes exceeds the limit of " + maxFrameBytes);
+        }
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    // Accepting side of the handshake: our challenge, the peer's challenge and proof, our proof
+    private void authenticatePeer(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] ourNonce = nonce();
+        out.write(ourNonce);
+        out.flush();
+        byte[] theirNonce = readHandshake(in);
+        byte[] proof = readHandshake(in);
+        if (!MessageDigest.isEqual(proof, mac("connect", ourNonce, theirNonce))) {
+            throw new IOException("Peer failed to authenticate");
+        }
+        out.write(mac("accept", ourNonce, theirNonce));
+        out.flush();
+    }
+
+    // Connecting side of the handshake
+    private void authenticateTo(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] theirNonce = readHandshake(in);
+        byte[] ourNonce = nonce();
+        out.write(ourNonce);
+        out.write(mac("connect", theirNonce, ourNonce));
+        out.flush();
+        byte[] proof = readHandshake(in);
+        if (!MessageDigest.isEqual(proof, mac("accept", theirNonce, ourNonce))) {
+            throw new IOException("Peer failed to authenticate");
+        }
+    }
+
+    private static byte[] readHandshake(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[NONCE_BYTES];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            throw new IOException("Connection closed during the handshake");
+        }
+        return bytes;
+    }
+
+    private byte[] nonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private byte[] mac(String role, byte[] acceptorNonce, byte[] connectorNonce) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            mac.update(role.getBytes(StandardCharsets.US_ASCII));
+            mac.update(acceptorNonce);
+            return mac.doFinal(connectorNonce);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (server != null) {
+                server.close();
+            }
+        } catch (IOException ignored) {
+            // Already closed
+        }
+        peers.forEach(Peer::close);
+        synchronized (inbound) {
+            inbound.forEach(Connection::close);
+        }
+        local.close();
+    }
+
+    // An authenticated socket and the frames waiting to be written to it
+    private final class Connection {
+        private final Socket socket;
+        // Not a DataOutputStream: its synchronized writes would pin the virtual thread's carrier while the peer stalls
+        private final OutputStream out;
+        private final BlockingQueue<byte[]> queue;
+
+        private Connection(Socket socket, OutputStream out, int capacity) {
+            this.socket = socket;
+            this.out = out;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        boolean offer(byte[] frame) {
+            return queue.offer(frame);
+        }
+
+        // Waits for room in the queue while the connection is up; false if it closed or stayed full
+        boolean offer(byte[] frame, long timeoutMillis) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (!socket.isClosed()) {
+                if (queue.offer(frame, SEND_POLL_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+                if (System.nanoTime() - deadline > 0) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        boolean isClosed() {
+            return socket.isClosed();
+        }
+
+        // Writes queued frames until the socket closes, flushing once the queue is empty
+        void drain(String name) {
+            try {
+                while (!closed && !socket.isClosed()) {
+                    byte[] frame = queue.poll(RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    out.write(frame);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                if (!closed && !socket.isClosed()) {
+                    log.warn("Error writing to cluster {}: {}", name, e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    private final class Peer {
+        private final InetSocketAddress address;
+        private final LogThrottle connectErrors = new LogThrottle();
+        // Topics the peer subscribes to, as it last told us; empty while disconnected
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private volatile Connection connection;
+
+        private Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        void start() {
+            Thread.ofVirtual().name("cluster-peer-" + address).start(this::run);
+        }
+
+        boolean isSubscribed(String topic) {
+            return topics.contains(topic);
+        }
+
+        void send(byte[] frame) {
+            Connection current = connection;
+            if (current == null || current.offer(frame)) {
+                return;
+            }
+            try {
+                if (!current.offer(frame, SEND_TIMEOUT_MS) && !current.isClosed()) {
+                    current.close();
+                    stalled.warn(log, "Disconnecting cluster peer {}, its queue stayed full for {} ms", address,
+                        SEND_TIMEOUT_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                current.close();
+            }
+        }
+
+        // Connects, then writes queued frames while a reader keeps topics up to date
+        private void run() {
+            while (!closed) {
+                try (Socket socket = new Socket()) {
+                    socket.setTcpNoDelay(true);
+                    socket.connect(address, CONNECT_TIMEOUT_MS);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    BufferedOutputStream buffered = new BufferedOutputStream(socket.getOutputStream());
+                    DataOutputStream out = new DataOutputStream(buffered);
+                    socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+                    authenticateTo(in, out);
+                    socket.setSoTimeout(0);
+
+                    Connection current = new Connection(socket, buffered, queueCapacity);
+                    connection = current;
+                    Thread.ofVirtual().name("cluster-subscriptions").start(() -> readTopics(current, in));
+                    current.drain("peer " + address);
+                } catch (IOException e) {
+                    if (!closed) {
+                        connectErrors.warn(log, "Error connecting to cluster peer {}: {}", address, e.getMessage());
+                    }
+                } finally {
+                    connection = null;
+                    topics.clear();
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void readTopics(Connection current, DataInputStream in) {
+            try {
+                while (true) {
+                    byte type = in.readByte();
+                    String topic = in.readUTF();
+                    if (connection != current) {
+                        return;
+                    }
+                    if (type == SUBSCRIBE) {
+                        topics.add(topic);
+                    } else if (type == UNSUBSCRIBE) {
+                        topics.remove(topic);
+                    } else {
+                        throw new IOException("Unexpected frame type");
+                    }
+                }
+            } catch (IOException e) {
+                // Closed from either side; the writer notices and reconnects
+            } finally {
+                current.close();
+            }
+        }
+
+        void close() {
+            Connection current = connection;
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+}
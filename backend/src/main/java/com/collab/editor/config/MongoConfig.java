@@ -1,20 +1,68 @@
 package com.collab.editor.config;
 
+import com.mongodb.MongoClientSettings;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.boot.mongodb.autoconfigure.MongoClientSettingsBuilderCustomizer;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.event.EventListener;
 import org.springframework.data.mongodb.config.AbstractMongoClientConfiguration;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.index.IndexResolver;
+import org.springframework.data.mongodb.core.index.MongoPersistentEntityIndexResolver;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.repository.config.EnableMongoRepositories;
 
+@Slf4j
 @Configuration
 @EnableMongoRepositories(basePackages = "com.collab.editor.repository")
 public class MongoConfig extends AbstractMongoClientConfiguration {
-    
+
+    private final ObjectProvider<MongoClientSettingsBuilderCustomizer> customizers;
+
+    public MongoConfig(ObjectProvider<MongoClientSettingsBuilderCustomizer> customizers) {
+        this.customizers = customizers;
+    }
+
     @Override
     protected String getDatabaseName() {
         return "collaborative_editor";
     }
-    
+
+    // Boot only customizes the client it creates itself; this one gets its customizers
+    // too, among them the listeners behind the mongodb.driver.* metrics
+    @Override
+    protected void configureClientSettings(MongoClientSettings.Builder builder) {
+        super.configureClientSettings(builder);
+        customizers.orderedStream().forEach(customizer -> customizer.customize(builder));
+    }
+
+    // Indexes are created in the background once the app is up, so startup does not block on Mongo
     @Override
     protected boolean autoIndexCreation() {
-        return true;
+        return false;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void createIndexes(ApplicationReadyEvent event) {
+        MongoTemplate mongoTemplate = event.getApplicationContext().getBean(MongoTemplate.class);
+        MongoMappingContext mappingContext = event.getApplicationContext().getBean(MongoMappingContext.class);
+        IndexResolver indexResolver = new MongoPersistentEntityIndexResolver(mappingContext);
+
+        Thread.ofVirtual().name("mongo-index-init").start(() -> {
+            try {
+                for (MongoPersistentEntity<?> entity : mappingContext.getPersistentEntities()) {
+                    if (entity.isAnnotationPresent(Document.class)) {
+                        indexResolver.resolveIndexFor(entity.getTypeInformation())
+                            .forEach(mongoTemplate.indexOps(entity.getType())::createIndex);
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("Error creating indexes: {}", e.getMessage());
+            }
+        });
     }
-}
\ No newline at end of file
+}
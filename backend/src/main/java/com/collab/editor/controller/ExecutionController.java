@@ -1,17 +1,22 @@
 package com.collab.editor.controller;
 
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.collab.editor.exception.ExecutionQueueFullException;
+import com.collab.editor.model.ExecutionJob;
 import com.collab.editor.model.ExecutionResult;
-import com.collab.editor.service.CodeExecutionService;
+import com.collab.editor.service.ExecutionSchedulerService;
 import com.collab.editor.websocket.MessageHandler.ExecutionRequest;
 
 @RestController
@@ -20,14 +25,43 @@ import com.collab.editor.websocket.MessageHandler.ExecutionRequest;
 public class ExecutionController {
     
 	@Autowired
-    private CodeExecutionService executionService;
+    private ExecutionSchedulerService executionScheduler;
     
+    // Waits for the result without holding a servlet thread while the job is queued or running
     @PostMapping("/execute")
-    public ResponseEntity<ExecutionResult> executeCode(@RequestBody ExecutionRequest request) throws IOException {
-        ExecutionResult result = executionService.executeCode(
+    public CompletableFuture<ResponseEntity<ExecutionResult>> executeCode(@RequestBody ExecutionRequest request) {
+        try {
+            ExecutionJob job = submit(request);
+            return job.getCompletion().thenApply(ResponseEntity::ok);
+        } catch (ExecutionQueueFullException e) {
+            return CompletableFuture.completedFuture(
+                ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).body(ExecutionResult.error(e.getMessage())));
+        }
+    }
+    
+    // Async variant: returns the queued job at once; poll it, or wait for EXEC_DONE on the room's WebSocket
+    @PostMapping("/executions")
+    public ResponseEntity<ExecutionJob> submitExecution(@RequestBody ExecutionRequest request) {
+        try {
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(submit(request));
+        } catch (ExecutionQueueFullException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).build();
+        }
+    }
+    
+    @GetMapping("/executions/{jobId}")
+    public ResponseEntity<ExecutionJob> getExecution(@PathVariable String jobId) {
+        return executionScheduler.getJob(jobId)
+            .map(ResponseEntity::ok)
+            .orElse(ResponseEntity.notFound().build());
+    }
+    
+    private ExecutionJob submit(ExecutionRequest request) {
+        return executionScheduler.submit(
+            request.getRoomId(),
+            request.getUserId(),
             request.getCode(), 
             request.getLanguage()
         );
-        return ResponseEntity.ok(result);
     }
-}
\ No newline at end of file
+}
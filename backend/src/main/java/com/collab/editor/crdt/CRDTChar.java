@@ -7,9 +7,13 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 class CRDTChar {
+    private CRDTId id;
     private String character;
     private String userId;
     private long timestamp;
-    private int position;
-    private String operationId;
-}
\ No newline at end of file
+    private CRDTId deletedBy;  // Set once deleted; the char stays as a tombstone until compacted
+
+    boolean isTombstone() {
+        return deletedBy != null;
+    }
+}
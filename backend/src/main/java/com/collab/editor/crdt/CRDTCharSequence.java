@@ -0,0 +1,715 @@
+package com.collab.editor.crdt;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+// Order-statistic treap holding the characters of a CRDTDocument, tombstones
+// included. Each node is a span: a run of characters one site inserted with
+// consecutive counters, stored as a slice of a shared StringBuilder plus the id
+// of its first character, so a paste or a typing burst costs a few bytes per
+// character rather than one object each. A character appended right after the
+// end of its site's span extends it in place; an edit landing inside a span
+// splits it into slices of the same buffer. Deletes split a tombstone piece off
+// the span (or grow a neighbouring one), so every span is either fully visible
+// or fully deleted. Positions are implicit from subtree sizes, so get/add/remove
+// at an index are O(log n) and nothing has to be renumbered after an edit, and
+// spans are indexed by site and first counter so that an identifier resolves to
+// a position in O(log n). Elements are materialized as CRDTChars on access.
+class CRDTCharSequence extends AbstractList<CRDTChar> {
+
+    private Node root;
+    private final Map<String, TreeMap<Long, Node>> spansBySite = new HashMap<>();
+    private int spanCount;
+
+    @Override
+    public CRDTChar get(int index) {
+        checkIndex(index, size());
+        Node node = nodeAt(index);
+        return node.charAt(index - offsetOf(node));
+    }
+
+    // Id of the character at the given absolute index, without materializing it
+    public CRDTId idAt(int index) {
+        checkIndex(index, size());
+        Node node = nodeAt(index);
+        return node.idAt(index - offsetOf(node));
+    }
+
+    // Id of the op that deleted the character at the given absolute index, or null if it is visible
+    public CRDTId deletedByAt(int index) {
+        checkIndex(index, size());
+        Node node = nodeAt(index);
+        return node.deletedBy != null ? node.deletedBy[index - offsetOf(node)] : null;
+    }
+
+    @Override
+    public CRDTChar set(int index, CRDTChar element) {
+        CRDTChar previous = remove(index);
+        add(index, element);
+        return previous;
+    }
+
+    @Override
+    public void add(int index, CRDTChar element) {
+        checkIndex(index, size() + 1);
+        if (index > 0) {
+            Node previous = nodeAt(index - 1);
+            if (offsetOf(previous) + previous.length == index && Node.isUnit(element.getCharacter())
+                    && previous.canAppend(element.getId(), element.getUserId(), element.isTombstone())) {
+                previous.append(element.getCharacter(), element.getTimestamp(), element.getDeletedBy());
+                adjust(previous, 1, element.isTombstone() ? 0 : 1);
+                modCount++;
+                return;
+            }
+        }
+        if (index < size()) {
+            Node next = nodeAt(index);
+            int offset = index - offsetOf(next);
+            if (offset > 0) {
+                split(next, offset);
+            }
+        }
+        insertNode(new Node(element), index);
+        modCount++;
+    }
+
+    // Inserts the text as one span whose characters get consecutive counters
+    // from firstId; extends the span before the index when the text continues it
+    public void insertText(int index, CRDTId firstId, String text, String userId, long timestamp) {
+        checkIndex(index, size() + 1);
+        if (text.isEmpty()) {
+            return;
+        }
+        if (index > 0) {
+            Node previous = nodeAt(index - 1);
+            if (offsetOf(previous) + previous.length == index && previous.canAppend(firstId, userId, false)) {
+                previous.append(text, timestamp, null);
+                adjust(previous, text.length(), text.length());
+                modCount++;
+                return;
+            }
+        }
+        if (index < size()) {
+            Node next = nodeAt(index);
+            int offset = index - offsetOf(next);
+            if (offset > 0) {
+                split(next, offset);
+            }
+        }
+        insertNode(new Node(firstId, text, userId, timestamp), index);
+        modCount++;
+    }
+
+    @Override
+    public CRDTChar remove(int index) {
+        checkIndex(index, size());
+        Node node = isolate(index);
+        CRDTChar removed = node.charAt(0);
+        removeNode(node);
+        modCount++;
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        spansBySite.clear();
+        spanCount = 0;
+        modCount++;
+    }
+
+    public int visibleSize() {
+        return visibleSize(root);
+    }
+
+    public int spanCount() {
+        return spanCount;
+    }
+
+    public boolean containsId(CRDTId id) {
+        return nodeOf(id) != null;
+    }
+
+    // Absolute index of the character with the given id, or -1 if unknown
+    public int indexOf(CRDTId id) {
+        Node node = nodeOf(id);
+        if (node == null) {
+            return -1;
+        }
+        return offsetOf(node) + (int) (id.getCounter() - node.firstCounter);
+    }
+
+    // Absolute index of the visibleIndex-th visible character
+    public int absoluteIndex(int visibleIndex) {
+        if (visibleIndex < 0 || visibleIndex >= visibleSize()) {
+            throw new IndexOutOfBoundsException("Visible index: " + visibleIndex + ", Size: " + visibleSize());
+        }
+        Node node = root;
+        int index = 0;
+        while (true) {
+            int leftVisible = visibleSize(node.left);
+            int self = node.visibleLength();
+            if (visibleIndex < leftVisible) {
+                node = node.left;
+            } else if (visibleIndex < leftVisible + self) {
+                return index + size(node.left) + visibleIndex - leftVisible;
+            } else {
+                visibleIndex -= leftVisible + self;
+                index += size(node.left) + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    // Marks the character at the given absolute index as a tombstone
+    public void markDeleted(int index, CRDTId deletedBy) {
+        checkIndex(index, size());
+        Node node = nodeAt(index);
+        if (node.isTombstone()) {
+            return;
+        }
+        int offset = index - offsetOf(node);
+        Node previous = offset == 0 ? predecessor(node) : null;
+        Node next = offset == node.length - 1 ? successor(node) : null;
+
+        if (previous != null && previous.isTombstone() && Node.adjacent(previous, node)) {
+            // Forward deletes grow the tombstone span on the left
+            previous.appendDeletedBy(deletedBy);
+            previous.length++;
+            adjust(previous, 1, 0);
+            if (node.length == 1) {
+                removeNode(node);
+            } else {
+                unregister(node);
+                node.start++;
+                node.firstCounter++;
+                node.length--;
+                register(node);
+                adjust(node, -1, -1);
+            }
+        } else if (next != null && next.isTombstone() && Node.adjacent(node, next)) {
+            // Backspaces grow the tombstone span on the right
+            if (node.length == 1) {
+                removeNode(node);
+            } else {
+                node.length--;
+                adjust(node, -1, -1);
+            }
+            unregister(next);
+            next.start--;
+            next.firstCounter--;
+            next.length++;
+            next.prependDeletedBy(deletedBy);
+            register(next);
+            adjust(next, 1, 0);
+        } else {
+            Node single = isolate(index);
+            single.deletedBy = new CRDTId[] {deletedBy};
+            adjust(single, 0, -1);
+        }
+        modCount++;
+    }
+
+    // Physically removes the tombstones whose deletedBy matches, returning how many were removed
+    public int removeTombstones(Predicate<CRDTId> removable) {
+        return removeTombstones(removable, 0, Integer.MAX_VALUE).removed();
+    }
+
+    // Same for at most maxSpans spans, starting with the one holding fromIndex
+    public CRDTDocument.Compaction removeTombstones(Predicate<CRDTId> removable, int fromIndex, int maxSpans) {
+        List<Node> tombstones = new ArrayList<>();
+        Node stop = fromIndex >= 0 && fromIndex < size() ? nodeAt(fromIndex) : null;
+        for (int visited = 0; stop != null && visited < maxSpans; stop = successor(stop), visited++) {
+            if (stop.isTombstone()) {
+                tombstones.add(stop);
+            }
+        }
+        int removed = 0;
+        for (Node node : tombstones) {
+            boolean[] remove = new boolean[node.length];
+            int count = 0;
+            for (int i = 0; i < node.length; i++) {
+                remove[i] = removable.test(node.deletedBy[i]);
+                count += remove[i] ? 1 : 0;
+            }
+            if (count == 0) {
+                continue;
+            }
+            int index = offsetOf(node);
+            removeNode(node);
+            for (int from = 0; from < node.length; ) {
+                int to = from;
+                while (to < node.length && remove[to] == remove[from]) {
+                    to++;
+                }
+                if (!remove[from]) {
+                    insertNode(node.slice(from, to), index);
+                    index += to - from;
+                }
+                from = to;
+            }
+            removed += count;
+        }
+        if (removed > 0) {
+            modCount++;
+        }
+        // The first span not looked at moved up by whatever was removed before it
+        return new CRDTDocument.Compaction(removed, stop != null ? offsetOf(stop) : -1);
+    }
+
+    // Appends the visible text, a span at a time
+    public void appendText(StringBuilder text) {
+        for (Node node = first(); node != null; node = successor(node)) {
+            if (!node.isTombstone()) {
+                node.appendTo(text);
+            }
+        }
+    }
+
+    @Override
+    public Iterator<CRDTChar> iterator() {
+        return new Iterator<>() {
+            private final int expectedModCount = modCount;
+            private Node node = first();
+            private int offset;
+
+            @Override
+            public boolean hasNext() {
+                return node != null;
+            }
+
+            @Override
+            public CRDTChar next() {
+                if (modCount != expectedModCount) {
+                    throw new ConcurrentModificationException();
+                }
+                if (node == null) {
+                    throw new NoSuchElementException();
+                }
+                CRDTChar c = node.charAt(offset++);
+                if (offset == node.length) {
+                    node = successor(node);
+                    offset = 0;
+                }
+                return c;
+            }
+        };
+    }
+
+    // Splits the span holding the index so that the character there is a span of its own
+    private Node isolate(int index) {
+        Node node = nodeAt(index);
+        int offset = index - offsetOf(node);
+        if (offset > 0) {
+            node = split(node, offset);
+        }
+        if (node.length > 1) {
+            split(node, 1);
+        }
+        return node;
+    }
+
+    // Cuts the span at the offset and returns the new right part
+    private Node split(Node node, int offset) {
+        Node right = node.slice(offset, node.length);
+        int index = offsetOf(node) + offset;
+        adjust(node, -right.length, -right.visibleLength());
+        node.length = offset;
+        if (node.deletedBy != null) {
+            node.deletedBy = Arrays.copyOf(node.deletedBy, offset);
+        }
+        insertNode(right, index);
+        return right;
+    }
+
+    private Node nodeOf(CRDTId id) {
+        if (id == null || id.getSiteId() == null) {
+            return null;
+        }
+        TreeMap<Long, Node> spans = spansBySite.get(id.getSiteId());
+        if (spans == null) {
+            return null;
+        }
+        Map.Entry<Long, Node> entry = spans.floorEntry(id.getCounter());
+        if (entry == null || id.getCounter() >= entry.getKey() + entry.getValue().length) {
+            return null;
+        }
+        return entry.getValue();
+    }
+
+    private void register(Node node) {
+        if (node.siteId != null) {
+            spansBySite.computeIfAbsent(node.siteId, k -> new TreeMap<>()).put(node.firstCounter, node);
+        }
+    }
+
+    private void unregister(Node node) {
+        if (node.siteId != null) {
+            TreeMap<Long, Node> spans = spansBySite.get(node.siteId);
+            spans.remove(node.firstCounter);
+            if (spans.isEmpty()) {
+                spansBySite.remove(node.siteId);
+            }
+        }
+    }
+
+    // Span containing the character at the given index
+    private Node nodeAt(int index) {
+        Node node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index < leftSize + node.length) {
+                return node;
+            } else {
+                index -= leftSize + node.length;
+                node = node.right;
+            }
+        }
+    }
+
+    // Absolute index of the span's first character
+    private int offsetOf(Node node) {
+        int index = size(node.left);
+        for (Node n = node; n.parent != null; n = n.parent) {
+            if (n.parent.right == n) {
+                index += size(n.parent.left) + n.parent.length;
+            }
+        }
+        return index;
+    }
+
+    private Node first() {
+        Node node = root;
+        while (node != null && node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    private static Node successor(Node node) {
+        if (node.right != null) {
+            Node n = node.right;
+            while (n.left != null) {
+                n = n.left;
+            }
+            return n;
+        }
+        Node n = node;
+        while (n.parent != null && n.parent.right == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    private static Node predecessor(Node node) {
+        if (node.left != null) {
+            Node n = node.left;
+            while (n.right != null) {
+                n = n.right;
+            }
+            return n;
+        }
+        Node n = node;
+        while (n.parent != null && n.parent.left == n) {
+            n = n.parent;
+        }
+        return n.parent;
+    }
+
+    // Links the span in so that its first character ends up at the given index,
+    // which must fall between two spans
+    private void insertNode(Node node, int index) {
+        if (root == null) {
+            root = node;
+        } else {
+            Node current = root;
+            while (true) {
+                current.size += node.size;
+                current.visibleSize += node.visibleSize;
+                int leftSize = size(current.left);
+                if (index <= leftSize) {
+                    if (current.left == null) {
+                        current.left = node;
+                        break;
+                    }
+                    current = current.left;
+                } else {
+                    index -= leftSize + current.length;
+                    if (current.right == null) {
+                        current.right = node;
+                        break;
+                    }
+                    current = current.right;
+                }
+            }
+            node.parent = current;
+            while (node.parent != null && node.parent.priority < node.priority) {
+                rotateUp(node);
+            }
+        }
+        register(node);
+        spanCount++;
+    }
+
+    private void removeNode(Node node) {
+        // Rotate the node down until it has at most one child, then splice it out
+        while (node.left != null && node.right != null) {
+            rotateUp(node.left.priority > node.right.priority ? node.left : node.right);
+        }
+        Node child = node.left != null ? node.left : node.right;
+        Node parent = node.parent;
+        replaceChild(parent, node, child);
+        adjust(parent, -node.length, -node.visibleLength());
+        node.left = node.right = node.parent = null;
+        node.size = node.length;
+        node.visibleSize = node.visibleLength();
+        unregister(node);
+        spanCount--;
+    }
+
+    // Adds the deltas to the counts of the node and all its ancestors
+    private static void adjust(Node node, int size, int visible) {
+        for (Node n = node; n != null; n = n.parent) {
+            n.size += size;
+            n.visibleSize += visible;
+        }
+    }
+
+    private void rotateUp(Node node) {
+        Node parent = node.parent;
+        Node grandParent = parent.parent;
+        if (parent.left == node) {
+            parent.left = node.right;
+            if (node.right != null) {
+                node.right.parent = parent;
+            }
+            node.right = parent;
+        } else {
+            parent.right = node.left;
+            if (node.left != null) {
+                node.left.parent = parent;
+            }
+            node.left = parent;
+        }
+        parent.parent = node;
+        replaceChild(grandParent, parent, node);
+        node.size = parent.size;
+        node.visibleSize = parent.visibleSize;
+        parent.recount();
+    }
+
+    private void replaceChild(Node parent, Node oldChild, Node newChild) {
+        if (parent == null) {
+            root = newChild;
+        } else if (parent.left == oldChild) {
+            parent.left = newChild;
+        } else {
+            parent.right = newChild;
+        }
+        if (newChild != null) {
+            newChild.parent = parent;
+        }
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static int visibleSize(Node node) {
+        return node == null ? 0 : node.visibleSize;
+    }
+
+    private void checkIndex(int index, int bound) {
+        if (index < 0 || index >= bound) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        }
+    }
+
+    // A run of characters from one site and user with consecutive counters. The
+    // text is buffer[start, start + length); only the span ending at the end of
+    // the buffer may append to it, so slices never see each other's writes.
+    // Timestamps share the buffer's indexing and stay null while all are equal.
+    // A character that is not a single UTF-16 unit gets a span of its own.
+    private static final class Node {
+        private final String siteId;
+        private long firstCounter;
+        private final String userId;
+        private final StringBuilder buffer;
+        private final String character;
+        private int start;
+        private int length;
+        private final long timestamp;
+        private long[] timestamps;
+        private CRDTId[] deletedBy;  // Per character, null while the span is visible
+
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private int size;
+        private int visibleSize;
+        private Node left;
+        private Node right;
+        private Node parent;
+
+        private Node(CRDTChar c) {
+            this.siteId = c.getId() != null ? c.getId().getSiteId() : null;
+            this.firstCounter = c.getId() != null ? c.getId().getCounter() : 0;
+            this.userId = c.getUserId();
+            this.buffer = isUnit(c.getCharacter()) ? new StringBuilder().append(c.getCharacter()) : null;
+            this.character = buffer == null ? c.getCharacter() : null;
+            this.length = 1;
+            this.timestamp = c.getTimestamp();
+            this.deletedBy = c.isTombstone() ? new CRDTId[] {c.getDeletedBy()} : null;
+            this.size = 1;
+            this.visibleSize = visibleLength();
+        }
+
+        private Node(CRDTId firstId, String text, String userId, long timestamp) {
+            this.siteId = firstId.getSiteId();
+            this.firstCounter = firstId.getCounter();
+            this.userId = userId;
+            this.buffer = new StringBuilder(text);
+            this.character = null;
+            this.length = text.length();
+            this.timestamp = timestamp;
+            this.size = length;
+            this.visibleSize = length;
+        }
+
+        private Node(Node source, int from, int to) {
+            this.siteId = source.siteId;
+            this.firstCounter = source.firstCounter + from;
+            this.userId = source.userId;
+            this.buffer = source.buffer;
+            this.character = source.character;
+            this.start = source.start + from;
+            this.length = to - from;
+            this.timestamp = source.timestamp;
+            this.timestamps = source.timestamps;
+            this.deletedBy = source.deletedBy != null ? Arrays.copyOfRange(source.deletedBy, from, to) : null;
+            this.size = length;
+            this.visibleSize = visibleLength();
+        }
+
+        private static boolean isUnit(String character) {
+            return character != null && character.length() == 1;
+        }
+
+        // Whether b continues a, in ids and in storage
+        private static boolean adjacent(Node a, Node b) {
+            return a.siteId != null && a.siteId.equals(b.siteId)
+                && a.firstCounter + a.length == b.firstCounter
+                && Objects.equals(a.userId, b.userId)
+                && a.buffer != null && a.buffer == b.buffer
+                && a.start + a.length == b.start
+                && a.timestamps == b.timestamps
+                && (a.timestamps != null || a.timestamp == b.timestamp);
+        }
+
+        private Node slice(int from, int to) {
+            return new Node(this, from, to);
+        }
+
+        private boolean isTombstone() {
+            return deletedBy != null;
+        }
+
+        private int visibleLength() {
+            return isTombstone() ? 0 : length;
+        }
+
+        // Whether a run of single-unit characters starting with this id continues the span
+        private boolean canAppend(CRDTId id, String userId, boolean tombstone) {
+            return buffer != null && start + length == buffer.length()
+                && siteId != null && id != null
+                && siteId.equals(id.getSiteId())
+                && id.getCounter() == firstCounter + length
+                && Objects.equals(this.userId, userId)
+                && isTombstone() == tombstone;
+        }
+
+        private void append(String text, long timestamp, CRDTId deletedBy) {
+            int index = start + length;
+            int end = index + text.length();
+            if (timestamps == null && timestamp != this.timestamp) {
+                timestamps = new long[Math.max(end, buffer.capacity())];
+                Arrays.fill(timestamps, start, index, this.timestamp);
+            } else if (timestamps != null && end > timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, Math.max(end, timestamps.length * 2));
+            }
+            if (timestamps != null) {
+                Arrays.fill(timestamps, index, end, timestamp);
+            }
+            buffer.append(text);
+            if (deletedBy == null) {
+                length += text.length();
+                return;
+            }
+            for (int i = 0; i < text.length(); i++) {
+                appendDeletedBy(deletedBy);
+                length++;
+            }
+        }
+
+        // Grows deletedBy by one slot at the end; the caller bumps length
+        private void appendDeletedBy(CRDTId id) {
+            if (deletedBy.length == length) {
+                deletedBy = Arrays.copyOf(deletedBy, Math.max(4, length * 2));
+            }
+            deletedBy[length] = id;
+        }
+
+        // Called after length was bumped
+        private void prependDeletedBy(CRDTId id) {
+            CRDTId[] grown = new CRDTId[Math.max(deletedBy.length, length)];
+            System.arraycopy(deletedBy, 0, grown, 1, length - 1);
+            grown[0] = id;
+            deletedBy = grown;
+        }
+
+        private CRDTId idAt(int offset) {
+            return siteId != null ? new CRDTId(siteId, firstCounter + offset) : null;
+        }
+
+        private CRDTChar charAt(int offset) {
+            return new CRDTChar(
+                idAt(offset),
+                buffer != null ? String.valueOf(buffer.charAt(start + offset)) : character,
+                userId,
+                timestamps != null ? timestamps[start + offset] : timestamp,
+                deletedBy != null ? deletedBy[offset] : null
+            );
+        }
+
+        private void appendTo(StringBuilder text) {
+            if (buffer != null) {
+                text.append(buffer, start, start + length);
+            } else if (character != null) {
+                text.append(character);
+            }
+        }
+
+        private void recount() {
+            size = size(left) + size(right) + length;
+            visibleSize = visibleSize(left) + visibleSize(right) + visibleLength();
+        }
+    }
+}
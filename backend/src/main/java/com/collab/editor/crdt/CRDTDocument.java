@@ -1,68 +1,278 @@
 package com.collab.editor.crdt;
 
 import com.collab.editor.model.CRDTOperation;
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.function.Predicate;
 
+// Replicated Growable Array: every character has a unique CRDTId, inserts are
+// placed after their origin character and deletes only turn characters into
+// tombstones, so replicas converge whatever order operations arrive in.
+// INSERT_TEXT places a whole string at once, exactly where the same characters
+// inserted one by one after each other would go. DELETE_RANGE removes the
+// characters between two ids that its issuer had seen, so text inserted
+// concurrently inside the range survives.
 @Data
 @NoArgsConstructor
-@AllArgsConstructor
 public class CRDTDocument {
-    private List<CRDTChar> characters = new ArrayList<>();
-    private Map<String, Integer> vectorClock = new HashMap<>();
-    
-    public void applyOperation(CRDTOperation op) {
-        // Update vector clock
-        vectorClock.put(op.getUserId(), 
-            vectorClock.getOrDefault(op.getUserId(), 0) + 1);
-        
-        // Apply operation based on type
-        if (op.getType() == CRDTOperation.OperationType.INSERT) {
-            insert(op);
-        } else if (op.getType() == CRDTOperation.OperationType.DELETE) {
-            delete(op);
-        }
-    }
-    
+    // Ids the server assigns to position-based ops get a site of their own per
+    // user, so they never collide with ids that user's client generates itself
+    public static final String SERVER_SITE_PREFIX = "~";
+    // How far past the Lamport clock an op's counters may reach. Honest clients
+    // stay close to it; a larger jump could push the clock towards Long.MAX_VALUE
+    // and make the next counters overflow.
+    public static final long MAX_CLOCK_JUMP = 1L << 32;
+
+    private CRDTCharSequence characters = new CRDTCharSequence();
+    private Map<String, Long> vectorClock = new HashMap<>();
+    private long clock;  // Lamport clock, the highest counter seen from any site
+    private List<CRDTOperation> pending = new ArrayList<>();  // Ops waiting for a character they reference
+
+    // Bumped by every change to the characters; getText is built once per version
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private long textVersion;
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private String cachedText;
+
+    public void setCharacters(CRDTCharSequence characters) {
+        this.characters = characters;
+        textChanged();
+    }
+
+    // Returns false if the operation was a duplicate or could not be resolved
+    public boolean applyOperation(CRDTOperation op) {
+        if (op.getType() == CRDTOperation.OperationType.INSERT_TEXT
+                && (op.getCharacter() == null || op.getCharacter().isEmpty())) {
+            return false;
+        }
+        if (op.getId() == null && !localize(op)) {
+            return false;
+        }
+        if (!hasValidCounters(op)) {
+            return false;
+        }
+        if (isRedelivered(op)) {
+            return false;
+        }
+        if (!isReady(op)) {
+            pending.add(op);
+            return true;
+        }
+
+        integrate(op);
+        integratePending();
+        return true;
+    }
+
+    // Turns a position-based operation into an identifier-based one
+    private boolean localize(CRDTOperation op) {
+        int visibleSize = characters.visibleSize();
+        if (isInsert(op)) {
+            int position = Math.min(op.getPosition(), visibleSize);
+            op.setOriginId(position <= 0 ? null : characters.idAt(characters.absoluteIndex(position - 1)));
+        } else if (op.getType() == CRDTOperation.OperationType.DELETE_RANGE) {
+            if (op.getPosition() < 0 || op.getPosition() >= visibleSize || op.getLength() <= 0) {
+                return false;
+            }
+            int length = Math.min(op.getLength(), visibleSize - op.getPosition());
+            op.setLength(length);
+            op.setTargetId(characters.idAt(characters.absoluteIndex(op.getPosition())));
+            op.setEndId(characters.idAt(characters.absoluteIndex(op.getPosition() + length - 1)));
+            op.setVectorClock(new HashMap<>(vectorClock));
+        } else {
+            if (op.getPosition() < 0 || op.getPosition() >= visibleSize) {
+                return false;
+            }
+            op.setTargetId(characters.idAt(characters.absoluteIndex(op.getPosition())));
+        }
+        op.setId(new CRDTId(SERVER_SITE_PREFIX + op.getUserId(), clock + 1));
+        return true;
+    }
+
+    private boolean hasValidCounters(CRDTOperation op) {
+        long counter = op.getId().getCounter();
+        long lastCounter = op.lastCounter();
+        return counter > 0 && lastCounter >= counter && lastCounter - clock <= MAX_CLOCK_JUMP;
+    }
+
+    public static boolean isServerSite(String siteId) {
+        return siteId.startsWith(SERVER_SITE_PREFIX);
+    }
+
+    // An op that is already waiting, an insert whose characters are here, or a
+    // delete whose id already marks a character it targets
+    private boolean isRedelivered(CRDTOperation op) {
+        for (CRDTOperation waiting : pending) {
+            if (op.getId().equals(waiting.getId())) {
+                return true;
+            }
+        }
+        if (isInsert(op)) {
+            return characters.containsId(op.getId());
+        }
+        int from = characters.indexOf(op.getTargetId());
+        int to = op.getType() == CRDTOperation.OperationType.DELETE_RANGE ? characters.indexOf(op.getEndId()) : from;
+        for (int i = from; i >= 0 && i <= to; i++) {
+            if (op.getId().equals(characters.deletedByAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isReady(CRDTOperation op) {
+        // Keep each site's operations in order so the vector clock stays a prefix
+        for (CRDTOperation waiting : pending) {
+            if (waiting != op && waiting.getId().getSiteId().equals(op.getId().getSiteId())
+                    && waiting.getId().getCounter() < op.getId().getCounter()) {
+                return false;
+            }
+        }
+        if (isInsert(op)) {
+            return op.getOriginId() == null || characters.containsId(op.getOriginId());
+        }
+        if (op.getType() == CRDTOperation.OperationType.DELETE_RANGE) {
+            // Everything the issuer saw inside the range has to be here first
+            return characters.containsId(op.getTargetId()) && characters.containsId(op.getEndId())
+                && (op.getVectorClock() == null || op.getVectorClock().entrySet().stream()
+                    .allMatch(e -> vectorClock.getOrDefault(e.getKey(), 0L) >= e.getValue()));
+        }
+        return characters.containsId(op.getTargetId());
+    }
+
+    private static boolean isInsert(CRDTOperation op) {
+        return op.getType() == CRDTOperation.OperationType.INSERT
+            || op.getType() == CRDTOperation.OperationType.INSERT_TEXT;
+    }
+
+    private void integrate(CRDTOperation op) {
+        switch (op.getType()) {
+            case INSERT -> insert(op);
+            case INSERT_TEXT -> insertText(op);
+            case DELETE -> delete(op);
+            case DELETE_RANGE -> deleteRange(op);
+        }
+
+        textChanged();
+        long lastCounter = op.lastCounter();
+        vectorClock.merge(op.getId().getSiteId(), lastCounter, Math::max);
+        clock = Math.max(clock, lastCounter);
+    }
+
+    private void integratePending() {
+        boolean progress = true;
+        while (progress && !pending.isEmpty()) {
+            progress = false;
+            for (Iterator<CRDTOperation> it = pending.iterator(); it.hasNext(); ) {
+                CRDTOperation op = it.next();
+                if (isReady(op)) {
+                    it.remove();
+                    if (!isInsert(op) || !characters.containsId(op.getId())) {
+                        integrate(op);
+                    }
+                    progress = true;
+                }
+            }
+        }
+    }
+
     private void insert(CRDTOperation op) {
         CRDTChar newChar = new CRDTChar(
+            op.getId(),
             op.getCharacter(),
             op.getUserId(),
             op.getTimestamp(),
-            op.getPosition(),
-            op.getOperationId()
+            null
         );
-        
-        // Insert at position, ensuring bounds
-        int insertPos = Math.min(op.getPosition(), characters.size());
-        characters.add(insertPos, newChar);
-        
-        // Update positions of subsequent characters
-        for (int i = insertPos + 1; i < characters.size(); i++) {
-            characters.get(i).setPosition(i);
+
+        characters.add(insertIndex(op), newChar);
+    }
+
+    // The characters after the first one follow it directly, since nothing
+    // concurrent can reference them yet
+    private void insertText(CRDTOperation op) {
+        characters.insertText(insertIndex(op), op.getId(), op.getCharacter(), op.getUserId(), op.getTimestamp());
+    }
+
+    private int insertIndex(CRDTOperation op) {
+        // Skip concurrent inserts after the same origin that have a higher id
+        int insertPos = op.getOriginId() == null ? 0 : characters.indexOf(op.getOriginId()) + 1;
+        while (insertPos < characters.size() && characters.idAt(insertPos).compareTo(op.getId()) > 0) {
+            insertPos++;
         }
+        return insertPos;
     }
-    
+
     private void delete(CRDTOperation op) {
-        // Remove character at position
-        if (op.getPosition() >= 0 && op.getPosition() < characters.size()) {
-            characters.remove(op.getPosition());
-            
-            // Update positions of subsequent characters
-            for (int i = op.getPosition(); i < characters.size(); i++) {
-                characters.get(i).setPosition(i);
+        int index = characters.indexOf(op.getTargetId());
+        if (index >= 0) {
+            characters.markDeleted(index, op.getId());
+        }
+    }
+
+    private void deleteRange(CRDTOperation op) {
+        int from = characters.indexOf(op.getTargetId());
+        int to = characters.indexOf(op.getEndId());
+        Map<String, Long> seen = op.getVectorClock();
+        for (int i = Math.max(from, 0); i <= to; i++) {
+            CRDTId id = characters.idAt(i);
+            if (seen == null || seen.getOrDefault(id.getSiteId(), 0L) >= id.getCounter()) {
+                characters.markDeleted(i, op.getId());
             }
         }
     }
-    
+
+    public int getTombstoneCount() {
+        return characters.size() - characters.visibleSize();
+    }
+
+    // Physically removes tombstones whose delete every replica has already seen
+    public int compact(Predicate<CRDTId> isStable) {
+        return compact(isStable, 0, Integer.MAX_VALUE).removed();
+    }
+
+    // Compacts at most maxSpans spans from the character at fromIndex, so a large
+    // document can be compacted a slice at a time in between edits
+    public Compaction compact(Predicate<CRDTId> isStable, int fromIndex, int maxSpans) {
+        // A delete still waiting for a character every replica has seen is a redelivery
+        // of one whose target was already compacted
+        pending.removeIf(op -> (op.getType() == CRDTOperation.OperationType.DELETE
+                || op.getType() == CRDTOperation.OperationType.DELETE_RANGE)
+            && isStable.test(op.getTargetId())
+            && pending.stream().noneMatch(waiting -> op.getTargetId().equals(waiting.getId())));
+        if (!pending.isEmpty()) {
+            return new Compaction(0, -1);
+        }
+        return characters.removeTombstones(isStable, fromIndex, maxSpans);
+    }
+
+    // nextIndex is where the next slice starts, or -1 once the end was reached
+    public record Compaction(int removed, int nextIndex) {
+    }
+
     public String getText() {
-        return characters.stream()
-            .map(CRDTChar::getCharacter)
-            .collect(Collectors.joining());
+        if (cachedText == null) {
+            StringBuilder text = new StringBuilder(characters.visibleSize());
+            characters.appendText(text);
+            cachedText = text.toString();
+        }
+        return cachedText;
     }
-}
 
+    private void textChanged() {
+        textVersion++;
+        cachedText = null;
+    }
+}
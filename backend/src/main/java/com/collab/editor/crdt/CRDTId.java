@@ -0,0 +1,22 @@
+package com.collab.editor.crdt;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+// Globally unique identifier of a character: the replica (site) that created it
+// plus that replica's Lamport counter at creation time. Ordering by counter and
+// then site gives every replica the same tie-break for concurrent inserts.
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CRDTId implements Comparable<CRDTId> {
+    private String siteId;
+    private long counter;
+
+    @Override
+    public int compareTo(CRDTId other) {
+        int byCounter = Long.compare(counter, other.counter);
+        return byCounter != 0 ? byCounter : siteId.compareTo(other.siteId);
+    }
+}
@@ -0,0 +1,494 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Binary snapshot of a CRDTDocument, stored with its CodeFile so loading a
+// file only has to replay the operations logged after the snapshot, and sent
+// to clients that reconnect too far behind to catch up from the op history.
+//
+// Version 2 stores each site and user id once in a dictionary and refers to it
+// by index, and groups the characters into runs typed by one author: within a
+// run only the id counter and timestamp deltas from the previous character are
+// written, as varints, and the characters themselves as one string when each
+// is a single code point. The body can be Deflate-compressed. Version 1
+// snapshots, one fixed-width record per character, are still decoded.
+//
+// capture copies what a snapshot needs out of a document, so a caller holding
+// the document's lock can release it before the copy is encoded and compressed.
+public final class CRDTSnapshotCodec {
+
+    public record Capture(long clock, Map<String, Long> vectorClock, List<CRDTChar> characters,
+                          List<CRDTOperation> pending) {
+    }
+
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+
+    private static final int FLAG_COMPRESSED = 1;
+
+    // Run flags
+    private static final int RUN_SINGLE_CODE_POINTS = 1;
+    private static final int RUN_HAS_TOMBSTONES = 2;
+
+    private CRDTSnapshotCodec() {
+    }
+
+    public static byte[] encode(CRDTDocument document) {
+        return encode(document, false);
+    }
+
+    public static byte[] encode(CRDTDocument document, boolean compress) {
+        return encode(capture(document), compress);
+    }
+
+    // Characters are materialized as new CRDTChars, so later edits to the document do not reach the copy
+    public static Capture capture(CRDTDocument document) {
+        return new Capture(document.getClock(), new LinkedHashMap<>(document.getVectorClock()),
+            new ArrayList<>(document.getCharacters()), new ArrayList<>(document.getPending()));
+    }
+
+    public static byte[] encode(Capture document, boolean compress) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            bytes.write(VERSION_2);
+            bytes.write(compress ? FLAG_COMPRESSED : 0);
+            OutputStream body = compress
+                ? new DeflaterOutputStream(bytes, new Deflater(Deflater.BEST_SPEED))
+                : bytes;
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(body))) {
+                writeBody(out, document);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to encode snapshot: " + e.getMessage());
+        }
+    }
+
+    private static void writeBody(DataOutputStream out, Capture document) throws IOException {
+        Dictionary dictionary = new Dictionary();
+        for (String site : document.vectorClock().keySet()) {
+            dictionary.add(site);
+        }
+        for (CRDTChar c : document.characters()) {
+            dictionary.add(c.getId().getSiteId());
+            dictionary.add(c.getUserId());
+            if (c.getDeletedBy() != null) {
+                dictionary.add(c.getDeletedBy().getSiteId());
+            }
+        }
+        writeVarLong(out, dictionary.values.size());
+        for (String value : dictionary.values) {
+            writeNullableVarString(out, value);
+        }
+
+        writeVarLong(out, document.clock());
+        writeVarLong(out, document.vectorClock().size());
+        for (Map.Entry<String, Long> entry : document.vectorClock().entrySet()) {
+            writeVarLong(out, dictionary.indexOf(entry.getKey()));
+            writeVarLong(out, entry.getValue());
+        }
+
+        List<CRDTChar> characters = document.characters();
+        writeVarLong(out, characters.size());
+        long counter = 0;
+        long timestamp = 0;
+        for (int start = 0; start < characters.size(); ) {
+            int end = runEnd(characters, start);
+            CRDTChar first = characters.get(start);
+            int flags = 0;
+            boolean singleCodePoints = true;
+            for (int i = start; i < end; i++) {
+                CRDTChar c = characters.get(i);
+                singleCodePoints &= c.getCharacter() != null
+                    && c.getCharacter().codePointCount(0, c.getCharacter().length()) == 1;
+                if (c.isTombstone()) {
+                    flags |= RUN_HAS_TOMBSTONES;
+                }
+            }
+            if (singleCodePoints) {
+                flags |= RUN_SINGLE_CODE_POINTS;
+            }
+
+            writeVarLong(out, end - start);
+            out.writeByte(flags);
+            writeVarLong(out, dictionary.indexOf(first.getId().getSiteId()));
+            writeVarLong(out, dictionary.indexOf(first.getUserId()));
+            if (singleCodePoints) {
+                StringBuilder text = new StringBuilder(end - start);
+                for (int i = start; i < end; i++) {
+                    text.append(characters.get(i).getCharacter());
+                }
+                writeVarString(out, text.toString());
+            }
+            for (int i = start; i < end; i++) {
+                CRDTChar c = characters.get(i);
+                // Typing one character after another gives counter deltas of 1
+                writeVarLong(out, zigZag(c.getId().getCounter() - counter - 1));
+                writeVarLong(out, zigZag(c.getTimestamp() - timestamp));
+                counter = c.getId().getCounter();
+                timestamp = c.getTimestamp();
+                if (!singleCodePoints) {
+                    writeNullableVarString(out, c.getCharacter());
+                }
+                if ((flags & RUN_HAS_TOMBSTONES) != 0) {
+                    CRDTId deletedBy = c.getDeletedBy();
+                    writeVarLong(out, deletedBy == null ? 0 : dictionary.indexOf(deletedBy.getSiteId()) + 1);
+                    if (deletedBy != null) {
+                        writeVarLong(out, deletedBy.getCounter());
+                    }
+                }
+            }
+            start = end;
+        }
+
+        writeVarLong(out, document.pending().size());
+        for (CRDTOperation op : document.pending()) {
+            writeOperation(out, op);
+        }
+    }
+
+    // Characters from one author in a row form a run
+    private static int runEnd(List<CRDTChar> characters, int start) {
+        CRDTChar first = characters.get(start);
+        int end = start + 1;
+        while (end < characters.size()
+                && characters.get(end).getId().getSiteId().equals(first.getId().getSiteId())
+                && Objects.equals(characters.get(end).getUserId(), first.getUserId())) {
+            end++;
+        }
+        return end;
+    }
+
+    public static CRDTDocument decode(byte[] snapshot) {
+        try {
+            if (snapshot.length == 0) {
+                throw new IOException("empty snapshot");
+            }
+            if (snapshot[0] == VERSION_1) {
+                return decodeVersion1(new DataInputStream(new ByteArrayInputStream(snapshot, 1, snapshot.length - 1)));
+            }
+            if (snapshot[0] != VERSION_2 || snapshot.length < 2) {
+                throw new IOException("unsupported snapshot version " + snapshot[0]);
+            }
+            InputStream body = new ByteArrayInputStream(snapshot, 2, snapshot.length - 2);
+            if ((snapshot[1] & FLAG_COMPRESSED) != 0) {
+                body = new InflaterInputStream(body);
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body))) {
+                return readBody(in);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to decode snapshot: " + e.getMessage());
+        }
+    }
+
+    private static CRDTDocument readBody(DataInputStream in) throws IOException {
+        String[] dictionary = new String[(int) readVarLong(in)];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readNullableVarString(in);
+        }
+
+        CRDTDocument document = new CRDTDocument();
+        document.setClock(readVarLong(in));
+        int sites = (int) readVarLong(in);
+        Map<String, Long> vectorClock = new HashMap<>();
+        for (int i = 0; i < sites; i++) {
+            vectorClock.put(dictionary[(int) readVarLong(in)], readVarLong(in));
+        }
+        document.setVectorClock(vectorClock);
+
+        long size = readVarLong(in);
+        CRDTCharSequence characters = new CRDTCharSequence();
+        long counter = 0;
+        long timestamp = 0;
+        while (characters.size() < size) {
+            int length = (int) readVarLong(in);
+            int flags = in.readUnsignedByte();
+            String siteId = dictionary[(int) readVarLong(in)];
+            String userId = dictionary[(int) readVarLong(in)];
+            String text = (flags & RUN_SINGLE_CODE_POINTS) != 0 ? readVarString(in) : null;
+            int textIndex = 0;
+            for (int i = 0; i < length; i++) {
+                counter += unZigZag(readVarLong(in)) + 1;
+                timestamp += unZigZag(readVarLong(in));
+                String character;
+                if (text != null) {
+                    int next = text.offsetByCodePoints(textIndex, 1);
+                    character = text.substring(textIndex, next);
+                    textIndex = next;
+                } else {
+                    character = readNullableVarString(in);
+                }
+                CRDTId deletedBy = null;
+                if ((flags & RUN_HAS_TOMBSTONES) != 0) {
+                    int deletedBySite = (int) readVarLong(in);
+                    if (deletedBySite > 0) {
+                        deletedBy = new CRDTId(dictionary[deletedBySite - 1], readVarLong(in));
+                    }
+                }
+                characters.add(new CRDTChar(new CRDTId(siteId, counter), character, userId, timestamp, deletedBy));
+            }
+        }
+        document.setCharacters(characters);
+
+        int pendingCount = (int) readVarLong(in);
+        List<CRDTOperation> pending = new ArrayList<>(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            pending.add(readOperation(in));
+        }
+        document.setPending(pending);
+        return document;
+    }
+
+    // The previous format, kept so benchmarks can compare against it
+    static byte[] encodeVersion1(CRDTDocument document) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeByte(VERSION_1);
+            out.writeLong(document.getClock());
+            out.writeInt(document.getVectorClock().size());
+            for (Map.Entry<String, Long> entry : document.getVectorClock().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+
+            out.writeInt(document.getCharacters().size());
+            for (CRDTChar c : document.getCharacters()) {
+                writeId(out, c.getId());
+                writeString(out, c.getCharacter());
+                writeString(out, c.getUserId());
+                out.writeLong(c.getTimestamp());
+                writeId(out, c.getDeletedBy());
+            }
+
+            out.writeInt(document.getPending().size());
+            for (CRDTOperation op : document.getPending()) {
+                writeVersion1Operation(out, op);
+            }
+
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to encode snapshot: " + e.getMessage());
+        }
+    }
+
+    private static CRDTDocument decodeVersion1(DataInputStream in) throws IOException {
+        CRDTDocument document = new CRDTDocument();
+        document.setClock(in.readLong());
+        int sites = in.readInt();
+        Map<String, Long> vectorClock = new HashMap<>();
+        for (int i = 0; i < sites; i++) {
+            vectorClock.put(in.readUTF(), in.readLong());
+        }
+        document.setVectorClock(vectorClock);
+
+        int size = in.readInt();
+        CRDTCharSequence characters = new CRDTCharSequence();
+        for (int i = 0; i < size; i++) {
+            characters.add(new CRDTChar(readId(in), readString(in), readString(in), in.readLong(), readId(in)));
+        }
+        document.setCharacters(characters);
+
+        int pendingCount = in.readInt();
+        List<CRDTOperation> pending = new ArrayList<>(pendingCount);
+        for (int i = 0; i < pendingCount; i++) {
+            pending.add(readVersion1Operation(in));
+        }
+        document.setPending(pending);
+        return document;
+    }
+
+    private static void writeVersion1Operation(DataOutputStream out, CRDTOperation op) throws IOException {
+        writeString(out, op.getOperationId());
+        writeId(out, op.getId());
+        writeId(out, op.getOriginId());
+        writeId(out, op.getTargetId());
+        writeString(out, op.getUserId());
+        out.writeByte(op.getType().ordinal());
+        out.writeInt(op.getPosition());
+        writeString(out, op.getCharacter());
+        out.writeLong(op.getTimestamp());
+    }
+
+    private static CRDTOperation readVersion1Operation(DataInputStream in) throws IOException {
+        return CRDTOperation.builder()
+            .operationId(readString(in))
+            .id(readId(in))
+            .originId(readId(in))
+            .targetId(readId(in))
+            .userId(readString(in))
+            .type(CRDTOperation.OperationType.values()[in.readByte()])
+            .position(in.readInt())
+            .character(readString(in))
+            .timestamp(in.readLong())
+            .build();
+    }
+
+    // Pending ops are rare, so they are written field by field; range deletes
+    // add their end, length and clock
+    private static void writeOperation(DataOutputStream out, CRDTOperation op) throws IOException {
+        writeNullableVarString(out, op.getOperationId());
+        writeVarId(out, op.getId());
+        writeVarId(out, op.getOriginId());
+        writeVarId(out, op.getTargetId());
+        writeNullableVarString(out, op.getUserId());
+        out.writeByte(op.getType().ordinal());
+        writeVarLong(out, zigZag(op.getPosition()));
+        writeNullableVarString(out, op.getCharacter());
+        writeVarLong(out, op.getTimestamp());
+        if (op.getType() == CRDTOperation.OperationType.DELETE_RANGE) {
+            writeVarId(out, op.getEndId());
+            writeVarLong(out, op.getLength());
+            Map<String, Long> clock = op.getVectorClock();
+            writeVarLong(out, clock != null ? clock.size() + 1 : 0);
+            if (clock != null) {
+                for (Map.Entry<String, Long> entry : clock.entrySet()) {
+                    writeNullableVarString(out, entry.getKey());
+                    writeVarLong(out, entry.getValue());
+                }
+            }
+        }
+    }
+
+    private static CRDTOperation readOperation(DataInputStream in) throws IOException {
+        CRDTOperation op = CRDTOperation.builder()
+            .operationId(readNullableVarString(in))
+            .id(readVarId(in))
+            .originId(readVarId(in))
+            .targetId(readVarId(in))
+            .userId(readNullableVarString(in))
+            .type(CRDTOperation.OperationType.values()[in.readByte()])
+            .position((int) unZigZag(readVarLong(in)))
+            .character(readNullableVarString(in))
+            .timestamp(readVarLong(in))
+            .build();
+        if (op.getType() == CRDTOperation.OperationType.DELETE_RANGE) {
+            op.setEndId(readVarId(in));
+            op.setLength((int) readVarLong(in));
+            long clockSize = readVarLong(in);
+            if (clockSize > 0) {
+                Map<String, Long> clock = new HashMap<>();
+                for (long i = 1; i < clockSize; i++) {
+                    clock.put(readNullableVarString(in), readVarLong(in));
+                }
+                op.setVectorClock(clock);
+            }
+        }
+        return op;
+    }
+
+    private static void writeVarId(DataOutputStream out, CRDTId id) throws IOException {
+        writeNullableVarString(out, id != null ? id.getSiteId() : null);
+        if (id != null) {
+            writeVarLong(out, id.getCounter());
+        }
+    }
+
+    private static CRDTId readVarId(DataInputStream in) throws IOException {
+        String siteId = readNullableVarString(in);
+        return siteId != null ? new CRDTId(siteId, readVarLong(in)) : null;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarString(DataOutputStream out, String value) throws IOException {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readVarString(DataInputStream in) throws IOException {
+        return new String(in.readNBytes((int) readVarLong(in)), StandardCharsets.UTF_8);
+    }
+
+    // Length plus one, 0 for null
+    private static void writeNullableVarString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(out, utf8.length + 1);
+        out.write(utf8);
+    }
+
+    private static String readNullableVarString(DataInputStream in) throws IOException {
+        int length = (int) readVarLong(in);
+        return length == 0 ? null : new String(in.readNBytes(length - 1), StandardCharsets.UTF_8);
+    }
+
+    private static void writeId(DataOutputStream out, CRDTId id) throws IOException {
+        out.writeBoolean(id != null);
+        if (id != null) {
+            out.writeUTF(id.getSiteId());
+            out.writeLong(id.getCounter());
+        }
+    }
+
+    private static CRDTId readId(DataInputStream in) throws IOException {
+        return in.readBoolean() ? new CRDTId(in.readUTF(), in.readLong()) : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static final class Dictionary {
+        private final List<String> values = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        private void add(String value) {
+            indexes.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+
+        private int indexOf(String value) {
+            return indexes.get(value);
+        }
+    }
+}
@@ -1,42 +1,152 @@
 package com.collab.editor.crdt;
 
 import com.collab.editor.model.CRDTOperation;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 @Component
 public class CRDTSynchronizer {
-    
-    private final Map<String, List<CRDTOperation>> operationHistory = new ConcurrentHashMap<>();
-    
-    public synchronized void addOperation(String documentId, CRDTOperation operation) {
-        operationHistory.computeIfAbsent(documentId, k -> new ArrayList<>())
-                       .add(operation);
-    }
-    
+
+    // Recent applied ops per document; each log has its own lock
+    private final Map<String, OperationLog> operationHistory = new ConcurrentHashMap<>();
+    private final int maxOpsPerDocument;
+
+    // room -> connected replica -> document -> the vector clock the replica last acknowledged.
+    // Keyed by room first, so a replica leaving or a document being evicted only touches its room
+    private final Map<String, Map<String, Map<String, Map<String, Long>>>> roomReplicas = new ConcurrentHashMap<>();
+    // room -> site -> the replica whose ops carry that site's ids, until it leaves
+    private final Map<String, Map<String, String>> roomSites = new ConcurrentHashMap<>();
+
+    public CRDTSynchronizer(@Value("${editor.oplog.max-ops-per-document:10000}") int maxOpsPerDocument) {
+        this.maxOpsPerDocument = maxOpsPerDocument;
+    }
+
+    // Starts the document's history when it is loaded; ops up to the loaded clock are not in it
+    public void initHistory(String documentId, Map<String, Long> loadedClock) {
+        operationHistory.computeIfAbsent(documentId, k -> new OperationLog(maxOpsPerDocument, loadedClock));
+    }
+
+    // Returns the op's sequence number in the document's log, or 0 if the
+    // document has no history because it was evicted since it was loaded
+    public long addOperation(String documentId, CRDTOperation operation) {
+        OperationLog log = operationHistory.get(documentId);
+        return log != null ? log.append(operation) : 0;
+    }
+
+    // Ops applied after the last one with a timestamp up to afterTimestamp, in applied order
     public List<CRDTOperation> getOperations(String documentId, long afterTimestamp) {
-        List<CRDTOperation> allOps = operationHistory.getOrDefault(documentId, new ArrayList<>());
-        return allOps.stream()
-                     .filter(op -> op.getTimestamp() > afterTimestamp)
-                     .sorted(Comparator.comparingLong(CRDTOperation::getTimestamp))
-                     .toList();
-    }
-    
-    public void clearHistory(String documentId) {
+        OperationLog log = operationHistory.get(documentId);
+        return log != null ? log.afterTimestamp(afterTimestamp) : List.of();
+    }
+
+    // Ops after the given sequence, or empty if the log no longer reaches back that far
+    public Optional<List<CRDTOperation>> getOperationsAfter(String documentId, long sequence) {
+        OperationLog log = operationHistory.get(documentId);
+        if (log == null) {
+            return sequence == 0 ? Optional.of(List.of()) : Optional.empty();
+        }
+        return Optional.ofNullable(log.afterSequence(sequence));
+    }
+
+    // Ops a replica with this vector clock has not seen, or empty if the history
+    // no longer holds all of them and the replica needs a snapshot instead
+    public Optional<List<CRDTOperation>> getOperationsNotCoveredBy(String documentId, Map<String, Long> vectorClock) {
+        OperationLog log = operationHistory.get(documentId);
+        return log != null ? Optional.ofNullable(log.notCoveredBy(vectorClock)) : Optional.empty();
+    }
+
+    public long getLastSequence(String documentId) {
+        OperationLog log = operationHistory.get(documentId);
+        return log != null ? log.getLastSequence() : 0;
+    }
+
+    // Drops history up to the sequence once a stored snapshot covers it
+    public void truncateHistory(String documentId, long sequence) {
+        OperationLog log = operationHistory.get(documentId);
+        if (log != null) {
+            log.truncate(sequence);
+        }
+    }
+
+    // Drops the document's history and what replicas acknowledged of it, once it is evicted
+    public void clearHistory(String roomId, String documentId) {
         operationHistory.remove(documentId);
+        Map<String, Map<String, Map<String, Long>>> replicas = roomReplicas.get(roomId);
+        if (replicas != null) {
+            replicas.values().forEach(documents -> documents.remove(documentId));
+        }
+    }
+
+    public void registerReplica(String roomId, String replicaId) {
+        roomReplicas.computeIfAbsent(roomId, k -> new ConcurrentHashMap<>())
+                    .putIfAbsent(replicaId, new ConcurrentHashMap<>());
+    }
+
+    public void unregisterReplica(String roomId, String replicaId) {
+        roomReplicas.computeIfPresent(roomId, (k, replicas) -> {
+            replicas.remove(replicaId);
+            return replicas.isEmpty() ? null : replicas;
+        });
+        roomSites.computeIfPresent(roomId, (k, sites) -> {
+            sites.values().removeIf(replicaId::equals);
+            return sites.isEmpty() ? null : sites;
+        });
     }
-    
-    public CRDTOperation resolveConflict(CRDTOperation op1, CRDTOperation op2) {
-        // Last-write-wins strategy based on timestamp
-        if (op1.getTimestamp() > op2.getTimestamp()) {
-            return op1;
-        } else if (op2.getTimestamp() > op1.getTimestamp()) {
-            return op2;
-        } else {
-            // If timestamps are equal, use userId for deterministic ordering
-            return op1.getUserId().compareTo(op2.getUserId()) > 0 ? op1 : op2;
+
+    // A site's ids belong to the first replica that sends them; false while another replica holds it,
+    // as its ops would reuse that replica's ids and be dropped as duplicates
+    public boolean claimSite(String roomId, String siteId, String replicaId) {
+        String[] holder = new String[1];
+        roomSites.compute(roomId, (k, sites) -> {
+            if (sites == null) {
+                sites = new ConcurrentHashMap<>();
+            }
+            holder[0] = sites.putIfAbsent(siteId, replicaId);
+            return sites;
+        });
+        return holder[0] == null || holder[0].equals(replicaId);
+    }
+
+    // Ignored for replicas that are not connected, so nothing is left behind once they leave
+    public void acknowledge(String roomId, String documentId, String replicaId, Map<String, Long> vectorClock) {
+        Map<String, Map<String, Map<String, Long>>> replicas = roomReplicas.get(roomId);
+        Map<String, Map<String, Long>> documents = replicas != null ? replicas.get(replicaId) : null;
+        if (documents == null) {
+            return;
+        }
+        documents.merge(documentId, new ConcurrentHashMap<>(vectorClock), (seen, latest) -> {
+            latest.forEach((site, counter) -> seen.merge(site, counter, Math::max));
+            return seen;
+        });
+    }
+
+    // Tells whether an operation has been seen by every replica connected to the room.
+    // Tombstones deleted by such an operation can no longer be referenced and may be dropped.
+    // With nobody connected nothing is stable: a client editing offline may still reference them.
+    public Predicate<CRDTId> stabilityCheck(String roomId, String documentId) {
+        Map<String, Map<String, Map<String, Long>>> replicas = roomReplicas.getOrDefault(roomId, Map.of());
+
+        Map<String, Long> stable = null;
+        for (Map<String, Map<String, Long>> documents : replicas.values()) {
+            Map<String, Long> clock = documents.get(documentId);
+            if (clock == null) {
+                return id -> false;
+            }
+            if (stable == null) {
+                stable = new HashMap<>(clock);
+            } else {
+                stable.keySet().retainAll(clock.keySet());
+                stable.replaceAll((site, counter) -> Math.min(counter, clock.get(site)));
+            }
+        }
+        if (stable == null) {
+            return id -> false;
         }
+        Map<String, Long> stableClock = stable;
+        return id -> stableClock.getOrDefault(id.getSiteId(), 0L) >= id.getCounter();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,225 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Applied operations of one document, in the order they were applied, stored
+// in fixed-size segments. Every op gets the next sequence number, so the
+// segment holding a sequence is found by arithmetic. Each op also gets a range
+// key: its timestamp, raised to the previous key when the client clock is
+// behind, so keys never decrease and timestamp queries are binary searches.
+// Old segments are dropped whole, once a snapshot covers them or once the log
+// holds more than maxOps. The base clock covers every op the log does not
+// hold: those before it started plus those dropped since. Sequences are also
+// indexed by site and counter, so the ops a vector clock has not seen are found
+// without scanning the whole log.
+class OperationLog {
+
+    static final int SEGMENT_SIZE = 256;
+
+    private final int maxOps;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Oldest first; every segment but the last is full. Guarded by lock
+    private final List<Segment> segments = new ArrayList<>();
+    private long lastSequence;
+    private long lastKey = Long.MIN_VALUE;
+    private final Map<String, Long> baseClock;
+    // site -> first counter of each op -> its sequence; op ids are unique, so counters are too
+    private final Map<String, NavigableMap<Long, Long>> sequencesBySite = new HashMap<>();
+
+    OperationLog(int maxOps, Map<String, Long> baseClock) {
+        this.maxOps = Math.max(maxOps, SEGMENT_SIZE);
+        this.baseClock = new HashMap<>(baseClock);
+    }
+
+    long append(CRDTOperation operation) {
+        lock.writeLock().lock();
+        try {
+            Segment tail = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (tail == null || tail.count == SEGMENT_SIZE) {
+                tail = new Segment(lastSequence + 1);
+                segments.add(tail);
+            }
+            lastKey = Math.max(lastKey, operation.getTimestamp());
+            tail.operations[tail.count] = operation;
+            tail.keys[tail.count] = lastKey;
+            tail.count++;
+            lastSequence++;
+            sequencesBySite.computeIfAbsent(operation.getId().getSiteId(), k -> new TreeMap<>())
+                .put(operation.getId().getCounter(), lastSequence);
+
+            // Over the cap: drop the oldest segments
+            while (size() > maxOps && segments.size() > 1) {
+                drop(1);
+            }
+            return lastSequence;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Ops whose range key is above the timestamp, in applied order
+    List<CRDTOperation> afterTimestamp(long timestamp) {
+        lock.readLock().lock();
+        try {
+            // First segment whose last key is above the timestamp
+            int low = 0;
+            int high = segments.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                Segment segment = segments.get(mid);
+                if (segment.keys[segment.count - 1] > timestamp) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            if (low == segments.size()) {
+                return List.of();
+            }
+            return copyFrom(low, segments.get(low).firstAbove(timestamp));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Ops with a sequence above the given one, or null if some of them were already dropped
+    List<CRDTOperation> afterSequence(long sequence) {
+        lock.readLock().lock();
+        try {
+            if (sequence >= lastSequence) {
+                return List.of();
+            }
+            if (segments.isEmpty() || sequence + 1 < segments.get(0).firstSequence) {
+                return null;
+            }
+            long offset = sequence + 1 - segments.get(0).firstSequence;
+            return copyFrom((int) (offset / SEGMENT_SIZE), (int) (offset % SEGMENT_SIZE));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<CRDTOperation> copyFrom(int segmentIndex, int offset) {
+        List<CRDTOperation> result = new ArrayList<>((int) (lastSequence - segments.get(segmentIndex).firstSequence - offset + 1));
+        for (int i = segmentIndex; i < segments.size(); i++) {
+            Segment segment = segments.get(i);
+            for (int j = i == segmentIndex ? offset : 0; j < segment.count; j++) {
+                result.add(segment.operations[j]);
+            }
+        }
+        return result;
+    }
+
+    // Drops the segments that only hold ops up to the given sequence
+    void truncate(long sequence) {
+        lock.writeLock().lock();
+        try {
+            int covered = 0;
+            while (covered < segments.size() - 1
+                    && segments.get(covered).firstSequence + SEGMENT_SIZE - 1 <= sequence) {
+                covered++;
+            }
+            drop(covered);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Ops not covered by the vector clock, in applied order, or null if the
+    // clock does not cover everything the log no longer holds
+    List<CRDTOperation> notCoveredBy(Map<String, Long> vectorClock) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, Long> base : baseClock.entrySet()) {
+                if (vectorClock.getOrDefault(base.getKey(), 0L) < base.getValue()) {
+                    return null;
+                }
+            }
+            List<Long> sequences = new ArrayList<>();
+            for (Map.Entry<String, NavigableMap<Long, Long>> site : sequencesBySite.entrySet()) {
+                sequences.addAll(site.getValue().tailMap(vectorClock.getOrDefault(site.getKey(), 0L), false).values());
+            }
+            Collections.sort(sequences);
+            List<CRDTOperation> result = new ArrayList<>(sequences.size());
+            long firstSequence = segments.isEmpty() ? 0 : segments.get(0).firstSequence;
+            for (long sequence : sequences) {
+                long offset = sequence - firstSequence;
+                result.add(segments.get((int) (offset / SEGMENT_SIZE)).operations[(int) (offset % SEGMENT_SIZE)]);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Callers hold the write lock
+    private void drop(int count) {
+        for (Segment segment : segments.subList(0, count)) {
+            for (int i = 0; i < segment.count; i++) {
+                CRDTOperation operation = segment.operations[i];
+                String site = operation.getId().getSiteId();
+                baseClock.merge(site, operation.lastCounter(), Math::max);
+                NavigableMap<Long, Long> sequences = sequencesBySite.get(site);
+                sequences.remove(operation.getId().getCounter(), segment.firstSequence + i);
+                if (sequences.isEmpty()) {
+                    sequencesBySite.remove(site);
+                }
+            }
+        }
+        segments.subList(0, count).clear();
+    }
+
+    long getLastSequence() {
+        lock.readLock().lock();
+        try {
+            return lastSequence;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Callers hold lock
+    private int size() {
+        if (segments.isEmpty()) {
+            return 0;
+        }
+        return (int) (lastSequence - segments.get(0).firstSequence + 1);
+    }
+
+    private static final class Segment {
+        private final long firstSequence;
+        private final CRDTOperation[] operations = new CRDTOperation[SEGMENT_SIZE];
+        private final long[] keys = new long[SEGMENT_SIZE];
+        private int count;
+
+        private Segment(long firstSequence) {
+            this.firstSequence = firstSequence;
+        }
+
+        // Index of the first op whose key is above the timestamp; the last key must be above it
+        private int firstAbove(long timestamp) {
+            int low = 0;
+            int high = count - 1;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (keys[mid] > timestamp) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low;
+        }
+    }
+}
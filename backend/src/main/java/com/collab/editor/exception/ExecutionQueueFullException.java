@@ -0,0 +1,12 @@
+package com.collab.editor.exception;
+
+public class ExecutionQueueFullException extends RuntimeException {
+    public ExecutionQueueFullException(int maxQueued) {
+        super("Execution queue is full (" + maxQueued + " jobs waiting), try again shortly");
+    }
+
+    // A per-room or per-user cap, e.g. for "this room"
+    public ExecutionQueueFullException(String scope, int maxQueued) {
+        super("Too many jobs waiting for " + scope + " (" + maxQueued + "), try again shortly");
+    }
+}
@@ -0,0 +1,244 @@
+package com.collab.editor.execution;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+// Content-addressed cache of compiled programs on local disk. The key is the
+// SHA-256 of language, compiler flags and source, so running unchanged code
+// again skips compilation entirely. Each entry is a directory holding whatever
+// the compiler produced (.class files, a native binary); entries are evicted
+// least recently used once the cache grows past max-bytes, except while a run
+// still holds them.
+@Slf4j
+@Component
+public class CompilationCache {
+
+    // Written last, so a directory without it is an interrupted compile
+    private static final String COMPLETE_MARKER = ".complete";
+
+    @FunctionalInterface
+    public interface Compiler {
+        void compile(Path outputDir) throws IOException, InterruptedException;
+    }
+
+    private final Path root;
+    private final long maxBytes;
+
+    // Access-ordered, eldest first; guarded by this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    // Runs compiling the same source wait for one compile instead of racing
+    private final Object[] compileLocks = new Object[64];
+    private long totalBytes;
+    private boolean loaded;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter timeSaved;
+    private final Timer compileTimer;
+
+    public CompilationCache(@Value("${editor.execution.cache.dir:${java.io.tmpdir}/editor-compile-cache}") String root,
+                            @Value("${editor.execution.cache.max-bytes:268435456}") long maxBytes,
+                            MeterRegistry meterRegistry) {
+        this.root = Path.of(root);
+        this.maxBytes = maxBytes;
+        Arrays.setAll(compileLocks, i -> new Object());
+        this.hits = meterRegistry.counter("editor.execution.compile.cache", "result", "hit");
+        this.misses = meterRegistry.counter("editor.execution.compile.cache", "result", "miss");
+        this.timeSaved = Counter.builder("editor.execution.compile.saved")
+            .baseUnit("milliseconds")
+            .register(meterRegistry);
+        this.compileTimer = meterRegistry.timer("editor.execution.compile");
+    }
+
+    // Returns the compiled artifact, compiling it first on a miss. Close the
+    // artifact once the run is over so the entry can be evicted again.
+    public Artifact get(String language, List<String> flags, String source, Compiler compiler)
+            throws IOException, InterruptedException {
+        String key = key(language, flags, source);
+        synchronized (compileLocks[Math.floorMod(key.hashCode(), compileLocks.length)]) {
+            Artifact artifact = lease(key);
+            return artifact != null ? artifact : compile(key, compiler);
+        }
+    }
+
+    private synchronized Artifact lease(String key) throws IOException {
+        loadIndex();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        entry.leases++;
+        hits.increment();
+        timeSaved.increment(entry.compileMillis);
+        return new Artifact(this, entry);
+    }
+
+    private Artifact compile(String key, Compiler compiler) throws IOException, InterruptedException {
+        misses.increment();
+        Path staging = Files.createTempDirectory(root, "staging-");
+        long startedAt = System.nanoTime();
+        try {
+            compiler.compile(staging);
+            long compileMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt);
+            compileTimer.record(compileMillis, TimeUnit.MILLISECONDS);
+            Files.writeString(staging.resolve(COMPLETE_MARKER), Long.toString(compileMillis));
+
+            Path dir = root.resolve(key);
+            deleteRecursively(dir);
+            Files.move(staging, dir, StandardCopyOption.ATOMIC_MOVE);
+            Entry entry = new Entry(key, dir, sizeOf(dir), compileMillis);
+            synchronized (this) {
+                entry.leases = 1;
+                entries.put(key, entry);
+                totalBytes += entry.bytes;
+                evictIfNeeded();
+            }
+            return new Artifact(this, entry);
+        } finally {
+            deleteRecursively(staging);
+        }
+    }
+
+    private synchronized void release(Entry entry) {
+        entry.leases--;
+        evictIfNeeded();
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (totalBytes > maxBytes && eldest.hasNext()) {
+            Entry entry = eldest.next();
+            if (entry.leases > 0) {
+                continue;
+            }
+            eldest.remove();
+            totalBytes -= entry.bytes;
+            try {
+                deleteRecursively(entry.dir);
+            } catch (IOException e) {
+                log.warn("Error evicting compiled artifact {}: {}", entry.key, e.getMessage());
+            }
+        }
+    }
+
+    // Picks up entries left by a previous run; half-written ones are removed
+    private void loadIndex() throws IOException {
+        if (loaded) {
+            return;
+        }
+        Files.createDirectories(root);
+        List<Entry> found = new ArrayList<>();
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+            for (Path dir : dirs) {
+                Path marker = dir.resolve(COMPLETE_MARKER);
+                if (Files.isRegularFile(marker)) {
+                    long compileMillis = Long.parseLong(Files.readString(marker).trim());
+                    Entry entry = new Entry(dir.getFileName().toString(), dir, sizeOf(dir), compileMillis);
+                    entry.lastUsed = Files.getLastModifiedTime(marker).toMillis();
+                    found.add(entry);
+                } else {
+                    deleteRecursively(dir);
+                }
+            }
+        }
+        found.sort(Comparator.comparingLong(e -> e.lastUsed));
+        for (Entry entry : found) {
+            entries.put(entry.key, entry);
+            totalBytes += entry.bytes;
+        }
+        loaded = true;
+        evictIfNeeded();
+    }
+
+    private static String key(String language, List<String> flags, String source) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(language.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(String.join(" ", flags).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(source.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to hash source: " + e.getMessage());
+        }
+    }
+
+    private static long sizeOf(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).sum();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public static final class Artifact implements AutoCloseable {
+        private final CompilationCache cache;
+        private final Entry entry;
+        private boolean closed;
+
+        private Artifact(CompilationCache cache, Entry entry) {
+            this.cache = cache;
+            this.entry = entry;
+        }
+
+        public Path getDirectory() {
+            return entry.dir;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                cache.release(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private final Path dir;
+        private final long bytes;
+        private final long compileMillis;
+        private long lastUsed;
+        private int leases;
+
+        private Entry(String key, Path dir, long bytes, long compileMillis) {
+            this.key = key;
+            this.dir = dir;
+            this.bytes = bytes;
+            this.compileMillis = compileMillis;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.collab.editor.execution;
+
+import com.collab.editor.logging.LogThrottle;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.function.Consumer;
+
+// Collects a run's output lines for the final result and forwards them to a
+// listener as chunks while the program is still running. Chunks go out at most
+// once per flush interval, so a program printing in a tight loop produces a
+// steady trickle of frames rather than one per line. Output past maxChars
+// characters is cut off and ends the run.
+@Slf4j
+public class ExecutionOutput implements Consumer<String>, AutoCloseable {
+
+    public static class LimitExceededException extends RuntimeException {
+        public LimitExceededException(int maxChars) {
+            super("Output limit of " + maxChars + " characters exceeded");
+        }
+    }
+
+    // Shared by all runs; a listener that keeps failing would otherwise log every chunk
+    private static final LogThrottle FORWARD_ERRORS = new LogThrottle();
+
+    private final int maxChars;
+    private final long flushIntervalMillis;
+    private final Consumer<String> listener;
+
+    // Guarded by this
+    private final StringBuilder text = new StringBuilder();
+    private final StringBuilder pending = new StringBuilder();
+    private boolean truncated;
+    private boolean closed;
+
+    private final Thread flusher;
+
+    public ExecutionOutput(int maxChars, long flushIntervalMillis, Consumer<String> listener) {
+        this.maxChars = maxChars;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.listener = listener;
+        this.flusher = listener != null ? Thread.ofVirtual().start(this::flushPeriodically) : null;
+    }
+
+    @Override
+    public void accept(String line) {
+        synchronized (this) {
+            if (truncated) {
+                throw new LimitExceededException(maxChars);
+            }
+            if (text.length() + line.length() + 1 > maxChars) {
+                truncated = true;
+                int room = Math.max(0, maxChars - text.length() - 1);
+                line = line.substring(0, Math.min(line.length(), room));
+            }
+            if (!text.isEmpty()) {
+                text.append('\n');
+            }
+            text.append(line);
+            if (listener != null) {
+                pending.append(line).append('\n');
+            }
+            if (!truncated) {
+                return;
+            }
+        }
+        throw new LimitExceededException(maxChars);
+    }
+
+    private void flushPeriodically() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                Thread.sleep(flushIntervalMillis);
+                flush();
+            }
+        } catch (InterruptedException ignored) {
+            // Closed, the last chunk is flushed by close
+        }
+    }
+
+    private void flush() {
+        String chunk;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            chunk = pending.toString();
+            pending.setLength(0);
+        }
+        try {
+            listener.accept(chunk);
+        } catch (RuntimeException e) {
+            FORWARD_ERRORS.warn(log, "Error forwarding execution output: {}", e.getMessage());
+        }
+    }
+
+    public synchronized String getText() {
+        return text.toString();
+    }
+
+    public synchronized boolean isTruncated() {
+        return truncated;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        if (flusher != null) {
+            flusher.interrupt();
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flush();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.collab.editor.execution;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+// A warm runtime process that runs one job at a time. A job is a single request
+// line "<nonce> <request>" on the worker's stdin, with a fresh random nonce per
+// job. The worker sends the program's output as "O <length>\n<bytes>" frames on
+// stdout and ends the job with "E <nonce> <status> <clean>". Program output cannot
+// end a job early: it is framed, and writes that bypass the framing break the
+// protocol, which fails the job and destroys the worker. clean is 0 when the job
+// left something running, so the worker must not take another one; the same goes
+// for a job that left processes behind. The worker's own dir is emptied after
+// every job, so jobs that cannot change directory still start in a clean one.
+class ExecutionWorker {
+
+    private static final int MAX_HEADER_BYTES = 128;
+    private static final int MAX_FRAME_BYTES = 16 << 20;
+
+    private final Process process;
+    private final Sandbox sandbox;
+    private final Path workDir;
+    private final BufferedWriter stdin;
+    private final InputStream stdout;
+    private String owner;
+    private boolean reusable = true;
+    private int runs;
+
+    private ExecutionWorker(Process process, Sandbox sandbox, Path workDir) {
+        this.process = process;
+        this.sandbox = sandbox;
+        this.workDir = workDir;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+        this.stdout = new BufferedInputStream(process.getInputStream());
+    }
+
+    // The worker starts in its own work dir, removed again when it is destroyed
+    static ExecutionWorker start(List<String> command, Sandbox sandbox) throws IOException {
+        Path workDir = sandbox.createWorkDir();
+        ProcessBuilder pb = new ProcessBuilder(command);
+        pb.directory(workDir.toFile());
+        pb.redirectErrorStream(true);
+        pb.environment().put("PYTHONIOENCODING", "utf-8");
+        try {
+            return new ExecutionWorker(sandbox.start(pb), sandbox, workDir);
+        } catch (IOException e) {
+            sandbox.deleteWorkDir(workDir);
+            throw e;
+        }
+    }
+
+    // Sends one request and passes each output line to the consumer; returns the job's exit status
+    int run(String request, long timeoutMillis, Consumer<String> output) throws IOException {
+        if (!request.isEmpty()) {
+            runs++;
+        }
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread watchdog = Thread.ofVirtual().start(() -> {
+            try {
+                Thread.sleep(timeoutMillis);
+                timedOut.set(true);
+                sandbox.destroy(process);
+            } catch (InterruptedException ignored) {
+                // Job finished in time
+            }
+        });
+        try {
+            String nonce = UUID.randomUUID().toString();
+            stdin.write(nonce + " " + request);
+            stdin.newLine();
+            stdin.flush();
+
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            String header;
+            while ((header = readHeader()) != null) {
+                String[] fields = header.split(" ");
+                if (fields.length == 2 && fields[0].equals("O")) {
+                    int length = parseField(fields[1]);
+                    if (length < 0 || length > MAX_FRAME_BYTES) {
+                        throw new IOException("Malformed output from worker");
+                    }
+                    byte[] bytes = stdout.readNBytes(length);
+                    for (byte b : bytes) {
+                        if (b == '\n') {
+                            emit(line, output);
+                        } else {
+                            line.write(b);
+                        }
+                    }
+                    if (bytes.length < length) {
+                        break;
+                    }
+                } else if (fields.length == 4 && fields[0].equals("E") && fields[1].equals(nonce)) {
+                    if (line.size() > 0) {
+                        emit(line, output);
+                    }
+                    reusable = fields[3].equals("1") && !sandbox.hasStrays(process);
+                    sandbox.clearWorkDir(workDir);
+                    return parseField(fields[2]);
+                } else {
+                    throw new IOException("Malformed output from worker");
+                }
+            }
+
+            // The worker died during the job, e.g. killed by the watchdog or System.exit in user code
+            if (timedOut.get()) {
+                throw new RuntimeException("Execution timeout");
+            }
+            if (line.size() > 0) {
+                emit(line, output);
+            }
+            process.waitFor(1, TimeUnit.SECONDS);
+            return process.isAlive() ? 1 : process.exitValue();
+        } catch (IOException e) {
+            if (timedOut.get()) {
+                throw new RuntimeException("Execution timeout");
+            }
+            throw e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Execution interrupted");
+        } finally {
+            watchdog.interrupt();
+        }
+    }
+
+    // Null at end of stream
+    private String readHeader() throws IOException {
+        StringBuilder header = new StringBuilder();
+        int b;
+        while ((b = stdout.read()) != '\n') {
+            if (b < 0) {
+                return header.isEmpty() ? null : header.toString();
+            }
+            if (header.length() == MAX_HEADER_BYTES) {
+                throw new IOException("Malformed output from worker");
+            }
+            header.append((char) b);
+        }
+        return header.toString();
+    }
+
+    private static int parseField(String field) throws IOException {
+        try {
+            return Integer.parseInt(field);
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed output from worker");
+        }
+    }
+
+    private static void emit(ByteArrayOutputStream line, Consumer<String> output) {
+        String text = line.toString(StandardCharsets.UTF_8);
+        line.reset();
+        output.accept(text.endsWith("\r") ? text.substring(0, text.length() - 1) : text);
+    }
+
+    boolean ping(long timeoutMillis) {
+        try {
+            return run("", timeoutMillis, line -> { }) == 0;
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    int getRuns() {
+        return runs;
+    }
+
+    // False once a job left state behind that the next job could see
+    boolean isReusable() {
+        return reusable;
+    }
+
+    // The room and user whose jobs this worker ran, for runtimes that cannot isolate jobs
+    String getOwner() {
+        return owner;
+    }
+
+    void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    void destroy() {
+        sandbox.destroy(process);
+        try {
+            process.waitFor(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        sandbox.deleteWorkDir(workDir);
+    }
+}
@@ -0,0 +1,162 @@
+package com.collab.editor.execution;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+// Warm runtimes for CodeExecutionService: a persistent python3 worker that forks
+// a child per job, a node worker that runs each job in a fresh global scope, and
+// a long-lived JVM that runs classes compiled in-process. This avoids paying
+// interpreter and JVM startup on every Run click. Node and the JVM cannot keep
+// one job from seeing another's state, so their workers are kept per owner, the
+// room and user a job runs for. Workers run under the sandbox's limits, and each
+// job runs in the per-run work dir it is given (the JVM cannot change its working
+// directory, so Java jobs run in their worker's dir, emptied after every job).
+@Component
+public class ExecutionWorkers {
+
+    private static final long HEALTH_CHECK_TIMEOUT_MS = 2000;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final Sandbox sandbox;
+    private final int poolSize;
+    private final int maxWorkers;
+    private final int maxRuns;
+
+    private volatile WorkerPool pythonPool;
+    private volatile WorkerPool nodePool;
+    private volatile WorkerPool javaPool;
+
+    // Every job the scheduler admits may be in the same language, so each pool can
+    // grow to max-concurrent workers; only poolSize of them are started ahead of time
+    public ExecutionWorkers(Sandbox sandbox,
+                            @Value("${editor.execution.pool.size:2}") int poolSize,
+                            @Value("${editor.execution.pool.max-runs:100}") int maxRuns,
+                            @Value("${editor.execution.max-concurrent:0}") int maxConcurrent) {
+        this.sandbox = sandbox;
+        int concurrency = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.maxWorkers = Math.max(poolSize, concurrency);
+        this.poolSize = poolSize;
+        this.maxRuns = maxRuns;
+    }
+
+    public int runPython(String owner, String code, Path workDir, long timeoutMillis, Consumer<String> output)
+            throws IOException {
+        return pythonPool().run(owner, scriptRequest(code, workDir), timeoutMillis, output);
+    }
+
+    public int runJavaScript(String owner, String code, Path workDir, long timeoutMillis, Consumer<String> output)
+            throws IOException {
+        return nodePool().run(owner, scriptRequest(code, workDir), timeoutMillis, output);
+    }
+
+    // Runs main of a class compiled into classDir
+    public int runJava(String owner, Path classDir, String className, long timeoutMillis, Consumer<String> output)
+            throws IOException {
+        return javaPool().run(owner, classDir.toAbsolutePath() + "\t" + className, timeoutMillis, output);
+    }
+
+    private String scriptRequest(String code, Path workDir) {
+        return objectMapper.writeValueAsString(Map.of("code", code, "cwd", workDir.toAbsolutePath().toString()));
+    }
+
+    // Pools are created on first use so the app starts without any runtime installed
+    private synchronized WorkerPool pythonPool() {
+        if (pythonPool == null) {
+            List<String> command = List.of("python3", "-u", "-c", readScript("execution/python_worker.py"));
+            pythonPool = pool("python", sandbox.limit(command, true, false), true);
+        }
+        return pythonPool;
+    }
+
+    private synchronized WorkerPool nodePool() {
+        if (nodePool == null) {
+            List<String> command = new ArrayList<>(List.of("node"));
+            if (sandbox.isEnabled()) {
+                command.add("--max-old-space-size=" + sandbox.getHeapMb());
+            }
+            command.addAll(List.of("-e", readScript("execution/node_worker.js")));
+            nodePool = pool("javascript", sandbox.limit(command, false, false), false);
+        }
+        return nodePool;
+    }
+
+    private synchronized WorkerPool javaPool() throws IOException {
+        if (javaPool == null) {
+            String java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+            List<String> command = new ArrayList<>(List.of(java, "-XX:+UseSerialGC"));
+            if (sandbox.isEnabled()) {
+                command.add("-Xmx" + sandbox.getHeapMb() + "m");
+            }
+            command.addAll(List.of("-cp", extractJavaWorker().toString(), JavaWorkerMain.class.getName()));
+            javaPool = pool("java", sandbox.limit(command, false, false), false);
+        }
+        return javaPool;
+    }
+
+    private WorkerPool pool(String language, List<String> command, boolean isolatesJobs) {
+        return new WorkerPool(language, command, sandbox, poolSize, maxWorkers, maxRuns, isolatesJobs);
+    }
+
+    // The worker JVM only needs JavaWorkerMain and its nested classes, which are
+    // copied out of the app's own classpath
+    private Path extractJavaWorker() throws IOException {
+        Path dir = Files.createTempDirectory("java_worker");
+        dir.toFile().deleteOnExit();
+        List<Class<?>> classes = new ArrayList<>(List.of(JavaWorkerMain.class));
+        classes.addAll(List.of(JavaWorkerMain.class.getDeclaredClasses()));
+        for (Class<?> type : classes) {
+            String resource = type.getName().replace('.', '/') + ".class";
+            Path target = dir.resolve(resource);
+            Files.createDirectories(target.getParent());
+            try (InputStream in = JavaWorkerMain.class.getClassLoader().getResourceAsStream(resource)) {
+                if (in == null) {
+                    throw new IOException("Missing " + resource);
+                }
+                Files.copy(in, target);
+            }
+        }
+        return dir;
+    }
+
+    private String readScript(String resource) {
+        try (InputStream in = getClass().getClassLoader().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new IOException("Missing " + resource);
+            }
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to load worker script: " + e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${editor.execution.pool.health-check-interval-ms:30000}")
+    public void healthCheck() {
+        for (WorkerPool pool : new WorkerPool[]{pythonPool, nodePool, javaPool}) {
+            if (pool != null) {
+                pool.healthCheck(HEALTH_CHECK_TIMEOUT_MS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (WorkerPool pool : new WorkerPool[]{pythonPool, nodePool, javaPool}) {
+            if (pool != null) {
+                pool.close();
+            }
+        }
+    }
+}
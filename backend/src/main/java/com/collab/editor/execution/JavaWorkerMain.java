@@ -0,0 +1,92 @@
+package com.collab.editor.execution;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Set;
+
+// Entry point of the long-lived Java worker JVM. Runs on its own classpath, so
+// it only uses the JDK. Each line on stdin is "<nonce> <classDir>\t<className>";
+// the class is loaded in a fresh class loader so static state does not leak from
+// one run to the next. Output goes out as "O <length>\n<bytes>" frames and the
+// job ends with "E <nonce> <status> <clean>", where clean is 0 if the job left
+// threads running. A request without a class is a health check.
+public final class JavaWorkerMain {
+
+    private JavaWorkerMain() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        PrintStream out = System.out;
+        PrintStream framed = new PrintStream(new FrameOutputStream(out), true, StandardCharsets.UTF_8);
+        System.setIn(new ByteArrayInputStream(new byte[0]));
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            int space = line.indexOf(' ');
+            String nonce = line.substring(0, Math.max(space, 0));
+            String request = line.substring(space + 1);
+            Set<Thread> threads = Thread.getAllStackTraces().keySet();
+            System.setOut(framed);
+            System.setErr(framed);
+            int status = 0;
+            int tab = request.indexOf('\t');
+            if (tab > 0) {
+                status = run(Path.of(request.substring(0, tab)), request.substring(tab + 1));
+            }
+            framed.flush();
+            boolean clean = threads.containsAll(Thread.getAllStackTraces().keySet());
+            out.print("E " + nonce + " " + status + " " + (clean ? 1 : 0) + "\n");
+            out.flush();
+        }
+    }
+
+    private static int run(Path classDir, String className) {
+        try (URLClassLoader loader = new URLClassLoader(
+                new URL[]{classDir.toUri().toURL()}, ClassLoader.getPlatformClassLoader())) {
+            Method main = loader.loadClass(className).getMethod("main", String[].class);
+            main.invoke(null, (Object) new String[0]);
+            return 0;
+        } catch (InvocationTargetException e) {
+            e.getCause().printStackTrace();
+            return 1;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    // Wraps every write in an "O <length>" frame on the real stdout
+    private static final class FrameOutputStream extends OutputStream {
+        private final OutputStream out;
+
+        private FrameOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            out.write(("O " + len + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.collab.editor.execution;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+// Resource limits for user programs, so a fork bomb or a runaway allocation
+// only takes down its own run. Every runtime process gets its own cgroup v2
+// child of the configured directory, capping its memory and pids whatever the
+// runtime and whichever user the server runs as, and its whole process tree,
+// double-forked strays included, is killed through that cgroup. The parent
+// cgroup caps all of them together so execution cannot starve the editor
+// itself. The cgroup is set up on first use; without one, or if it is not
+// usable, only the prlimit limits apply and a warning says so. On top,
+// processes are started through prlimit with a
+// file-size limit; python and native programs also get an address-space limit,
+// and only one-shot processes a CPU-time limit, since warm workers accumulate
+// CPU time across jobs; their jobs are bounded by the run timeout. Each run gets
+// its own working directory on tmpfs, removed afterwards even when it timed out.
+@Slf4j
+@Component
+public class Sandbox {
+
+    // Blocks until the process has been moved into its cgroup, so nothing it runs can fork outside of it
+    private static final List<String> CGROUP_GATE = List.of("sh", "-c", "read -r _ && exec \"$@\"", "sandbox");
+    private static final int CGROUP_REMOVE_ATTEMPTS = 100;
+
+    private final boolean enabled;
+    private final long memoryBytes;
+    private final int maxProcesses;
+    private final long maxFileBytes;
+    private final int cpuSeconds;
+    private final Path workRoot;
+    private final Path cgroup;
+    private final long memoryMb;
+    private final long cgroupMemoryMb;
+    private final String cgroupCpuMax;
+
+    // Each running process's own cgroup
+    private final Map<Long, Path> processCgroups = new ConcurrentHashMap<>();
+
+    private volatile Boolean prlimitAvailable;
+    private volatile Boolean cgroupReady;  // Null until the first process starts
+
+    public Sandbox(@Value("${editor.execution.sandbox.enabled:true}") boolean enabled,
+                   @Value("${editor.execution.sandbox.memory-mb:512}") long memoryMb,
+                   @Value("${editor.execution.sandbox.max-processes:256}") int maxProcesses,
+                   @Value("${editor.execution.sandbox.max-file-mb:16}") long maxFileMb,
+                   @Value("${editor.execution.sandbox.cpu-seconds:10}") int cpuSeconds,
+                   @Value("${editor.execution.sandbox.work-dir:}") String workDir,
+                   @Value("${editor.execution.sandbox.cgroup:}") String cgroup,
+                   @Value("${editor.execution.sandbox.cgroup-memory-mb:2048}") long cgroupMemoryMb,
+                   @Value("${editor.execution.sandbox.cgroup-cpu-max:max 100000}") String cgroupCpuMax) {
+        this.enabled = enabled;
+        this.memoryMb = memoryMb;
+        this.memoryBytes = memoryMb * 1024 * 1024;
+        this.maxProcesses = maxProcesses;
+        this.maxFileBytes = maxFileMb * 1024 * 1024;
+        this.cpuSeconds = cpuSeconds;
+        this.workRoot = workDir.isEmpty() ? defaultWorkRoot() : Path.of(workDir);
+        this.cgroup = enabled && !cgroup.isEmpty() ? Path.of(cgroup) : null;
+        this.cgroupMemoryMb = cgroupMemoryMb;
+        this.cgroupCpuMax = cgroupCpuMax;
+        if (enabled && this.cgroup == null) {
+            log.warn("No execution cgroup configured, user programs only get prlimit limits: set "
+                + "editor.execution.sandbox.cgroup to a cgroup v2 directory delegated to this user");
+        }
+    }
+
+    // tmpfs when the host has one, so scratch files never hit the shared disk
+    private static Path defaultWorkRoot() {
+        Path shm = Path.of("/dev/shm");
+        Path base = Files.isDirectory(shm) && Files.isWritable(shm) ? shm : Path.of(System.getProperty("java.io.tmpdir"));
+        return base.resolve("editor-exec");
+    }
+
+    private boolean isCgroupReady() {
+        if (cgroup == null) {
+            return false;
+        }
+        if (cgroupReady == null) {
+            synchronized (this) {
+                if (cgroupReady == null) {
+                    cgroupReady = setUpCgroup();
+                }
+            }
+        }
+        return cgroupReady;
+    }
+
+    // Per-process cgroups below this one get the memory and pids controllers
+    private boolean setUpCgroup() {
+        try {
+            Files.createDirectories(cgroup);
+            Files.writeString(cgroup.resolve("cgroup.subtree_control"), "+memory +pids");
+            Files.writeString(cgroup.resolve("memory.max"), Long.toString(cgroupMemoryMb * 1024 * 1024));
+            Files.writeString(cgroup.resolve("cpu.max"), cgroupCpuMax);
+            return true;
+        } catch (IOException e) {
+            log.warn("Execution cgroup {} is not usable, user programs only get prlimit limits: {}", cgroup,
+                e.getMessage());
+            return false;
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public long getMemoryMb() {
+        return memoryMb;
+    }
+
+    // Heap limit for runtimes with their own, leaving the rest of the cgroup's memory to the runtime itself
+    public long getHeapMb() {
+        return memoryMb * 3 / 4;
+    }
+
+    // Prefixes the command with prlimit
+    public List<String> limit(List<String> command, boolean limitAddressSpace, boolean limitCpuTime) {
+        if (!enabled || !isPrlimitAvailable()) {
+            return command;
+        }
+        List<String> limited = new ArrayList<>(List.of("prlimit", "--fsize=" + maxFileBytes));
+        if (limitAddressSpace) {
+            limited.add("--as=" + memoryBytes);
+        }
+        if (limitCpuTime) {
+            limited.add("--cpu=" + cpuSeconds);
+        }
+        limited.add("--");
+        limited.addAll(command);
+        return limited;
+    }
+
+    // Starts the process in a cgroup of its own; its stdin is free for the caller once this returns
+    public Process start(ProcessBuilder pb) throws IOException {
+        Files.createDirectories(workRoot);
+        pb.environment().put("TMPDIR", workRoot.toString());
+        if (!enabled || !isCgroupReady()) {
+            return pb.start();
+        }
+        List<String> gated = new ArrayList<>(CGROUP_GATE);
+        gated.addAll(pb.command());
+        pb.command(gated);
+
+        Path processCgroup = cgroup.resolve("run-" + UUID.randomUUID());
+        Files.createDirectory(processCgroup);
+        Process process;
+        try {
+            Files.writeString(processCgroup.resolve("memory.max"), Long.toString(memoryBytes));
+            Files.writeString(processCgroup.resolve("pids.max"), Integer.toString(maxProcesses));
+            process = pb.start();
+        } catch (IOException e) {
+            removeCgroup(processCgroup);
+            throw e;
+        }
+        processCgroups.put(process.pid(), processCgroup);
+        try {
+            Files.writeString(processCgroup.resolve("cgroup.procs"), Long.toString(process.pid()));
+            process.getOutputStream().write('\n');
+            process.getOutputStream().flush();
+        } catch (IOException e) {
+            destroy(process);
+            throw new IOException("Error moving process into its cgroup: " + e.getMessage());
+        }
+        return process;
+    }
+
+    public Path createWorkDir() throws IOException {
+        Files.createDirectories(workRoot);
+        return Files.createTempDirectory(workRoot, "run-");
+    }
+
+    // Kills the process and anything it forked, which would otherwise outlive it,
+    // and removes its cgroup
+    public void destroy(Process process) {
+        Path processCgroup = processCgroups.remove(process.pid());
+        if (processCgroup != null) {
+            killCgroup(processCgroup);
+        }
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+        if (processCgroup != null) {
+            removeCgroup(processCgroup);
+        }
+    }
+
+    // True if the process left anything running besides itself, e.g. a double-forked child
+    public boolean hasStrays(Process process) {
+        Path processCgroup = processCgroups.get(process.pid());
+        if (processCgroup == null) {
+            return process.descendants().findAny().isPresent();
+        }
+        try (Stream<String> pids = Files.lines(processCgroup.resolve("cgroup.procs"))) {
+            return pids.anyMatch(pid -> !pid.equals(Long.toString(process.pid())));
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    // cgroup.kill needs Linux 5.14; before that, kill the members until none are left
+    private static void killCgroup(Path processCgroup) {
+        try {
+            Files.writeString(processCgroup.resolve("cgroup.kill"), "1");
+            return;
+        } catch (IOException e) {
+            // Fall through
+        }
+        for (int attempt = 0; attempt < CGROUP_REMOVE_ATTEMPTS; attempt++) {
+            List<String> pids;
+            try {
+                pids = Files.readAllLines(processCgroup.resolve("cgroup.procs"));
+            } catch (IOException e) {
+                return;
+            }
+            if (pids.isEmpty()) {
+                return;
+            }
+            pids.forEach(pid -> ProcessHandle.of(Long.parseLong(pid.trim())).ifPresent(ProcessHandle::destroyForcibly));
+            if (!backOff()) {
+                return;
+            }
+        }
+    }
+
+    // A cgroup can only be removed once its processes are gone, which takes a moment after the kill
+    private static void removeCgroup(Path processCgroup) {
+        for (int attempt = 0; attempt < CGROUP_REMOVE_ATTEMPTS; attempt++) {
+            try {
+                Files.deleteIfExists(processCgroup);
+                return;
+            } catch (IOException e) {
+                if (!backOff()) {
+                    break;
+                }
+            }
+        }
+        log.warn("Error removing cgroup {}", processCgroup);
+    }
+
+    // Gives killed processes a moment to exit; false if interrupted
+    private static boolean backOff() {
+        try {
+            Thread.sleep(10);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // Empties a worker's own dir between jobs, so each job starts with a clean one
+    public void clearWorkDir(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.filter(file -> !file.equals(dir))
+                .sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+        } catch (IOException e) {
+            log.warn("Error clearing work dir {}: {}", dir, e.getMessage());
+        }
+    }
+
+    public void deleteWorkDir(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            log.warn("Error removing work dir {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private boolean isPrlimitAvailable() {
+        if (prlimitAvailable == null) {
+            try {
+                Process probe = new ProcessBuilder("prlimit", "--version").redirectErrorStream(true).start();
+                probe.getInputStream().transferTo(OutputStream.nullOutputStream());
+                prlimitAvailable = probe.waitFor() == 0;
+            } catch (IOException e) {
+                prlimitAvailable = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            if (!prlimitAvailable) {
+                log.warn("prlimit not found, running code without resource limits");
+            }
+        }
+        return prlimitAvailable;
+    }
+}
@@ -0,0 +1,208 @@
+package com.collab.editor.execution;
+
+import lombok.extern.slf4j.Slf4j;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Pool of warm workers for one language. Workers are started on first use and
+// the pool then fills up to its size in the background; under load it starts
+// more, up to maxWorkers. A worker is replaced after maxRuns jobs, after a job
+// that left state behind, or as soon as it dies or fails a health check. Unless
+// the runtime isolates jobs from each other, a worker only ever runs jobs of one
+// owner: another owner gets a fresh worker, replacing an idle one if the pool is
+// at maxWorkers.
+@Slf4j
+class WorkerPool implements AutoCloseable {
+
+    private final String language;
+    private final List<String> command;
+    private final Sandbox sandbox;
+    private final int size;
+    private final int maxWorkers;
+    private final int maxRuns;
+    private final boolean isolatesJobs;
+
+    // Guarded by this; least recently released first
+    private final Deque<ExecutionWorker> idle = new ArrayDeque<>();
+    private int workers;  // Started or starting, and not yet destroyed
+    private volatile boolean closed;
+
+    WorkerPool(String language, List<String> command, Sandbox sandbox, int size, int maxWorkers, int maxRuns,
+               boolean isolatesJobs) {
+        this.language = language;
+        this.command = command;
+        this.sandbox = sandbox;
+        this.size = size;
+        this.maxWorkers = maxWorkers;
+        this.maxRuns = maxRuns;
+        this.isolatesJobs = isolatesJobs;
+    }
+
+    int run(String owner, String request, long timeoutMillis, Consumer<String> output) throws IOException {
+        ExecutionWorker worker = acquire(owner, timeoutMillis);
+        boolean healthy = false;
+        try {
+            int status = worker.run(request, timeoutMillis, output);
+            healthy = true;
+            return status;
+        } finally {
+            release(worker, healthy);
+        }
+    }
+
+    private ExecutionWorker acquire(String owner, long timeoutMillis) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        ExecutionWorker replaced = null;
+        synchronized (this) {
+            while (true) {
+                ExecutionWorker worker = takeIdle(owner);
+                if (worker != null) {
+                    worker.setOwner(owner);
+                    return worker;
+                }
+                if (workers < maxWorkers) {
+                    workers++;
+                    break;
+                }
+                // Only workers of other owners are idle; start a fresh one in place of the eldest
+                replaced = idle.pollFirst();
+                if (replaced != null) {
+                    break;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new RuntimeException("No " + language + " worker available");
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Execution interrupted");
+                }
+            }
+        }
+        if (replaced != null) {
+            replaced.destroy();
+        }
+        ExecutionWorker worker;
+        try {
+            worker = ExecutionWorker.start(command, sandbox);
+        } catch (IOException e) {
+            synchronized (this) {
+                workers--;
+                notifyAll();
+            }
+            throw e;
+        }
+        worker.setOwner(owner);
+        replenish();
+        return worker;
+    }
+
+    // Prefers a worker that already ran this owner's jobs, then a fresh one
+    private ExecutionWorker takeIdle(String owner) {
+        if (isolatesJobs) {
+            return idle.pollFirst();
+        }
+        ExecutionWorker fresh = null;
+        for (Iterator<ExecutionWorker> it = idle.iterator(); it.hasNext(); ) {
+            ExecutionWorker worker = it.next();
+            if (Objects.equals(worker.getOwner(), owner)) {
+                it.remove();
+                return worker;
+            }
+            if (fresh == null && worker.getOwner() == null) {
+                fresh = worker;
+            }
+        }
+        if (fresh != null) {
+            idle.remove(fresh);
+        }
+        return fresh;
+    }
+
+    private void release(ExecutionWorker worker, boolean healthy) {
+        if (!closed && healthy && worker.isAlive() && worker.isReusable() && worker.getRuns() < maxRuns) {
+            synchronized (this) {
+                idle.addLast(worker);
+                notifyAll();
+            }
+        } else {
+            discard(worker);
+        }
+    }
+
+    private void discard(ExecutionWorker worker) {
+        worker.destroy();
+        synchronized (this) {
+            workers--;
+            notifyAll();
+        }
+        replenish();
+    }
+
+    // Starts workers in the background until the pool is full again
+    private void replenish() {
+        Thread.ofVirtual().name(language + "-worker-init").start(() -> {
+            while (!closed) {
+                synchronized (this) {
+                    if (workers >= size) {
+                        return;
+                    }
+                    workers++;
+                }
+                try {
+                    ExecutionWorker worker = ExecutionWorker.start(command, sandbox);
+                    synchronized (this) {
+                        idle.addLast(worker);
+                        notifyAll();
+                    }
+                } catch (IOException e) {
+                    synchronized (this) {
+                        workers--;
+                        notifyAll();
+                    }
+                    log.warn("Error starting {} worker: {}", language, e.getMessage());
+                    return;
+                }
+            }
+        });
+    }
+
+    void healthCheck(long timeoutMillis) {
+        List<ExecutionWorker> checked;
+        synchronized (this) {
+            checked = new ArrayList<>(idle);
+            idle.clear();
+        }
+        for (ExecutionWorker worker : checked) {
+            if (worker.isAlive() && worker.ping(timeoutMillis)) {
+                synchronized (this) {
+                    idle.addLast(worker);
+                    notifyAll();
+                }
+            } else {
+                log.warn("Replacing unhealthy {} worker", language);
+                discard(worker);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        List<ExecutionWorker> remaining;
+        synchronized (this) {
+            remaining = new ArrayList<>(idle);
+            idle.clear();
+        }
+        remaining.forEach(ExecutionWorker::destroy);
+    }
+}
@@ -0,0 +1,57 @@
+package com.collab.editor.logging;
+
+import org.slf4j.Logger;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lets one warning per interval through for a call site that can fail once per
+// message, e.g. every edit of a broken document or every frame for a dead peer,
+// and counts the rest. The next warning let through reports how many were
+// suppressed, so the rate is still visible without flooding the log.
+public final class LogThrottle {
+
+    private static final Duration DEFAULT_INTERVAL = Duration.ofSeconds(10);
+
+    private final long intervalNanos;
+    private final AtomicLong nextAllowed;
+    private final AtomicLong suppressed = new AtomicLong();
+
+    public LogThrottle() {
+        this(DEFAULT_INTERVAL);
+    }
+
+    public LogThrottle(Duration interval) {
+        this.intervalNanos = interval.toNanos();
+        this.nextAllowed = new AtomicLong(System.nanoTime());
+    }
+
+    // Number of messages suppressed since the last one let through, or -1 if this one is suppressed too
+    public long acquire() {
+        long now = System.nanoTime();
+        long next = nextAllowed.get();
+        if (now - next >= 0 && nextAllowed.compareAndSet(next, now + intervalNanos)) {
+            return suppressed.getAndSet(0);
+        }
+        suppressed.incrementAndGet();
+        return -1;
+    }
+
+    public void warn(Logger log, String format, Object... args) {
+        if (!log.isWarnEnabled()) {
+            return;
+        }
+        long count = acquire();
+        if (count < 0) {
+            return;
+        }
+        if (count == 0) {
+            log.warn(format, args);
+        } else {
+            Object[] withCount = Arrays.copyOf(args, args.length + 1);
+            withCount[args.length] = count;
+            log.warn(format + " ({} similar messages suppressed)", withCount);
+        }
+    }
+}
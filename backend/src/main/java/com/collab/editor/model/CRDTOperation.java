@@ -1,10 +1,13 @@
 package com.collab.editor.model;
 
+import com.collab.editor.crdt.CRDTId;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.Map;
+
 @Data
 @Builder
 @NoArgsConstructor
@@ -12,14 +15,26 @@ import lombok.NoArgsConstructor;
 public class CRDTOperation {
 	
     private String operationId;
+    private CRDTId id;        // Assigned from position on the server when the client did not send one
+    private CRDTId originId;  // INSERT, INSERT_TEXT: character the new one goes after, null for the document start
+    private CRDTId targetId;  // DELETE: character being removed; DELETE_RANGE: first character of the range
     private String userId;
     private OperationType type;
     private int position;
-    private String character;
+    private String character;  // INSERT_TEXT: the whole text, its characters get consecutive counters from id
     private long timestamp;
-    private int[] vectorClock;
+    private Map<String, Long> vectorClock;  // DELETE_RANGE: issuer's clock, only characters it covers are removed
+    private CRDTId endId;     // DELETE_RANGE: last character of the range
+    private int length;       // DELETE_RANGE: number of visible characters from position
     
     public enum OperationType {
-        INSERT, DELETE
+        INSERT, DELETE, INSERT_TEXT, DELETE_RANGE
+    }
+    
+    // Counter of the last character the operation creates
+    public long lastCounter() {
+        return type == OperationType.INSERT_TEXT && character != null && !character.isEmpty()
+            ? id.getCounter() + character.length() - 1
+            : id.getCounter();
     }
 }
\ No newline at end of file
@@ -1,10 +1,11 @@
 package com.collab.editor.model;
 
-import com.collab.editor.crdt.CRDTDocument;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.time.LocalDateTime;
@@ -13,13 +14,18 @@ import java.time.LocalDateTime;
 @NoArgsConstructor
 @AllArgsConstructor
 @Document(collection = "code_files")
+@CompoundIndex(name = "room_file", def = "{'roomId': 1, 'fileId': 1}", unique = true)
 public class CodeFile {
     @Id
     private String id;  // MongoDB document ID
+    private String roomId;
     private String fileId;  // Application-level file ID
     private String fileName;
     private String language;
     private String content;
-    private CRDTDocument crdtState;
+    @JsonIgnore
+    private byte[] crdtSnapshot;  // CRDTSnapshotCodec bytes, see OperationLogEntry for later edits
+    @JsonIgnore
+    private long snapshotSequence;  // Last operation log sequence folded into the snapshot
     private LocalDateTime lastModified;
-}
\ No newline at end of file
+}
@@ -0,0 +1,32 @@
+package com.collab.editor.model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.concurrent.CompletableFuture;
+
+// A Run request queued in ExecutionSchedulerService. Kept in memory only, so
+// clients can poll it until it completes and for a few minutes after.
+@Data
+@NoArgsConstructor
+public class ExecutionJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED
+    }
+
+    private String id;
+    private String roomId;
+    private String userId;
+    private String language;
+    @JsonIgnore
+    private String code;
+    private volatile Status status;
+    private volatile ExecutionResult result;
+    private long submittedAt;
+    private long startedAt;
+    private long finishedAt;
+    @JsonIgnore
+    private final CompletableFuture<ExecutionResult> completion = new CompletableFuture<>();
+}
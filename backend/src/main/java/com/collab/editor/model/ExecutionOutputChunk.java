@@ -0,0 +1,14 @@
+package com.collab.editor.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+// Output printed by a running job since the previous chunk, published while it runs
+@Data
+@AllArgsConstructor
+public class ExecutionOutputChunk {
+    private String jobId;
+    private String roomId;
+    private String userId;
+    private String output;
+}
@@ -13,12 +13,13 @@ public class ExecutionResult {
     private String output;
     private String error;
     private long executionTime;
+    private Integer exitCode;  // Null when the program never ran, e.g. a compilation error
     
     public static ExecutionResult success(String output) {
-        return new ExecutionResult(true, output, null, 0);
+        return new ExecutionResult(true, output, null, 0, 0);
     }
     
     public static ExecutionResult error(String error) {
-        return new ExecutionResult(false, null, error, 0);
+        return new ExecutionResult(false, null, error, 0, null);
     }
 }
\ No newline at end of file
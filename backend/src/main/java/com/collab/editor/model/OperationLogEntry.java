@@ -0,0 +1,24 @@
+package com.collab.editor.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+// One applied CRDT operation of a file. Entries up to the file's
+// snapshotSequence are covered by its snapshot and get pruned.
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@Document(collection = "code_file_operations")
+@CompoundIndex(name = "room_file_sequence", def = "{'roomId': 1, 'fileId': 1, 'sequence': 1}", unique = true)
+public class OperationLogEntry {
+    @Id
+    private String id;
+    private String roomId;
+    private String fileId;
+    private long sequence;
+    private CRDTOperation operation;
+}
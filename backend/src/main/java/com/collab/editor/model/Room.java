@@ -2,9 +2,11 @@ package com.collab.editor.model;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import lombok.AllArgsConstructor;
@@ -22,8 +24,9 @@ public class Room {
 	@Id
     private String roomId;
     private String name;
-    private Set<String> activeUserIds;
-    private List<CodeFile> files;
+    private Map<String, Set<String>> activeUsers;  // Node -> users connected through it
+    @Transient
+    private List<CodeFile> files;  // Stored in code_files, filled in by RoomService.getRoom
     private LocalDateTime createdAt;
     private LocalDateTime lastModified;
 }
@@ -10,5 +10,7 @@ import java.util.Optional;
 @Repository
 public interface CodeFileRepository extends MongoRepository<CodeFile, String> {
     Optional<CodeFile> findByFileId(String fileId);
+    Optional<CodeFile> findByRoomIdAndFileId(String roomId, String fileId);
+    List<CodeFile> findByRoomId(String roomId);
     List<CodeFile> findByFileNameContaining(String fileName);
-}
\ No newline at end of file
+}
@@ -0,0 +1,13 @@
+package com.collab.editor.repository;
+
+import com.collab.editor.model.OperationLogEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface OperationLogRepository extends MongoRepository<OperationLogEntry, String> {
+    List<OperationLogEntry> findByRoomIdAndFileIdAndSequenceGreaterThanOrderBySequenceAsc(String roomId, String fileId, long sequence);
+    void deleteByRoomIdAndFileIdAndSequenceLessThanEqual(String roomId, String fileId, long sequence);
+}
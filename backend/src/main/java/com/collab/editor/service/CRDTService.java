@@ -1,46 +1,82 @@
 package com.collab.editor.service;
 
 import com.collab.editor.crdt.CRDTDocument;
-import com.collab.editor.exception.FileNotFoundException;
-import com.collab.editor.exception.RoomNotFoundException;
-import com.collab.editor.model.CodeFile;
+import com.collab.editor.crdt.CRDTSnapshotCodec;
 import com.collab.editor.model.CRDTOperation;
-import com.collab.editor.model.Room;
-import com.collab.editor.repository.RoomRepository;
-import lombok.RequiredArgsConstructor;
-
-import org.springframework.beans.factory.annotation.Autowired;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import org.springframework.stereotype.Service;
 
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 @Service
-@RequiredArgsConstructor
 public class CRDTService {
-    @Autowired
-    private RoomRepository roomRepository;
+    private final DocumentCacheService documentCache;
+    private final Map<CRDTOperation.OperationType, Timer> applyTimers = new EnumMap<>(CRDTOperation.OperationType.class);
+    
+    public CRDTService(DocumentCacheService documentCache, MeterRegistry meterRegistry) {
+        this.documentCache = documentCache;
+        for (CRDTOperation.OperationType type : CRDTOperation.OperationType.values()) {
+            applyTimers.put(type, Timer.builder("editor.crdt.apply")
+                .tag("type", type.name())
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+        }
+    }
+    
+    // Applied to the cached document; DocumentCacheService persists it in the background
+    public boolean applyOperation(String roomId, String fileId, CRDTOperation operation) {
+        Timer timer = operation.getType() != null ? applyTimers.get(operation.getType()) : null;
+        if (timer == null) {
+            return documentCache.apply(roomId, fileId, operation);
+        }
+        long start = System.nanoTime();
+        try {
+            return documentCache.apply(roomId, fileId, operation);
+        } finally {
+            timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
     
-    public void applyOperation(String roomId, String fileId, CRDTOperation operation) {
-        Room room = roomRepository.findByRoomId(roomId)
-            .orElseThrow(() -> new RoomNotFoundException(roomId));
-        
-        CodeFile file = room.getFiles().stream()
-            .filter(f -> f.getFileId().equals(fileId))
-            .findFirst()
-            .orElseThrow(() -> new FileNotFoundException(fileId));
-        
-        // Initialize CRDT state if null
-        if (file.getCrdtState() == null) {
-            file.setCrdtState(new CRDTDocument());
+    // Ops turning the document's text into content: one range delete and one insert
+    // between the unchanged prefix and suffix. Only valid until the document changes
+    // again, so callers apply them right away on the document's mailbox
+    public List<CRDTOperation> createReplaceOperations(String roomId, String fileId, String userId, String content) {
+        String text = documentCache.read(roomId, fileId, CRDTDocument::getText);
+        int prefix = 0;
+        int maxPrefix = Math.min(text.length(), content.length());
+        while (prefix < maxPrefix && text.charAt(prefix) == content.charAt(prefix)) {
+            prefix++;
         }
-        
-        // Apply CRDT operation
-        file.getCrdtState().applyOperation(operation);
-        file.setContent(file.getCrdtState().getText());
-        file.setLastModified(LocalDateTime.now());
-        
-        roomRepository.save(room);
+        int suffix = 0;
+        int maxSuffix = maxPrefix - prefix;
+        while (suffix < maxSuffix
+                && text.charAt(text.length() - 1 - suffix) == content.charAt(content.length() - 1 - suffix)) {
+            suffix++;
+        }
+        List<CRDTOperation> operations = new ArrayList<>(2);
+        int deleted = text.length() - prefix - suffix;
+        if (deleted > 0) {
+            operations.add(createDeleteRangeOperation(userId, prefix, deleted));
+        }
+        if (content.length() - prefix - suffix > 0) {
+            operations.add(createInsertTextOperation(userId, prefix, content.substring(prefix, content.length() - suffix)));
+        }
+        return operations;
+    }
+    
+    public Map<String, Long> getVectorClock(String roomId, String fileId) {
+        return documentCache.read(roomId, fileId, document -> new HashMap<>(document.getVectorClock()));
+    }
+    
+    public byte[] getCompressedSnapshot(String roomId, String fileId) {
+        return documentCache.read(roomId, fileId, document -> CRDTSnapshotCodec.encode(document, true));
     }
     
     public CRDTOperation createInsertOperation(String userId, int position, String character) {
@@ -54,6 +90,28 @@ public class CRDTService {
             .build();
     }
     
+    public CRDTOperation createInsertTextOperation(String userId, int position, String text) {
+        return CRDTOperation.builder()
+            .operationId(UUID.randomUUID().toString())
+            .userId(userId)
+            .type(CRDTOperation.OperationType.INSERT_TEXT)
+            .position(position)
+            .character(text)
+            .timestamp(System.currentTimeMillis())
+            .build();
+    }
+    
+    public CRDTOperation createDeleteRangeOperation(String userId, int position, int length) {
+        return CRDTOperation.builder()
+            .operationId(UUID.randomUUID().toString())
+            .userId(userId)
+            .type(CRDTOperation.OperationType.DELETE_RANGE)
+            .position(position)
+            .length(length)
+            .timestamp(System.currentTimeMillis())
+            .build();
+    }
+    
     public CRDTOperation createDeleteOperation(String userId, int position) {
         return CRDTOperation.builder()
             .operationId(UUID.randomUUID().toString())
@@ -63,4 +121,4 @@ public class CRDTService {
             .timestamp(System.currentTimeMillis())
             .build();
     }
-}
\ No newline at end of file
+}
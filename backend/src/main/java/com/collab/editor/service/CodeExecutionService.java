@@ -1,157 +1,223 @@
 package com.collab.editor.service;
 
+import com.collab.editor.execution.CompilationCache;
+import com.collab.editor.execution.ExecutionOutput;
+import com.collab.editor.execution.ExecutionWorkers;
+import com.collab.editor.execution.Sandbox;
 import com.collab.editor.model.ExecutionResult;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
 import java.io.*;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 @Service
+@RequiredArgsConstructor
 public class CodeExecutionService {
     
     private static final long TIMEOUT_SECONDS = 10;
+    private static final List<String> JAVA_FLAGS = List.of("-proc:none");
+    private static final List<String> CPP_FLAGS = List.of();
+    
+    private final ExecutionWorkers workers;
+    private final CompilationCache compilationCache;
+    private final Sandbox sandbox;
+    
+    @Value("${editor.execution.output.max-chars:1048576}")
+    private int maxOutputChars = 1048576;
+    
+    @Value("${editor.execution.output.flush-interval-ms:50}")
+    private long outputFlushIntervalMillis = 50;
     
     public ExecutionResult executeCode(String code, String language) {
+        return executeCode(code, language, null, null);
+    }
+    
+    // Streams output chunks to the listener, if any, while the program runs. Jobs
+    // of the same owner may share a warm worker; without one, the job gets its own.
+    public ExecutionResult executeCode(String code, String language, String owner, Consumer<String> outputListener) {
+        if (owner == null) {
+            owner = UUID.randomUUID().toString();
+        }
         long startTime = System.currentTimeMillis();
+        ExecutionOutput output = new ExecutionOutput(maxOutputChars, outputFlushIntervalMillis, outputListener);
+        Path workDir = null;
         try {
-            String output;
+            int exitCode;
             
+            // Scratch space for the program, on tmpfs and removed after the run
+            workDir = sandbox.createWorkDir();
             switch (language.toLowerCase()) {
                 case "python":
-                    output = executePython(code);
+                    exitCode = workers.runPython(owner, code, workDir, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS), output);
                     break;
                 case "javascript":
-                    output = executeJavaScript(code);
+                    exitCode = workers.runJavaScript(owner, code, workDir, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS), output);
                     break;
                 case "java":
-                    output = executeJava(code);
+                    exitCode = executeJava(owner, code, output);
                     break;
                 case "cpp":
                 case "c++":
-                    output = executeCpp(code);
+                    exitCode = executeCpp(code, workDir, output);
                     break;
                 default:
                     return ExecutionResult.error("Unsupported language: " + language);
             }
             
+            output.close();
             long executionTime = System.currentTimeMillis() - startTime;
-            return new ExecutionResult(true, output, null, executionTime);
+            return new ExecutionResult(true, output.getText(), null, executionTime, exitCode);
             
         } catch (Exception e) {
+            output.close();
             long executionTime = System.currentTimeMillis() - startTime;
-            return new ExecutionResult(false, null, e.getMessage(), executionTime);
+            // Keep whatever the program printed before it timed out or hit the output limit
+            String partial = output.getText();
+            return new ExecutionResult(false, partial.isEmpty() ? null : partial, e.getMessage(), executionTime, null);
+        } finally {
+            if (workDir != null) {
+                sandbox.deleteWorkDir(workDir);
+            }
         }
     }
     
-    private String executePython(String code) throws IOException, InterruptedException {
-        File tempFile = File.createTempFile("code", ".py");
-        Files.write(tempFile.toPath(), code.getBytes());
-        
-        ProcessBuilder pb = new ProcessBuilder("python3", tempFile.getAbsolutePath());
-        return executeProcess(pb, tempFile);
-    }
-    
-    private String executeJavaScript(String code) throws IOException, InterruptedException {
-        File tempFile = File.createTempFile("code", ".js");
-        Files.write(tempFile.toPath(), code.getBytes());
-        
-        ProcessBuilder pb = new ProcessBuilder("node", tempFile.getAbsolutePath());
-        return executeProcess(pb, tempFile);
-    }
-    
-    private String executeJava(String code) throws IOException, InterruptedException {
+    private int executeJava(String owner, String code, ExecutionOutput output) throws IOException, InterruptedException {
         // Extract class name from code
         String className = extractJavaClassName(code);
         if (className == null) {
             throw new RuntimeException("Could not find public class in Java code");
         }
         
-        // Create temp directory
-        File tempDir = Files.createTempDirectory("java_exec").toFile();
-        File javaFile = new File(tempDir, className + ".java");
-        Files.write(javaFile.toPath(), code.getBytes());
-        
-        // Compile
-        ProcessBuilder compileProcess = new ProcessBuilder("javac", javaFile.getAbsolutePath());
-        compileProcess.directory(tempDir);
-        Process compile = compileProcess.start();
-        
-        if (!compile.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-            compile.destroy();
-            throw new RuntimeException("Compilation timeout");
+        // Compiled classes are cached by source hash, so re-running unchanged code skips javac
+        try (CompilationCache.Artifact artifact = compilationCache.get("java", JAVA_FLAGS, code,
+                dir -> compileJava(code, className, dir))) {
+            // Execute on the warm worker JVM
+            return workers.runJava(owner, artifact.getDirectory(), className, TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS), output);
         }
-        
-        if (compile.exitValue() != 0) {
-            String error = readStream(compile.getErrorStream());
-            javaFile.delete();
-            tempDir.delete();
-            throw new RuntimeException("Compilation error: " + error);
+    }
+    
+    // Compiles in-process, no javac startup
+    private void compileJava(String code, String className, Path outputDir) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new RuntimeException("Java compiler not available");
+        }
+        Path javaFile = outputDir.resolve(className + ".java");
+        Files.write(javaFile, code.getBytes());
+        
+        List<String> options = new ArrayList<>(JAVA_FLAGS);
+        options.addAll(List.of("-classpath", outputDir.toString(), "-d", outputDir.toString()));
+        StringWriter errors = new StringWriter();
+        try (StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null)) {
+            boolean compiled = compiler.getTask(errors, fileManager, null, options, null,
+                fileManager.getJavaFileObjects(javaFile)).call();
+            if (!compiled) {
+                throw new RuntimeException("Compilation error: " + errors.toString().trim());
+            }
         }
-        
-        // Execute
-        ProcessBuilder runProcess = new ProcessBuilder("java", "-cp", tempDir.getAbsolutePath(), className);
-        String output = executeProcess(runProcess, null);
-        
-        // Cleanup
-        new File(tempDir, className + ".class").delete();
-        javaFile.delete();
-        tempDir.delete();
-        
-        return output;
     }
     
-    private String executeCpp(String code) throws IOException, InterruptedException {
-        File tempFile = File.createTempFile("code", ".cpp");
-        Files.write(tempFile.toPath(), code.getBytes());
-        
-        File outputFile = File.createTempFile("output", ".out");
+    private int executeCpp(String code, Path workDir, ExecutionOutput output) throws IOException, InterruptedException {
+        try (CompilationCache.Artifact artifact = compilationCache.get("cpp", CPP_FLAGS, code,
+                dir -> compileCpp(code, dir))) {
+            // Execute under the sandbox limits, including CPU time
+            String program = artifact.getDirectory().resolve("program").toString();
+            ProcessBuilder runProcess = new ProcessBuilder(sandbox.limit(List.of(program), true, true));
+            runProcess.directory(workDir.toFile());
+            return executeProcess(runProcess, output);
+        }
+    }
+    
+    private void compileCpp(String code, Path outputDir) throws IOException, InterruptedException {
+        Path sourceFile = outputDir.resolve("main.cpp");
+        Files.write(sourceFile, code.getBytes());
+        
+        List<String> command = new ArrayList<>(List.of("g++"));
+        command.addAll(CPP_FLAGS);
+        command.addAll(List.of(sourceFile.toString(), "-o", outputDir.resolve("program").toString()));
+        // One pipe for both streams, read while g++ runs, so a long error listing cannot fill it and stall
+        Process compile = new ProcessBuilder(command).redirectErrorStream(true).start();
+        
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread watchdog = Thread.ofVirtual().start(() -> {
+            try {
+                if (!compile.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    timedOut.set(true);
+                    destroyForcibly(compile);
+                }
+            } catch (InterruptedException ignored) {
+                // Finished in time
+            }
+        });
         
-        // Compile
-        ProcessBuilder compileProcess = new ProcessBuilder("g++", tempFile.getAbsolutePath(), "-o", outputFile.getAbsolutePath());
-        Process compile = compileProcess.start();
+        String messages;
+        try {
+            messages = readStream(compile.getInputStream());
+            compile.waitFor();
+        } finally {
+            watchdog.interrupt();
+            destroyForcibly(compile);
+        }
         
-        if (!compile.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-            compile.destroy();
+        if (timedOut.get()) {
             throw new RuntimeException("Compilation timeout");
         }
-        
         if (compile.exitValue() != 0) {
-            String error = readStream(compile.getErrorStream());
-            tempFile.delete();
-            outputFile.delete();
-            throw new RuntimeException("Compilation error: " + error);
+            throw new RuntimeException("Compilation error: " + messages);
         }
-        
-        // Execute
-        ProcessBuilder runProcess = new ProcessBuilder(outputFile.getAbsolutePath());
-        String output = executeProcess(runProcess, null);
-        
-        // Cleanup
-        tempFile.delete();
-        outputFile.delete();
-        
-        return output;
     }
     
-    private String executeProcess(ProcessBuilder pb, File tempFile) throws IOException, InterruptedException {
+    // g++ runs the compiler and linker as child processes, which hold the pipe open too
+    private static void destroyForcibly(Process process) {
+        process.descendants().forEach(ProcessHandle::destroyForcibly);
+        process.destroyForcibly();
+    }
+    
+    // Reads output while the process runs, so a chatty program cannot fill the pipe and stall
+    private int executeProcess(ProcessBuilder pb, Consumer<String> output) throws IOException, InterruptedException {
         pb.redirectErrorStream(true);
-        Process process = pb.start();
+        Process process = sandbox.start(pb);
+        
+        AtomicBoolean timedOut = new AtomicBoolean();
+        Thread watchdog = Thread.ofVirtual().start(() -> {
+            try {
+                if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    timedOut.set(true);
+                    sandbox.destroy(process);
+                }
+            } catch (InterruptedException ignored) {
+                // Finished in time
+            }
+        });
         
-        if (!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
-            process.destroy();
-            if (tempFile != null) tempFile.delete();
-            throw new RuntimeException("Execution timeout");
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                output.accept(line);
+            }
+            process.waitFor();
+        } finally {
+            watchdog.interrupt();
+            sandbox.destroy(process);
         }
         
-        String output = readStream(process.getInputStream());
-        
-        if (tempFile != null) {
-            tempFile.delete();
+        if (timedOut.get()) {
+            throw new RuntimeException("Execution timeout");
         }
-        
-        return output;
+        return process.exitValue();
     }
     
     private String readStream(InputStream inputStream) throws IOException {
@@ -0,0 +1,438 @@
+package com.collab.editor.service;
+
+import com.collab.editor.crdt.CRDTDocument;
+import com.collab.editor.crdt.CRDTId;
+import com.collab.editor.crdt.CRDTSnapshotCodec;
+import com.collab.editor.crdt.CRDTSynchronizer;
+import com.collab.editor.exception.FileNotFoundException;
+import com.collab.editor.logging.LogThrottle;
+import com.collab.editor.model.CRDTOperation;
+import com.collab.editor.model.CodeFile;
+import com.collab.editor.model.OperationLogEntry;
+import com.collab.editor.repository.CodeFileRepository;
+import com.collab.editor.repository.OperationLogRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Keeps live CRDTDocuments in memory keyed by roomId:fileId. Edits are applied
+// to the cached document and written back by a write-behind flusher, either on
+// a timer or once a document has collected enough unflushed ops. A flush appends
+// the new ops to the file's operation log; every snapshot-interval ops the whole
+// document is stored as a binary snapshot and the log before it is pruned, in
+// Mongo and in CRDTSynchronizer's in-memory history.
+@Slf4j
+@Service
+public class DocumentCacheService {
+
+    // Compact once tombstones outnumber this many characters, this many spans per hold of the document's lock
+    private static final int COMPACTION_THRESHOLD = 1024;
+    private static final int COMPACTION_SLICE_SPANS = 4096;
+
+    private final CodeFileRepository codeFileRepository;
+    private final OperationLogRepository operationLogRepository;
+    private final MongoTemplate mongoTemplate;
+    private final CRDTSynchronizer crdtSynchronizer;
+    private final int maxDocuments;
+    private final int flushMaxOps;
+    private final int snapshotInterval;
+    private final boolean compressSnapshots;
+
+    private final Map<String, LiveDocument> documents = new ConcurrentHashMap<>();
+    // The same documents, least recently used first; guarded by itself
+    private final LinkedHashMap<String, LiveDocument> recency = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Timer flushTimer;
+    private final Timer loadTimer;
+    private final LogThrottle flushErrors = new LogThrottle();
+
+    public DocumentCacheService(CodeFileRepository codeFileRepository,
+                                OperationLogRepository operationLogRepository,
+                                MongoTemplate mongoTemplate,
+                                CRDTSynchronizer crdtSynchronizer,
+                                MeterRegistry meterRegistry,
+                                @Value("${editor.cache.max-documents:256}") int maxDocuments,
+                                @Value("${editor.cache.flush-max-ops:500}") int flushMaxOps,
+                                @Value("${editor.persistence.snapshot-interval:1000}") int snapshotInterval,
+                                @Value("${editor.persistence.snapshot-compression:true}") boolean compressSnapshots) {
+        this.codeFileRepository = codeFileRepository;
+        this.operationLogRepository = operationLogRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.crdtSynchronizer = crdtSynchronizer;
+        this.maxDocuments = maxDocuments;
+        this.flushMaxOps = flushMaxOps;
+        this.snapshotInterval = snapshotInterval;
+        this.compressSnapshots = compressSnapshots;
+
+        this.hits = meterRegistry.counter("editor.cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("editor.cache.requests", "result", "miss");
+        this.evictions = meterRegistry.counter("editor.cache.evictions");
+        this.flushTimer = meterRegistry.timer("editor.cache.flush");
+        this.loadTimer = Timer.builder("editor.cache.load")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        Gauge.builder("editor.cache.documents", documents, Map::size)
+            .register(meterRegistry);
+        Gauge.builder("editor.cache.dirty", this, DocumentCacheService::getDirtyCount)
+            .register(meterRegistry);
+        Gauge.builder("editor.cache.flush.lag", this, DocumentCacheService::getFlushLagMillis)
+            .baseUnit("milliseconds")
+            .register(meterRegistry);
+    }
+
+    // Applies the operation to the live document and queues it for the operation log
+    public boolean apply(String roomId, String fileId, CRDTOperation operation) {
+        while (true) {
+            LiveDocument live = acquire(roomId, fileId);
+            boolean applied;
+            boolean flushNow;
+            synchronized (live) {
+                if (live.evicted) {
+                    continue;
+                }
+                applied = live.document.applyOperation(operation);
+                if (applied) {
+                    long sequence = ++live.sequence;
+                    live.unflushed.add(new OperationLogEntry(
+                        live.key() + ":" + sequence, roomId, fileId, sequence, operation));
+                    live.markDirty();
+                }
+                flushNow = live.unflushed.size() >= flushMaxOps;
+            }
+            if (flushNow) {
+                flush(live);
+            }
+            return applied;
+        }
+    }
+
+    // Current text of a document that is already live, without loading it
+    public Optional<String> peekText(String roomId, String fileId) {
+        LiveDocument live = documents.get(roomId + ":" + fileId);
+        if (live == null) {
+            return Optional.empty();
+        }
+        synchronized (live) {
+            return live.evicted || live.document == null ? Optional.empty() : Optional.of(live.document.getText());
+        }
+    }
+
+    public <T> T read(String roomId, String fileId, Function<CRDTDocument, T> reader) {
+        while (true) {
+            LiveDocument live = acquire(roomId, fileId);
+            synchronized (live) {
+                if (!live.evicted) {
+                    return reader.apply(live.document);
+                }
+            }
+        }
+    }
+
+    private LiveDocument acquire(String roomId, String fileId) {
+        String key = roomId + ":" + fileId;
+        LiveDocument live = documents.computeIfAbsent(key, k -> new LiveDocument(roomId, fileId));
+        synchronized (recency) {
+            // Not if it was evicted in the meantime
+            if (documents.get(key) == live) {
+                recency.put(key, live);
+            }
+        }
+        synchronized (live) {
+            if (live.document != null) {
+                hits.increment();
+                return live;
+            }
+            misses.increment();
+            try {
+                loadTimer.record(() -> load(live));
+            } catch (RuntimeException e) {
+                live.evicted = true;
+                remove(live);
+                throw e;
+            }
+        }
+        evictIfNeeded();
+        return live;
+    }
+
+    // Snapshot plus the operation log tail written after it
+    private void load(LiveDocument live) {
+        CodeFile file = codeFileRepository.findByRoomIdAndFileId(live.roomId, live.fileId)
+            .orElseThrow(() -> new FileNotFoundException(live.fileId));
+        CRDTDocument document;
+        if (file.getCrdtSnapshot() != null) {
+            document = CRDTSnapshotCodec.decode(file.getCrdtSnapshot());
+        } else {
+            // Created with content or moved from a room: the first snapshot will hold it. Not marked
+            // dirty: the seed's ids are fixed, so until the first edit the file loads the same without one
+            document = new CRDTDocument();
+            if (file.getContent() != null && !file.getContent().isEmpty()) {
+                document.applyOperation(seed(live, file.getContent()));
+                live.snapshotDue = true;
+            }
+        }
+
+        long sequence = file.getSnapshotSequence();
+        for (OperationLogEntry entry : operationLogRepository
+                .findByRoomIdAndFileIdAndSequenceGreaterThanOrderBySequenceAsc(live.roomId, live.fileId, sequence)) {
+            document.applyOperation(entry.getOperation());
+            sequence = entry.getSequence();
+        }
+
+        live.document = document;
+        live.sequence = sequence;
+        live.snapshotSequence = file.getSnapshotSequence();
+        live.contentVersion = document.getTextVersion();
+        crdtSynchronizer.initHistory(live.key(), document.getVectorClock());
+    }
+
+    // The same id every time, so replaying the log over it after a restart finds the same characters
+    private static CRDTOperation seed(LiveDocument live, String content) {
+        return CRDTOperation.builder()
+            .operationId(live.key() + ":content")
+            .id(new CRDTId(CRDTDocument.SERVER_SITE_PREFIX, 1))
+            .userId(CRDTDocument.SERVER_SITE_PREFIX)
+            .type(CRDTOperation.OperationType.INSERT_TEXT)
+            .character(content)
+            .build();
+    }
+
+    private void evictIfNeeded() {
+        int attempts = documents.size();
+        while (documents.size() > maxDocuments && attempts-- > 0) {
+            LiveDocument eldest;
+            synchronized (recency) {
+                Iterator<LiveDocument> leastRecent = recency.values().iterator();
+                eldest = leastRecent.hasNext() ? leastRecent.next() : null;
+            }
+            if (eldest == null) {
+                return;
+            }
+            try {
+                flush(eldest);
+            } catch (RuntimeException e) {
+                flushErrors.warn(log, "Error flushing document {}: {}", eldest.key(), e.getMessage());
+                return;
+            }
+            synchronized (eldest) {
+                if (eldest.dirty) {
+                    continue;  // Edited while flushing, try again on the next pass
+                }
+                eldest.evicted = true;
+                remove(eldest);
+            }
+            crdtSynchronizer.clearHistory(eldest.roomId, eldest.key());
+            evictions.increment();
+        }
+    }
+
+    private void remove(LiveDocument live) {
+        documents.remove(live.key(), live);
+        synchronized (recency) {
+            recency.remove(live.key(), live);
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${editor.cache.flush-interval-ms:1000}")
+    public void flushDirtyDocuments() {
+        for (LiveDocument live : documents.values()) {
+            compactIfNeeded(live);
+            if (live.dirty) {
+                try {
+                    flush(live);
+                } catch (RuntimeException e) {
+                    flushErrors.warn(log, "Error flushing document {}: {}", live.key(), e.getMessage());
+                }
+            }
+        }
+        evictIfNeeded();
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        flushDirtyDocuments();
+    }
+
+    // A slice at a time, so an edit waits for one slice at most rather than the whole document
+    private void compactIfNeeded(LiveDocument live) {
+        synchronized (live) {
+            if (live.evicted || live.document == null || live.document.getTombstoneCount() <= COMPACTION_THRESHOLD) {
+                return;
+            }
+        }
+        Predicate<CRDTId> isStable = crdtSynchronizer.stabilityCheck(live.roomId, live.key());
+        int index = 0;
+        while (index >= 0) {
+            synchronized (live) {
+                if (live.evicted) {
+                    return;
+                }
+                CRDTDocument.Compaction slice = live.document.compact(isStable, index, COMPACTION_SLICE_SPANS);
+                if (slice.removed() > 0) {
+                    live.snapshotDue = true;
+                    live.markDirty();
+                }
+                index = slice.nextIndex();
+            }
+        }
+    }
+
+    private void flush(LiveDocument live) {
+        synchronized (live.flushLock) {
+            List<OperationLogEntry> entries;
+            CRDTSnapshotCodec.Capture capture = null;
+            long snapshotSequence;
+            long coveredHistory = 0;
+            String content = null;
+            long textVersion;
+            long startedAt = System.currentTimeMillis();
+            synchronized (live) {
+                if (!live.dirty) {
+                    return;
+                }
+                entries = live.unflushed;
+                live.unflushed = new ArrayList<>();
+                snapshotSequence = live.sequence;
+                if (live.snapshotDue || snapshotSequence - live.snapshotSequence >= snapshotInterval) {
+                    capture = CRDTSnapshotCodec.capture(live.document);
+                    // Ops reach the synchronizer after they are applied, so its history up to here is in the snapshot
+                    coveredHistory = crdtSynchronizer.getLastSequence(live.key());
+                }
+                // The text is only rebuilt and rewritten when an op changed it since the last write
+                textVersion = live.document.getTextVersion();
+                if (textVersion != live.contentVersion) {
+                    content = live.document.getText();
+                }
+                live.dirty = false;
+            }
+            // Encoded and compressed outside the document's lock, so edits do not wait for it
+            byte[] snapshot = capture != null ? CRDTSnapshotCodec.encode(capture, compressSnapshots) : null;
+            try {
+                write(live, entries, snapshot, snapshotSequence, content);
+            } catch (RuntimeException e) {
+                synchronized (live) {
+                    entries.addAll(live.unflushed);
+                    live.unflushed = entries;
+                    live.markDirty();
+                }
+                throw e;
+            }
+            synchronized (live) {
+                if (snapshot != null) {
+                    live.snapshotSequence = snapshotSequence;
+                    live.snapshotDue = false;
+                }
+                if (content != null) {
+                    live.contentVersion = textVersion;
+                }
+                // Anything edited while writing is at most as old as this flush
+                live.dirtySince = live.dirty ? startedAt : 0;
+            }
+            if (snapshot != null) {
+                crdtSynchronizer.truncateHistory(live.key(), coveredHistory);
+            }
+        }
+    }
+
+    private void write(LiveDocument live, List<OperationLogEntry> entries, byte[] snapshot,
+                       long snapshotSequence, String content) {
+        flushTimer.record(() -> {
+            if (!entries.isEmpty()) {
+                try {
+                    operationLogRepository.insert(entries);
+                } catch (DuplicateKeyException e) {
+                    // Retry of a flush that was partially written; entry ids are deterministic
+                    operationLogRepository.saveAll(entries);
+                }
+            }
+            Update update = new Update().set("lastModified", LocalDateTime.now());
+            if (content != null) {
+                update.set("content", content);
+            }
+            if (snapshot != null) {
+                update.set("crdtSnapshot", snapshot).set("snapshotSequence", snapshotSequence);
+            }
+            mongoTemplate.updateFirst(
+                Query.query(Criteria.where("roomId").is(live.roomId).and("fileId").is(live.fileId)),
+                update,
+                CodeFile.class);
+            if (snapshot != null) {
+                operationLogRepository.deleteByRoomIdAndFileIdAndSequenceLessThanEqual(
+                    live.roomId, live.fileId, snapshotSequence);
+            }
+        });
+    }
+
+    public long getDirtyCount() {
+        return documents.values().stream().filter(d -> d.dirty).count();
+    }
+
+    // Age of the oldest edit that has not reached Mongo yet
+    public long getFlushLagMillis() {
+        long now = System.currentTimeMillis();
+        return documents.values().stream()
+            .mapToLong(d -> d.dirtySince)
+            .filter(since -> since > 0)
+            .map(since -> now - since)
+            .max()
+            .orElse(0);
+    }
+
+    private static final class LiveDocument {
+        private final String roomId;
+        private final String fileId;
+        private final Object flushLock = new Object();
+        private CRDTDocument document;
+        private List<OperationLogEntry> unflushed = new ArrayList<>();
+        private long sequence;  // Last operation log sequence assigned
+        private long snapshotSequence;  // Last sequence covered by the stored snapshot
+        private boolean snapshotDue;
+        private long contentVersion;  // Text version of the content last written
+        private volatile boolean dirty;
+        private volatile long dirtySince;
+        private boolean evicted;
+
+        private LiveDocument(String roomId, String fileId) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+        }
+
+        private String key() {
+            return roomId + ":" + fileId;
+        }
+
+        private void markDirty() {
+            if (!dirty) {
+                dirty = true;
+                if (dirtySince == 0) {
+                    dirtySince = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.collab.editor.service;
+
+import com.collab.editor.exception.ExecutionQueueFullException;
+import com.collab.editor.model.ExecutionJob;
+import com.collab.editor.model.ExecutionOutputChunk;
+import com.collab.editor.model.ExecutionResult;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Queues Run requests in front of CodeExecutionService. At most maxConcurrent
+// jobs run at once (one per core by default) and at most maxQueued wait, of
+// which at most maxQueuedPerRoom come from one room and maxQueuedPerUser from
+// one user; the next job is picked round-robin across rooms, and within a room across users,
+// so one busy room or user cannot starve the rest. Jobs submitted without a user
+// are only held to the room's cap: counting them as one shared user would turn the
+// per-user cap into a global one. Output chunks and the
+// finished job are published as application events so the room's WebSocket
+// gets them pushed while the job runs.
+@Slf4j
+@Service
+public class ExecutionSchedulerService {
+
+    // Finished jobs stay pollable this long
+    private static final long RETENTION_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private final CodeExecutionService executionService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final int maxConcurrent;
+    private final int maxQueued;
+    private final int maxQueuedPerRoom;
+    private final int maxQueuedPerUser;
+
+    private final Map<String, ExecutionJob> jobs = new ConcurrentHashMap<>();
+
+    // room -> user -> jobs, iteration order is the round-robin order; guarded by this
+    private final LinkedHashMap<String, LinkedHashMap<String, ArrayDeque<ExecutionJob>>> queued = new LinkedHashMap<>();
+    private final Map<String, Integer> queuedPerRoom = new HashMap<>();
+    private final Map<String, Integer> queuedPerUser = new HashMap<>();
+    private int queuedCount;
+    private int running;
+
+    private final Timer waitTimer;
+    private final Timer runTimer;
+
+    public ExecutionSchedulerService(CodeExecutionService executionService,
+                                     ApplicationEventPublisher eventPublisher,
+                                     MeterRegistry meterRegistry,
+                                     @Value("${editor.execution.max-concurrent:0}") int maxConcurrent,
+                                     @Value("${editor.execution.max-queued:100}") int maxQueued,
+                                     @Value("${editor.execution.max-queued-per-room:20}") int maxQueuedPerRoom,
+                                     @Value("${editor.execution.max-queued-per-user:5}") int maxQueuedPerUser) {
+        this.executionService = executionService;
+        this.eventPublisher = eventPublisher;
+        this.maxConcurrent = maxConcurrent > 0 ? maxConcurrent : Runtime.getRuntime().availableProcessors();
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerRoom = maxQueuedPerRoom;
+        this.maxQueuedPerUser = maxQueuedPerUser;
+
+        this.waitTimer = Timer.builder("editor.execution.wait")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        this.runTimer = Timer.builder("editor.execution.run")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        Gauge.builder("editor.execution.queued", this, ExecutionSchedulerService::getQueuedCount)
+            .register(meterRegistry);
+        Gauge.builder("editor.execution.running", this, ExecutionSchedulerService::getRunningCount)
+            .register(meterRegistry);
+    }
+
+    public ExecutionJob submit(String roomId, String userId, String code, String language) {
+        ExecutionJob job = new ExecutionJob();
+        job.setId(UUID.randomUUID().toString());
+        job.setRoomId(roomId != null ? roomId : "");
+        job.setUserId(userId != null && !userId.isBlank() ? userId : null);
+        job.setCode(code);
+        job.setLanguage(language);
+        job.setStatus(ExecutionJob.Status.QUEUED);
+        job.setSubmittedAt(System.currentTimeMillis());
+
+        synchronized (this) {
+            if (queuedCount >= maxQueued) {
+                throw new ExecutionQueueFullException(maxQueued);
+            }
+            if (queuedPerRoom.getOrDefault(job.getRoomId(), 0) >= maxQueuedPerRoom) {
+                throw new ExecutionQueueFullException("this room", maxQueuedPerRoom);
+            }
+            if (job.getUserId() != null && queuedPerUser.getOrDefault(job.getUserId(), 0) >= maxQueuedPerUser) {
+                throw new ExecutionQueueFullException("this user", maxQueuedPerUser);
+            }
+            // Jobs without a user take turns with the room's users as one more user
+            queued.computeIfAbsent(job.getRoomId(), k -> new LinkedHashMap<>())
+                .computeIfAbsent(job.getUserId() != null ? "user:" + job.getUserId() : "", k -> new ArrayDeque<>())
+                .add(job);
+            queuedPerRoom.merge(job.getRoomId(), 1, Integer::sum);
+            if (job.getUserId() != null) {
+                queuedPerUser.merge(job.getUserId(), 1, Integer::sum);
+            }
+            queuedCount++;
+            jobs.put(job.getId(), job);
+        }
+        dispatch();
+        return job;
+    }
+
+    public Optional<ExecutionJob> getJob(String jobId) {
+        return Optional.ofNullable(jobs.get(jobId));
+    }
+
+    private void dispatch() {
+        while (true) {
+            ExecutionJob job;
+            synchronized (this) {
+                if (running >= maxConcurrent || queuedCount == 0) {
+                    return;
+                }
+                job = next();
+                queuedCount--;
+                running++;
+            }
+            Thread.ofVirtual().name("execution-" + job.getId()).start(() -> run(job));
+        }
+    }
+
+    // Takes the head job of the first user of the first room, then moves both to the back
+    private ExecutionJob next() {
+        Map.Entry<String, LinkedHashMap<String, ArrayDeque<ExecutionJob>>> room = queued.entrySet().iterator().next();
+        LinkedHashMap<String, ArrayDeque<ExecutionJob>> users = room.getValue();
+        Map.Entry<String, ArrayDeque<ExecutionJob>> user = users.entrySet().iterator().next();
+        ExecutionJob job = user.getValue().poll();
+
+        users.remove(user.getKey());
+        if (!user.getValue().isEmpty()) {
+            users.put(user.getKey(), user.getValue());
+        }
+        queued.remove(room.getKey());
+        if (!users.isEmpty()) {
+            queued.put(room.getKey(), users);
+        }
+        queuedPerRoom.computeIfPresent(job.getRoomId(), (k, count) -> count > 1 ? count - 1 : null);
+        if (job.getUserId() != null) {
+            queuedPerUser.computeIfPresent(job.getUserId(), (k, count) -> count > 1 ? count - 1 : null);
+        }
+        return job;
+    }
+
+    private void run(ExecutionJob job) {
+        ExecutionResult result = null;
+        try {
+            job.setStartedAt(System.currentTimeMillis());
+            job.setStatus(ExecutionJob.Status.RUNNING);
+            waitTimer.record(job.getStartedAt() - job.getSubmittedAt(), TimeUnit.MILLISECONDS);
+            // Length-prefixed so no two rooms and users make the same owner; a job without a user shares no worker
+            String owner = job.getUserId() != null
+                ? job.getRoomId().length() + ":" + job.getRoomId() + job.getUserId()
+                : null;
+            result = executionService.executeCode(job.getCode(), job.getLanguage(), owner,
+                chunk -> publishOutput(job, chunk));
+        } catch (RuntimeException e) {
+            result = ExecutionResult.error(e.getMessage());
+        } finally {
+            // Also on an Error, so neither the slot nor the waiting request is lost
+            synchronized (this) {
+                running--;
+            }
+            job.setFinishedAt(System.currentTimeMillis());
+            runTimer.record(job.getFinishedAt() - job.getStartedAt(), TimeUnit.MILLISECONDS);
+            job.setResult(result != null ? result : ExecutionResult.error("Execution failed"));
+            job.setStatus(ExecutionJob.Status.COMPLETED);
+            job.setCode(null);
+            job.getCompletion().complete(job.getResult());
+            dispatch();
+        }
+
+        try {
+            eventPublisher.publishEvent(job);
+        } catch (RuntimeException e) {
+            log.warn("Error publishing execution result of job {}: {}", job.getId(), e.getMessage());
+        }
+    }
+
+    private void publishOutput(ExecutionJob job, String chunk) {
+        if (!job.getRoomId().isEmpty()) {
+            eventPublisher.publishEvent(new ExecutionOutputChunk(job.getId(), job.getRoomId(), job.getUserId(), chunk));
+        }
+    }
+
+    @Scheduled(fixedDelay = 60000)
+    public void removeExpiredJobs() {
+        long cutoff = System.currentTimeMillis() - RETENTION_MS;
+        jobs.values().removeIf(job -> job.getStatus() == ExecutionJob.Status.COMPLETED && job.getFinishedAt() < cutoff);
+    }
+
+    public synchronized int getQueuedCount() {
+        return queuedCount;
+    }
+
+    public synchronized int getRunningCount() {
+        return running;
+    }
+}
@@ -0,0 +1,219 @@
+package com.collab.editor.service;
+
+import com.collab.editor.cluster.ClusterMessage;
+import com.collab.editor.cluster.ClusterNode;
+import com.collab.editor.logging.LogThrottle;
+import com.collab.editor.model.Room;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Who is connected to which room, kept in memory so connects and disconnects
+// never wait on Mongo. Each user is counted once per open session, so a user
+// with several tabs joins on the first and leaves with the last. In cluster
+// mode every node tracks its own sessions, announces its set of users in a room
+// whenever it changes, and merges in the sets announced by the other nodes; a
+// user joins with their first session on any node and leaves with their last.
+// Announcements are versioned from the node's boot time, so those of a restarted
+// node supersede the ones it sent before, and the users of a node that left the
+// cluster are forgotten with it.
+// Rooms whose local set changed are written to their Room document in the
+// background under this node's id, so nodes never overwrite each other's users,
+// creating the room if it does not exist yet.
+@Slf4j
+@Service
+public class PresenceService {
+
+    private record NodeUsers(long version, Set<String> users) {
+    }
+
+    private final MongoTemplate mongoTemplate;
+    private final ClusterNode clusterNode;
+
+    // room -> user -> open sessions on this node; rooms are only changed inside rooms.compute
+    private final Map<String, Map<String, Integer>> rooms = new ConcurrentHashMap<>();
+    // room -> node -> users last announced by that node; only changed inside remoteRooms.compute
+    private final Map<String, Map<String, NodeUsers>> remoteRooms = new ConcurrentHashMap<>();
+    private final AtomicLong versions;
+    private final Set<String> dirtyRooms = ConcurrentHashMap.newKeySet();
+    private final LogThrottle saveErrors = new LogThrottle();
+    // Entries a previous run of this node may have left behind are removed by the first flush
+    private volatile boolean staleEntriesCleared;
+
+    public PresenceService(MongoTemplate mongoTemplate, ClusterNode clusterNode) {
+        this.mongoTemplate = mongoTemplate;
+        this.clusterNode = clusterNode;
+        // Leaves room for a million changes per millisecond of uptime before a restart could reuse a version
+        this.versions = new AtomicLong(clusterNode.getEpoch() << 20);
+    }
+
+    // Returns true if this is the user's first session in the room on any node
+    public boolean join(String roomId, String userId) {
+        boolean[] first = new boolean[1];
+        ClusterMessage[] announcement = new ClusterMessage[1];
+        rooms.compute(roomId, (k, users) -> {
+            if (users == null) {
+                users = new ConcurrentHashMap<>();
+            }
+            first[0] = users.merge(userId, 1, Integer::sum) == 1;
+            if (first[0]) {
+                announcement[0] = snapshot(ClusterMessage.Type.PRESENCE, roomId, users);
+            }
+            return users;
+        });
+        if (!first[0]) {
+            return false;
+        }
+        dirtyRooms.add(roomId);
+        clusterNode.broadcast(announcement[0]);
+        return !isRemote(roomId, userId);
+    }
+
+    // Returns true if this was the user's last session in the room on any node
+    public boolean leave(String roomId, String userId) {
+        boolean[] last = new boolean[1];
+        ClusterMessage[] announcement = new ClusterMessage[1];
+        rooms.computeIfPresent(roomId, (k, users) -> {
+            Integer sessions = users.get(userId);
+            if (sessions == null) {
+                return users;
+            }
+            if (sessions > 1) {
+                users.put(userId, sessions - 1);
+            } else {
+                users.remove(userId);
+                last[0] = true;
+                announcement[0] = snapshot(ClusterMessage.Type.PRESENCE, roomId, users);
+            }
+            return users.isEmpty() ? null : users;
+        });
+        if (!last[0]) {
+            return false;
+        }
+        dirtyRooms.add(roomId);
+        clusterNode.broadcast(announcement[0]);
+        return !isRemote(roomId, userId);
+    }
+
+    // Called inside rooms.compute, so versions of one room follow the order of its changes
+    private ClusterMessage snapshot(ClusterMessage.Type type, String roomId, Map<String, Integer> users) {
+        Set<String> userIds = users != null ? Set.copyOf(users.keySet()) : Set.of();
+        return ClusterMessage.presence(type, roomId, userIds, versions.incrementAndGet());
+    }
+
+    private boolean isRemote(String roomId, String userId) {
+        Map<String, NodeUsers> nodes = remoteRooms.get(roomId);
+        return nodes != null && nodes.values().stream().anyMatch(node -> node.users().contains(userId));
+    }
+
+    public Set<String> getUsers(String roomId) {
+        Map<String, Integer> local = rooms.get(roomId);
+        Map<String, NodeUsers> nodes = remoteRooms.get(roomId);
+        if (nodes == null || nodes.isEmpty()) {
+            return local != null ? Set.copyOf(local.keySet()) : Set.of();
+        }
+        Set<String> users = new HashSet<>(local != null ? local.keySet() : Set.of());
+        nodes.values().forEach(node -> users.addAll(node.users()));
+        return Set.copyOf(users);
+    }
+
+    // Applies another node's PRESENCE or PRESENCE_REPLY; returns true if the room's users changed
+    public boolean onPresence(ClusterMessage message) {
+        String roomId = message.getRoomId();
+        Set<String> before = getUsers(roomId);
+        boolean[] newNode = new boolean[1];
+        remoteRooms.compute(roomId, (k, nodes) -> {
+            if (nodes == null) {
+                nodes = new ConcurrentHashMap<>();
+            }
+            NodeUsers previous = nodes.get(message.getOrigin());
+            if (previous != null && previous.version() >= message.getVersion()) {
+                return nodes;
+            }
+            newNode[0] = previous == null || previous.users().isEmpty();
+            Set<String> users = message.getUsers() != null ? message.getUsers() : Set.of();
+            nodes.put(message.getOrigin(), new NodeUsers(message.getVersion(), users));
+            return nodes;
+        });
+        // The node just started seeing the room and does not know who is here yet
+        if (newNode[0] && message.getType() == ClusterMessage.Type.PRESENCE) {
+            ClusterMessage[] reply = new ClusterMessage[1];
+            rooms.computeIfPresent(roomId, (k, users) -> {
+                reply[0] = snapshot(ClusterMessage.Type.PRESENCE_REPLY, roomId, users);
+                return users;
+            });
+            if (reply[0] != null) {
+                clusterNode.broadcast(reply[0]);
+            }
+        }
+        return !before.equals(getUsers(roomId));
+    }
+
+    // Once this node has no sessions left in a room it stops hearing about it, so it forgets the other nodes' users
+    public void forgetRemote(String roomId) {
+        remoteRooms.remove(roomId);
+    }
+
+    // Drops what a node that stopped or went quiet announced; returns the users that left each room with it
+    public Map<String, Set<String>> forgetNode(String nodeId) {
+        Map<String, Set<String>> left = new HashMap<>();
+        for (String roomId : remoteRooms.keySet()) {
+            Set<String> before = getUsers(roomId);
+            remoteRooms.computeIfPresent(roomId, (k, nodes) -> {
+                nodes.remove(nodeId);
+                return nodes.isEmpty() ? null : nodes;
+            });
+            Set<String> gone = new HashSet<>(before);
+            gone.removeAll(getUsers(roomId));
+            if (!gone.isEmpty()) {
+                left.put(roomId, gone);
+            }
+        }
+        return left;
+    }
+
+    @Scheduled(fixedDelayString = "${editor.presence.flush-interval-ms:1000}")
+    public void flush() {
+        String field = "activeUsers." + clusterNode.getNodeId();
+        if (!staleEntriesCleared) {
+            try {
+                mongoTemplate.updateMulti(Query.query(Criteria.where(field).exists(true)), new Update().unset(field),
+                    Room.class);
+                staleEntriesCleared = true;
+            } catch (RuntimeException e) {
+                saveErrors.warn(log, "Error clearing presence left by an earlier run: {}", e.getMessage());
+                return;
+            }
+        }
+        for (Iterator<String> it = dirtyRooms.iterator(); it.hasNext(); ) {
+            String roomId = it.next();
+            it.remove();
+            Map<String, Integer> local = rooms.get(roomId);
+            LocalDateTime now = LocalDateTime.now();
+            Update update = local != null ? new Update().set(field, Set.copyOf(local.keySet())) : new Update().unset(field);
+            update.set("lastModified", now)
+                .setOnInsert("name", "Auto-Created Room")
+                .setOnInsert("createdAt", now);
+            try {
+                mongoTemplate.upsert(Query.query(Criteria.where("roomId").is(roomId)), update, Room.class);
+            } catch (RuntimeException e) {
+                dirtyRooms.add(roomId);
+                saveErrors.warn(log, "Error saving presence of room {}: {}", roomId, e.getMessage());
+                return;
+            }
+        }
+    }
+}
@@ -3,25 +3,39 @@ package com.collab.editor.service;
 import com.collab.editor.exception.RoomNotFoundException;
 import com.collab.editor.model.Room;
 import com.collab.editor.model.CodeFile;
+import com.collab.editor.repository.CodeFileRepository;
 import com.collab.editor.repository.RoomRepository;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.bson.Document;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 import java.time.LocalDateTime;
 import java.util.*;
 
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class RoomService {
 
     private final RoomRepository roomRepository;
+    private final CodeFileRepository codeFileRepository;
+    private final MongoTemplate mongoTemplate;
+    private final DocumentCacheService documentCache;
+    private final PresenceService presenceService;
 
     // ✅ Create room normally (REST call)
     public Room createRoom(String name) {
         Room room = new Room();
         room.setRoomId(UUID.randomUUID().toString());
         room.setName(name);
-        room.setActiveUserIds(new HashSet<>());
+        room.setActiveUsers(new HashMap<>());
         room.setFiles(new ArrayList<>());
         room.setCreatedAt(LocalDateTime.now());
         room.setLastModified(LocalDateTime.now());
@@ -36,7 +50,7 @@ public class RoomService {
                     Room newRoom = new Room();
                     newRoom.setRoomId(roomId);
                     newRoom.setName("Auto-Created Room");
-                    newRoom.setActiveUserIds(new HashSet<>());
+                    newRoom.setActiveUsers(new HashMap<>());
                     newRoom.setFiles(new ArrayList<>());
                     newRoom.setCreatedAt(LocalDateTime.now());
                     newRoom.setLastModified(LocalDateTime.now());
@@ -46,50 +60,86 @@ public class RoomService {
 
     // ✅ Strict fetch (use ONLY when you want 404)
     public Room getRoom(String roomId) {
-        return roomRepository.findById(roomId)
-                .orElseThrow(() -> new RoomNotFoundException("Room not found with ID: " + roomId));
-    }
-
-    // ✅ Join room safely (auto-create)
-    public Room addUserToRoom(String roomId, String username) {
-        Room room = getOrCreateRoom(roomId);
-        room.getActiveUserIds().add(username);
-        room.setLastModified(LocalDateTime.now());
-        return roomRepository.save(room);
+        Room room = findRoom(roomId);
+        List<CodeFile> files = codeFileRepository.findByRoomId(roomId);
+        // Files being edited are ahead of their last flush
+        for (CodeFile file : files) {
+            documentCache.peekText(roomId, file.getFileId()).ifPresent(file::setContent);
+        }
+        room.setFiles(files);
+        return room;
     }
 
-    // ✅ Safe removal — does NOT throw if room doesn't exist
-    public void removeUserFromRoom(String roomId, String userId) {
-        roomRepository.findById(roomId).ifPresent(room -> {
-            room.getActiveUserIds().remove(userId);
-            room.setLastModified(LocalDateTime.now());
-            roomRepository.save(room);
-        });
+    private Room findRoom(String roomId) {
+        return roomRepository.findById(roomId)
+                .orElseThrow(() -> new RoomNotFoundException("Room not found with ID: " + roomId));
     }
 
+    // Served from PresenceService; Mongo is only asked whether an empty room exists
     public Set<String> getActiveUsers(String roomId) {
-        return getRoom(roomId).getActiveUserIds();
+        Set<String> users = presenceService.getUsers(roomId);
+        if (users.isEmpty()) {
+            findRoom(roomId);
+        }
+        return users;
     }
 
+    // Files live in their own collection, so adding or editing one never rewrites the room
     public void addFileToRoom(String roomId, CodeFile file) {
-        Room room = getRoom(roomId);
-        room.getFiles().add(file);
-        room.setLastModified(LocalDateTime.now());
-        roomRepository.save(room);
+        findRoom(roomId);
+        file.setRoomId(roomId);
+        file.setLastModified(LocalDateTime.now());
+        codeFileRepository.save(file);
     }
 
-    public void updateFile(String roomId, String fileId, String content) {
-        Room room = getRoom(roomId);
+    // Creates the file unless the room already has one with this id
+    public void createFile(String roomId, String fileId, String fileName, String language, String content) {
+        mongoTemplate.upsert(
+                Query.query(Criteria.where("roomId").is(roomId).and("fileId").is(fileId)),
+                new Update().setOnInsert("fileName", fileName)
+                        .setOnInsert("language", language)
+                        .setOnInsert("content", content != null ? content : "")
+                        .setOnInsert("lastModified", LocalDateTime.now()),
+                CodeFile.class);
+    }
 
-        room.getFiles().stream()
-                .filter(f -> f.getFileId().equals(fileId))
-                .findFirst()
-                .ifPresent(file -> {
-                    file.setContent(content);
-                    file.setLastModified(LocalDateTime.now());
-                });
+    // Rooms saved before files moved to code_files still embed them. They are
+    // moved over once, in the background like the index creation in MongoConfig
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateEmbeddedFiles() {
+        Thread.ofVirtual().name("room-files-migration").start(() -> {
+            try {
+                int moved = 0;
+                for (Document room : mongoTemplate.find(
+                        Query.query(Criteria.where("files").exists(true)), Document.class, "rooms")) {
+                    moved += moveEmbeddedFiles(room);
+                }
+                if (moved > 0) {
+                    log.info("Moved {} embedded room files to code_files", moved);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Error migrating embedded room files: {}", e.getMessage());
+            }
+        });
+    }
 
-        room.setLastModified(LocalDateTime.now());
-        roomRepository.save(room);
+    // Files already in code_files win; their embedded copies are older
+    private int moveEmbeddedFiles(Document room) {
+        String roomId = room.getString("_id");
+        List<Document> files = room.getList("files", Document.class, List.of());
+        for (Document file : files) {
+            if (file.getString("fileId") == null) {
+                continue;
+            }
+            mongoTemplate.upsert(
+                    Query.query(Criteria.where("roomId").is(roomId).and("fileId").is(file.getString("fileId"))),
+                    new Update().setOnInsert("fileName", file.getString("fileName"))
+                            .setOnInsert("language", file.getString("language"))
+                            .setOnInsert("content", file.getString("content"))
+                            .setOnInsert("lastModified", file.get("lastModified")),
+                    CodeFile.class);
+        }
+        mongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(roomId)), new Update().unset("files"), Room.class);
+        return files.size();
     }
 }
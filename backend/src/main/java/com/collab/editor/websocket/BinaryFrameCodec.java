@@ -0,0 +1,270 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.crdt.CRDTId;
+import com.collab.editor.websocket.MessageHandler.*;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Compact binary encoding for the high-volume frames, used by sessions that
+// connect with ?encoding=binary. Every frame starts with a frame type byte;
+// integers are unsigned LEB128 varints (zigzag for values that may be negative)
+// and strings are a varint byte length followed by UTF-8. Control frames
+// (USERS_LIST, FILE_CREATE, ...) stay JSON text on every session. Strings are
+// never null on the wire and lengths are checked against what the frame holds;
+// encode throws IllegalArgumentException for what it cannot represent.
+public final class BinaryFrameCodec {
+
+    static final byte OPERATION = 1;
+    static final byte OPS_BATCH = 2;
+    static final byte CURSOR_MOVE = 3;
+    static final byte CODE_CHANGE = 4;
+
+    // Presence bits for the optional operation fields
+    private static final int HAS_OPERATION_ID = 1;
+    private static final int HAS_ID = 1 << 1;
+    private static final int HAS_ORIGIN = 1 << 2;
+    private static final int HAS_TARGET = 1 << 3;
+    private static final int HAS_USER = 1 << 4;
+    private static final int HAS_CHARACTER = 1 << 5;
+    private static final int HAS_END = 1 << 6;
+    private static final int HAS_CLOCK = 1 << 7;
+
+    // Operation type byte; DELETE_RANGE also carries a length
+    private static final String[] OPERATION_TYPES = {"INSERT", "DELETE", "INSERT_TEXT", "DELETE_RANGE"};
+
+    private BinaryFrameCodec() {
+    }
+
+    // Returns null for messages that have no binary form
+    public static byte[] encode(Object message) {
+        Writer out = new Writer();
+        if (message instanceof OperationMessage m) {
+            out.writeByte(OPERATION);
+            out.writeString(m.getRoomId());
+            out.writeString(m.getFileId());
+            out.writeString(m.getUserId());
+            writeOperation(out, m.getOperation());
+        } else if (message instanceof OperationBatchMessage m) {
+            out.writeByte(OPS_BATCH);
+            out.writeString(m.getRoomId());
+            out.writeString(m.getFileId());
+            out.writeVarLong(m.getOperations().size());
+            for (CRDTOperationDTO op : m.getOperations()) {
+                writeOperation(out, op);
+            }
+        } else if (message instanceof CodeChangeMessage m && "CURSOR_MOVE".equals(m.getType())) {
+            out.writeByte(CURSOR_MOVE);
+            out.writeString(m.getFileId());
+            out.writeString(m.getUserId());
+            out.writeVarLong(zigzag(m.getLine() != null ? m.getLine() : -1));
+            out.writeVarLong(zigzag(m.getColumn() != null ? m.getColumn() : -1));
+        } else if (message instanceof CodeChangeMessage m && "CODE_CHANGE".equals(m.getType())
+                && m.getOperation() != null) {
+            out.writeByte(CODE_CHANGE);
+            out.writeString(m.getFileId());
+            writeOperation(out, m.getOperation());
+        } else {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    // Binary frames sent by clients: CODE_CHANGE carrying an operation, and CURSOR_MOVE
+    public static CodeChangeMessage decode(ByteBuffer frame) {
+        try {
+            ByteBuffer in = frame.duplicate();
+            CodeChangeMessage msg = new CodeChangeMessage();
+            byte type = in.get();
+            switch (type) {
+                case CODE_CHANGE -> {
+                    msg.setType("CODE_CHANGE");
+                    msg.setFileId(readString(in));
+                    msg.setOperation(readOperation(in));
+                }
+                case CURSOR_MOVE -> {
+                    msg.setType("CURSOR_MOVE");
+                    msg.setFileId(readString(in));
+                    msg.setUserId(readString(in));
+                    int line = (int) unzigzag(readVarLong(in));
+                    int column = (int) unzigzag(readVarLong(in));
+                    msg.setLine(line >= 0 ? line : null);
+                    msg.setColumn(column >= 0 ? column : null);
+                }
+                default -> throw new IllegalArgumentException("unknown frame type " + type);
+            }
+            return msg;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new RuntimeException("Failed to parse binary message: " + e.getMessage());
+        }
+    }
+
+    private static void writeOperation(Writer out, CRDTOperationDTO op) {
+        int flags = (op.getOperationId() != null ? HAS_OPERATION_ID : 0)
+            | (op.getId() != null ? HAS_ID : 0)
+            | (op.getOriginId() != null ? HAS_ORIGIN : 0)
+            | (op.getTargetId() != null ? HAS_TARGET : 0)
+            | (op.getUserId() != null ? HAS_USER : 0)
+            | (op.getCharacter() != null ? HAS_CHARACTER : 0)
+            | (op.getEndId() != null ? HAS_END : 0)
+            | (op.getVectorClock() != null ? HAS_CLOCK : 0);
+        int type = Arrays.asList(OPERATION_TYPES).indexOf(op.getType());
+        if (type < 0) {
+            throw new IllegalArgumentException("unknown operation type " + op.getType());
+        }
+        out.writeByte(type);
+        out.writeByte(flags);
+        if (op.getOperationId() != null) {
+            out.writeString(op.getOperationId());
+        }
+        if (op.getId() != null) {
+            writeId(out, op.getId());
+        }
+        if (op.getOriginId() != null) {
+            writeId(out, op.getOriginId());
+        }
+        if (op.getTargetId() != null) {
+            writeId(out, op.getTargetId());
+        }
+        if (op.getUserId() != null) {
+            out.writeString(op.getUserId());
+        }
+        if (op.getCharacter() != null) {
+            out.writeString(op.getCharacter());
+        }
+        if (op.getEndId() != null) {
+            writeId(out, op.getEndId());
+        }
+        if (op.getVectorClock() != null) {
+            out.writeVarLong(op.getVectorClock().size());
+            for (Map.Entry<String, Long> entry : op.getVectorClock().entrySet()) {
+                out.writeString(entry.getKey());
+                out.writeVarLong(entry.getValue());
+            }
+        }
+        out.writeVarLong(zigzag(op.getPosition()));
+        out.writeVarLong(op.getTimestamp());
+        if ("DELETE_RANGE".equals(op.getType())) {
+            out.writeVarLong(op.getLength());
+        }
+    }
+
+    private static CRDTOperationDTO readOperation(ByteBuffer in) {
+        CRDTOperationDTO op = new CRDTOperationDTO();
+        int type = in.get();
+        if (type < 0 || type >= OPERATION_TYPES.length) {
+            throw new IllegalArgumentException("unknown operation type " + type);
+        }
+        op.setType(OPERATION_TYPES[type]);
+        int flags = in.get() & 0xFF;
+        if ((flags & HAS_OPERATION_ID) != 0) {
+            op.setOperationId(readString(in));
+        }
+        if ((flags & HAS_ID) != 0) {
+            op.setId(readId(in));
+        }
+        if ((flags & HAS_ORIGIN) != 0) {
+            op.setOriginId(readId(in));
+        }
+        if ((flags & HAS_TARGET) != 0) {
+            op.setTargetId(readId(in));
+        }
+        if ((flags & HAS_USER) != 0) {
+            op.setUserId(readString(in));
+        }
+        if ((flags & HAS_CHARACTER) != 0) {
+            op.setCharacter(readString(in));
+        }
+        if ((flags & HAS_END) != 0) {
+            op.setEndId(readId(in));
+        }
+        if ((flags & HAS_CLOCK) != 0) {
+            Map<String, Long> clock = new HashMap<>();
+            for (long i = readVarLong(in); i > 0; i--) {
+                clock.put(readString(in), readVarLong(in));
+            }
+            op.setVectorClock(clock);
+        }
+        op.setPosition((int) unzigzag(readVarLong(in)));
+        op.setTimestamp(readVarLong(in));
+        if ("DELETE_RANGE".equals(op.getType())) {
+            op.setLength((int) readVarLong(in));
+        }
+        return op;
+    }
+
+    private static void writeId(Writer out, CRDTId id) {
+        out.writeString(id.getSiteId());
+        out.writeVarLong(id.getCounter());
+    }
+
+    private static CRDTId readId(ByteBuffer in) {
+        return new CRDTId(readString(in), readVarLong(in));
+    }
+
+    private static String readString(ByteBuffer in) {
+        long length = readVarLong(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("string length " + length + " past the end of the frame");
+        }
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[(int) length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("malformed varint");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class Writer extends ByteArrayOutputStream {
+
+        private Writer() {
+            super(64);
+        }
+
+        private void writeByte(int b) {
+            write(b);
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        private void writeString(String value) {
+            if (value == null) {
+                throw new IllegalArgumentException("null string field");
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+    }
+}
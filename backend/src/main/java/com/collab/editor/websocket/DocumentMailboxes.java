@@ -0,0 +1,154 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.logging.LogThrottle;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+// One mailbox per document. Messages for a document are handled by at most one
+// virtual thread at a time, in submission order, so edits to the same document
+// never race while different documents proceed in parallel. A drain hands the
+// handler everything queued so far, up to maxBatch messages per call.
+//
+// With a batching window, a drain that starts on an idle mailbox first waits up
+// to window for more messages (or until maxBatch are queued), so a burst of
+// keystrokes goes out as one frame instead of one frame per key.
+//
+// A mailbox is dropped once it has drained and nothing else came in, so rooms
+// and documents that went quiet do not keep one around.
+@Slf4j
+public class DocumentMailboxes<T> implements AutoCloseable {
+
+    private final int maxBatch;
+    private final long windowNanos;
+    private final BiConsumer<String, List<T>> handler;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Map<String, Mailbox<T>> mailboxes = new ConcurrentHashMap<>();
+
+    private final Counter messages;
+    private final Counter batches;
+    private final Timer latency;
+    private final LogThrottle errors = new LogThrottle();
+
+    public DocumentMailboxes(String name, int maxBatch, long windowMillis,
+                             BiConsumer<String, List<T>> handler, MeterRegistry meterRegistry) {
+        this.maxBatch = maxBatch;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.handler = handler;
+        this.messages = meterRegistry.counter("editor.mailbox.messages", "mailbox", name);
+        this.batches = meterRegistry.counter("editor.mailbox.batches", "mailbox", name);
+        // Time from submit until the handler has processed the message
+        this.latency = Timer.builder("editor.mailbox.latency")
+            .tag("mailbox", name)
+            .publishPercentiles(0.5, 0.99, 0.999)
+            .register(meterRegistry);
+        Gauge.builder("editor.mailbox.documents", mailboxes, Map::size)
+            .tag("mailbox", name)
+            .register(meterRegistry);
+    }
+
+    public void submit(String documentId, T message) {
+        Envelope<T> envelope = new Envelope<>(message, System.nanoTime());
+        // Queued under the map's lock, so a drained mailbox is never dropped with a message in it
+        Mailbox<T> mailbox = mailboxes.compute(documentId, (id, current) -> {
+            Mailbox<T> target = current != null ? current : new Mailbox<>(id);
+            target.queue.add(envelope);
+            return target;
+        });
+        messages.increment();
+        if (mailbox.size.incrementAndGet() >= maxBatch) {
+            Thread drainer = mailbox.drainer;
+            if (drainer != null) {
+                LockSupport.unpark(drainer);
+            }
+        }
+        if (mailbox.scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain(mailbox));
+        }
+    }
+
+    private void drain(Mailbox<T> mailbox) {
+        awaitWindow(mailbox);
+        while (true) {
+            List<T> batch = new ArrayList<>();
+            List<Envelope<T>> envelopes = new ArrayList<>();
+            Envelope<T> envelope;
+            while (batch.size() < maxBatch && (envelope = mailbox.queue.poll()) != null) {
+                mailbox.size.decrementAndGet();
+                envelopes.add(envelope);
+                batch.add(envelope.message());
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    handler.accept(mailbox.documentId, batch);
+                } catch (RuntimeException e) {
+                    errors.warn(log, "Error processing mailbox {}: {}", mailbox.documentId, e.getMessage());
+                }
+                batches.increment();
+                long now = System.nanoTime();
+                for (Envelope<T> e : envelopes) {
+                    latency.record(now - e.submittedAt(), TimeUnit.NANOSECONDS);
+                }
+            }
+
+            // Release the mailbox, unless a message slipped in after the last poll
+            if (mailbox.queue.isEmpty()) {
+                mailbox.scheduled.set(false);
+                if (mailbox.queue.isEmpty() || !mailbox.scheduled.compareAndSet(false, true)) {
+                    mailboxes.computeIfPresent(mailbox.documentId, (id, current) ->
+                        current == mailbox && current.queue.isEmpty() && !current.scheduled.get() ? null : current);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void awaitWindow(Mailbox<T> mailbox) {
+        if (windowNanos <= 0) {
+            return;
+        }
+        mailbox.drainer = Thread.currentThread();
+        long deadline = System.nanoTime() + windowNanos;
+        long remaining;
+        while (mailbox.size.get() < maxBatch && (remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+        mailbox.drainer = null;
+    }
+
+    @Override
+    public void close() {
+        executor.close();
+    }
+
+    private record Envelope<T>(T message, long submittedAt) {
+    }
+
+    private static final class Mailbox<T> {
+        private final String documentId;
+        private final Queue<Envelope<T>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile Thread drainer;
+
+        private Mailbox(String documentId) {
+            this.documentId = documentId;
+        }
+    }
+}
@@ -1,33 +1,198 @@
 package com.collab.editor.websocket;
 
+import com.collab.editor.crdt.CRDTId;
+import com.collab.editor.model.ExecutionResult;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.Data;
-import lombok.RequiredArgsConstructor;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.core.io.JsonStringEncoder;
+import tools.jackson.databind.DeserializationFeature;
 import tools.jackson.databind.ObjectMapper;
+import tools.jackson.databind.ObjectReader;
 
 import org.springframework.stereotype.Component;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
 @Component
-@RequiredArgsConstructor
 public class MessageHandler {
     
+    // Frames the server forwards without looking at their payload
+    private static final Set<String> RELAY_TYPES = Set.of("CURSOR_MOVE", "FILE_CREATE");
+    
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final ObjectReader clientMessageReader = objectMapper.readerFor(CodeChangeMessage.class);
+    // Reads a nested value, so the rest of the frame is not trailing content
+    private final ObjectReader newFileReader = objectMapper.readerFor(NewFile.class)
+        .without(DeserializationFeature.FAIL_ON_TRAILING_TOKENS);
+    
+    private final Timer parseTimer;
+    private final Timer serializeTimer;
+    private final Timer binaryParseTimer;
+    private final Timer binarySerializeTimer;
+    
+    public MessageHandler(MeterRegistry meterRegistry) {
+        this.parseTimer = meterRegistry.timer("editor.ws.parse", "encoding", "json");
+        this.serializeTimer = meterRegistry.timer("editor.ws.serialize", "encoding", "json");
+        this.binaryParseTimer = meterRegistry.timer("editor.ws.parse", "encoding", "binary");
+        this.binarySerializeTimer = meterRegistry.timer("editor.ws.serialize", "encoding", "binary");
+    }
     
     public <T> T parseMessage(String payload, Class<T> clazz) {
+        long start = System.nanoTime();
         try {
             return objectMapper.readValue(payload, clazz);
         } catch (Exception e) {
             throw new RuntimeException("Failed to parse message: " + e.getMessage());
+        } finally {
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
     
     public String serializeMessage(Object message) {
+        long start = System.nanoTime();
         try {
             return objectMapper.writeValueAsString(message);
         } catch (Exception e) {
             throw new RuntimeException("Failed to serialize message: " + e.getMessage());
+        } finally {
+            serializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    // Peeks at the type of a client frame with the streaming parser. Relay-only
+    // frames are only scanned for the fields the server needs and keep their
+    // original text, which is forwarded as is, except that a cursor move loses
+    // any userId of its own, since the server attributes it to the sender. Other frames
+    // are bound by the cached reader, continuing after the type. Clients send
+    // the type first; otherwise the whole frame is bound.
+    public ClientMessage parseClientMessage(String payload) {
+        long start = System.nanoTime();
+        try (JsonParser parser = objectMapper.createParser(payload)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("not a JSON object");
+            }
+            if (parser.nextToken() != JsonToken.PROPERTY_NAME || !"type".equals(parser.currentName())
+                    || parser.nextToken() != JsonToken.VALUE_STRING) {
+                return new ClientMessage(clientMessageReader.readValue(payload), null);
+            }
+            String type = parser.getString();
+            if (RELAY_TYPES.contains(type)) {
+                return scanRelayed(parser, type, payload);
+            }
+            CodeChangeMessage message = parser.nextToken() == JsonToken.END_OBJECT
+                ? new CodeChangeMessage()
+                : clientMessageReader.readValue(parser);
+            message.setType(type);
+            return new ClientMessage(message, null);
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to parse message: " + e.getMessage());
+        } finally {
+            parseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         }
     }
     
+    // Reads the rest of a relay-only frame, which also checks that it is well-formed
+    private ClientMessage scanRelayed(JsonParser parser, String type, String payload) {
+        CodeChangeMessage message = new CodeChangeMessage();
+        message.setType(type);
+        boolean cursor = "CURSOR_MOVE".equals(type);
+        // Start and end offsets of the cursor's own userId fields, each up to the next token
+        List<int[]> userFields = new ArrayList<>();
+        while (true) {
+            JsonToken token = parser.nextToken();
+            int offset = (int) parser.currentTokenLocation().getCharOffset();
+            if (!userFields.isEmpty() && userFields.get(userFields.size() - 1)[1] < 0) {
+                userFields.get(userFields.size() - 1)[1] = offset;
+            }
+            if (token != JsonToken.PROPERTY_NAME) {
+                break;
+            }
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+            switch (name) {
+                case "roomId" -> message.setRoomId(value == JsonToken.VALUE_STRING ? parser.getString() : null);
+                // The browser client numbers its files
+                case "fileId" -> message.setFileId(value == JsonToken.VALUE_STRING
+                    || value == JsonToken.VALUE_NUMBER_INT ? parser.getString() : null);
+                case "line" -> message.setLine(value == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : null);
+                case "column" -> message.setColumn(value == JsonToken.VALUE_NUMBER_INT ? parser.getIntValue() : null);
+                case "userId" -> {
+                    if (cursor) {
+                        userFields.add(new int[]{offset, -1});
+                    }
+                }
+                case "file" -> message.setFile(value == JsonToken.START_OBJECT ? newFileReader.readValue(parser) : null);
+                default -> { }
+            }
+            parser.skipChildren();
+        }
+        if (parser.nextToken() != null) {
+            throw new IllegalArgumentException("trailing content after the message");
+        }
+        return new ClientMessage(message, userFields.isEmpty() ? payload : withoutFields(payload, userFields));
+    }
+
+    // Each field goes up to the next token, so it takes its trailing comma along; if
+    // the object's last field went, the comma before it is left dangling and removed
+    private static String withoutFields(String payload, List<int[]> fields) {
+        StringBuilder text = new StringBuilder(payload.length());
+        int copied = 0;
+        for (int[] field : fields) {
+            text.append(payload, copied, field[0]);
+            copied = field[1];
+        }
+        text.append(payload, copied, payload.length());
+        int end = text.lastIndexOf("}");
+        int last = end - 1;
+        while (Character.isWhitespace(text.charAt(last))) {
+            last--;
+        }
+        if (text.charAt(last) == ',') {
+            text.deleteCharAt(last);
+        }
+        return text.toString();
+    }
+    
+    // The relayed text of a client frame with the sender's user id added as its first field
+    public String withUserId(String relayText, String userId) {
+        int brace = relayText.indexOf('{');
+        StringBuilder text = new StringBuilder(relayText.length() + userId.length() + 12);
+        text.append(relayText, 0, brace + 1).append("\"userId\":\"");
+        JsonStringEncoder.getInstance().quoteAsString(userId, text);
+        return text.append("\",").append(relayText, brace + 1, relayText.length()).toString();
+    }
+    
+    public CodeChangeMessage parseBinary(ByteBuffer frame) {
+        long start = System.nanoTime();
+        try {
+            return BinaryFrameCodec.decode(frame);
+        } finally {
+            binaryParseTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    // Null if the message has no binary form
+    public byte[] serializeBinary(Object message) {
+        long start = System.nanoTime();
+        try {
+            return BinaryFrameCodec.encode(message);
+        } finally {
+            binarySerializeTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    // A parsed client frame; relayText is the original text if the frame is forwarded unchanged
+    public record ClientMessage(CodeChangeMessage message, String relayText) {
+    }
+    
     @Data
     public static class CodeChangeMessage {
         private String type;
@@ -36,6 +201,35 @@ public class MessageHandler {
         private String content;
         private String userId;
         private CRDTOperationDTO operation;
+        private Map<String, Long> vectorClock;
+        private Integer line;
+        private Integer column;
+        private NewFile file;  // FILE_CREATE from the browser client
+    }
+    
+    @Data
+    public static class NewFile {
+        private String id;
+        private String name;
+        private String language;
+        private String content;
+    }
+    
+    // Full file content from clients that do not send operations
+    @Data
+    public static class CodeUpdateMessage {
+        private String type = "CODE_UPDATE";
+        private String roomId;
+        private String fileId;
+        private String userId;
+        private String content;
+        
+        public CodeUpdateMessage(String roomId, String fileId, String userId, String content) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+            this.userId = userId;
+            this.content = content;
+        }
     }
     
     @Data
@@ -62,14 +256,85 @@ public class MessageHandler {
         }
     }
     
+    @Data
+    public static class OperationMessage {
+        private String type = "OPERATION";
+        private String roomId;
+        private String fileId;
+        private String userId;
+        private CRDTOperationDTO operation;
+        
+        public OperationMessage(String roomId, String fileId, String userId, CRDTOperationDTO operation) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+            this.userId = userId;
+            this.operation = operation;
+        }
+    }
+    
+    // Several ops for one file applied in a single mailbox drain
+    @Data
+    public static class OperationBatchMessage {
+        private String type = "OPS_BATCH";
+        private String roomId;
+        private String fileId;
+        private List<CRDTOperationDTO> operations;
+        
+        public OperationBatchMessage(String roomId, String fileId, List<CRDTOperationDTO> operations) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+            this.operations = operations;
+        }
+    }
+    
+    // Answer to SYNC_REQUEST: the ops the client's vector clock does not cover
+    @Data
+    public static class SyncDeltaMessage {
+        private String type = "SYNC_DELTA";
+        private String roomId;
+        private String fileId;
+        private List<CRDTOperationDTO> operations;
+        private Map<String, Long> vectorClock;
+        
+        public SyncDeltaMessage(String roomId, String fileId, List<CRDTOperationDTO> operations,
+                                Map<String, Long> vectorClock) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+            this.operations = operations;
+            this.vectorClock = vectorClock;
+        }
+    }
+    
+    // Answer to SYNC_REQUEST when the history no longer holds everything the
+    // client missed: the whole document as a compressed CRDTSnapshotCodec snapshot
+    @Data
+    public static class SyncSnapshotMessage {
+        private String type = "SYNC_SNAPSHOT";
+        private String roomId;
+        private String fileId;
+        private byte[] snapshot;
+        
+        public SyncSnapshotMessage(String roomId, String fileId, byte[] snapshot) {
+            this.roomId = roomId;
+            this.fileId = fileId;
+            this.snapshot = snapshot;
+        }
+    }
+    
     @Data
     public static class CRDTOperationDTO {
         private String operationId;
+        private CRDTId id;
+        private CRDTId originId;
+        private CRDTId targetId;
         private String userId;
         private String type;
         private int position;
         private String character;
         private long timestamp;
+        private CRDTId endId;
+        private int length;
+        private Map<String, Long> vectorClock;
     }
     
     @Data
@@ -77,6 +342,42 @@ public class MessageHandler {
         private String code;
         private String language;
         private String roomId;
+        private String userId;
+    }
+    
+    @Data
+    public static class ExecutionOutputMessage {
+        private String type = "EXEC_OUTPUT";
+        private String jobId;
+        private String userId;
+        private String output;
+        
+        public ExecutionOutputMessage(String jobId, String userId, String output) {
+            this.jobId = jobId;
+            this.userId = userId;
+            this.output = output;
+        }
+    }
+    
+    // Sent after the last EXEC_OUTPUT chunk of a job; the output itself is not repeated
+    @Data
+    public static class ExecutionDoneMessage {
+        private String type = "EXEC_DONE";
+        private String jobId;
+        private String userId;
+        private boolean success;
+        private Integer exitCode;
+        private String error;
+        private long executionTime;
+        
+        public ExecutionDoneMessage(String jobId, String userId, ExecutionResult result) {
+            this.jobId = jobId;
+            this.userId = userId;
+            this.success = result.isSuccess();
+            this.exitCode = result.getExitCode();
+            this.error = result.getError();
+            this.executionTime = result.getExecutionTime();
+        }
     }
     
     @Data
@@ -0,0 +1,190 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.logging.LogThrottle;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Bounded outbound queue for one session, drained by its own virtual thread so
+// a slow client only ever delays itself. When the queue is full, queued cursor
+// moves are dropped first. A full-content update always replaces the one still
+// queued for the same file, in its place, so it never overtakes frames queued
+// after that one. If a frame that must be delivered still does not fit, the
+// client is too far behind and is disconnected.
+@Slf4j
+public class SessionOutbox {
+
+    // Shared by all sessions, a reconnect storm or a dead network otherwise logs once per session or frame
+    private static final LogThrottle DISCONNECTS = new LogThrottle();
+    private static final LogThrottle SEND_ERRORS = new LogThrottle();
+
+    public enum Delivery {
+        RELIABLE,   // Must be delivered in order
+        DROPPABLE,  // Superseded by the next one anyway (cursor moves)
+        COALESCE    // Only the latest frame per coalesce key matters (full-content updates)
+    }
+
+    public record Frame(WebSocketMessage<?> message, Delivery delivery, String coalesceKey) {
+
+        public static Frame reliable(WebSocketMessage<?> message) {
+            return new Frame(message, Delivery.RELIABLE, null);
+        }
+    }
+
+    private final WebSocketSession session;
+    private final boolean binary;  // Receives BinaryFrameCodec frames where one exists
+    private final int capacity;
+    private final Deque<Slot> queue = new ArrayDeque<>();
+    private final Map<String, Slot> coalescing = new HashMap<>();  // Queued COALESCE frames by key
+    private boolean writing;
+    private boolean closed;
+
+    private final MeterRegistry meterRegistry;
+    private final Gauge depthGauge;
+    private final Timer sendTimer;
+    private final Counter dropped;
+    private final Counter coalesced;
+    private final Counter overflows;
+
+    public SessionOutbox(WebSocketSession session, boolean binary, int capacity, MeterRegistry meterRegistry) {
+        this.session = session;
+        this.binary = binary;
+        this.capacity = capacity;
+        this.meterRegistry = meterRegistry;
+        this.depthGauge = Gauge.builder("editor.ws.outbound.queue", this, SessionOutbox::getQueueDepth)
+            .tag("session", session.getId())
+            .register(meterRegistry);
+        this.sendTimer = Timer.builder("editor.ws.send")
+            .tag("session", session.getId())
+            .register(meterRegistry);
+        this.dropped = meterRegistry.counter("editor.ws.outbound.shed", "reason", "dropped");
+        this.coalesced = meterRegistry.counter("editor.ws.outbound.shed", "reason", "coalesced");
+        this.overflows = meterRegistry.counter("editor.ws.outbound.overflows");
+    }
+
+    public void offer(Frame frame) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (frame.delivery() == Delivery.COALESCE) {
+                Slot queued = coalescing.get(frame.coalesceKey());
+                if (queued != null) {
+                    queued.frame = frame;
+                    coalesced.increment();
+                    return;
+                }
+            }
+            if (queue.size() >= capacity) {
+                int before = queue.size();
+                queue.removeIf(slot -> slot.frame.delivery() == Delivery.DROPPABLE);
+                dropped.increment(before - queue.size());
+            }
+            if (queue.size() < capacity) {
+                Slot slot = new Slot(frame);
+                queue.add(slot);
+                if (frame.delivery() == Delivery.COALESCE) {
+                    coalescing.put(frame.coalesceKey(), slot);
+                }
+                if (!writing) {
+                    writing = true;
+                    Thread.ofVirtual().name("ws-writer-" + session.getId()).start(this::drain);
+                }
+                return;
+            }
+            if (frame.delivery() == Delivery.DROPPABLE) {
+                dropped.increment();
+                return;
+            }
+            closed = true;
+            queue.clear();
+            coalescing.clear();
+        }
+
+        overflows.increment();
+        DISCONNECTS.warn(log, "Disconnecting slow session {}: outbound queue full", session.getId());
+        Thread.ofVirtual().start(() -> {
+            try {
+                session.close(CloseStatus.SESSION_NOT_RELIABLE);
+            } catch (IOException e) {
+                SEND_ERRORS.warn(log, "Error closing session {}: {}", session.getId(), e.getMessage());
+            }
+        });
+    }
+
+    private void drain() {
+        while (true) {
+            Frame frame;
+            synchronized (this) {
+                Slot slot = queue.poll();
+                if (slot == null) {
+                    writing = false;
+                    return;
+                }
+                frame = slot.frame;
+                if (frame.delivery() == Delivery.COALESCE) {
+                    coalescing.remove(frame.coalesceKey(), slot);
+                }
+            }
+            if (!session.isOpen()) {
+                continue;
+            }
+            long startedAt = System.nanoTime();
+            try {
+                session.sendMessage(payloadFor(frame));
+            } catch (IOException e) {
+                SEND_ERRORS.warn(log, "Error sending message to session {}: {}", session.getId(), e.getMessage());
+            }
+            sendTimer.record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    // Binary frames are shared by every recipient of a broadcast and sending
+    // consumes the buffer position, so each send reads through its own view
+    private static WebSocketMessage<?> payloadFor(Frame frame) {
+        if (frame.message() instanceof BinaryMessage message) {
+            return new BinaryMessage(message.getPayload().duplicate(), message.isLast());
+        }
+        return frame.message();
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            queue.clear();
+            coalescing.clear();
+        }
+        meterRegistry.remove(depthGauge);
+        meterRegistry.remove(sendTimer);
+    }
+
+    // A queue entry whose COALESCE frame can be swapped for a newer one; guarded by the outbox
+    private static final class Slot {
+        private Frame frame;
+
+        private Slot(Frame frame) {
+            this.frame = frame;
+        }
+    }
+}
@@ -1,33 +1,119 @@
 package com.collab.editor.websocket;
 
+import com.collab.editor.cluster.ClusterMessage;
+import com.collab.editor.cluster.ClusterNode;
+import com.collab.editor.crdt.CRDTDocument;
 import com.collab.editor.crdt.CRDTSynchronizer;
+import com.collab.editor.logging.LogThrottle;
 import com.collab.editor.model.CRDTOperation;
+import com.collab.editor.model.ExecutionJob;
+import com.collab.editor.model.ExecutionOutputChunk;
 import com.collab.editor.service.CRDTService;
+import com.collab.editor.service.PresenceService;
 import com.collab.editor.service.RoomService;
 import com.collab.editor.websocket.MessageHandler.*;
+import com.collab.editor.websocket.SessionOutbox.Delivery;
+import com.collab.editor.websocket.SessionOutbox.Frame;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
-import org.springframework.web.socket.handler.TextWebSocketHandler;
+import org.springframework.web.socket.handler.AbstractWebSocketHandler;
 import org.springframework.web.util.UriComponentsBuilder;
 
-import java.io.IOException;
 import java.net.URI;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component
 @RequiredArgsConstructor
-public class WebSocketHandler extends TextWebSocketHandler {
+public class WebSocketHandler extends AbstractWebSocketHandler {
     
     private final CRDTService crdtService;
     private final RoomService roomService;
     private final MessageHandler messageHandler;
     private final CRDTSynchronizer crdtSynchronizer;
+    private final MeterRegistry meterRegistry;
+    private final ClusterNode clusterNode;
+    private final PresenceService presenceService;
     
     private final Map<String, Set<WebSocketSession>> roomSessions = new ConcurrentHashMap<>();
     private final Map<String, String> sessionToRoom = new ConcurrentHashMap<>();
     private final Map<String, String> sessionToUser = new ConcurrentHashMap<>();
+    private final Map<String, SessionOutbox> outboxes = new ConcurrentHashMap<>();
+    // node -> session -> room of the replicas other nodes registered with this one as their rooms' owner
+    private final Map<String, Map<String, String>> remoteReplicas = new ConcurrentHashMap<>();
+    
+    @Value("${editor.outbound.queue-capacity:256}")
+    private int outboundQueueCapacity;
+    
+    @Value("${editor.mailbox.max-batch:64}")
+    private int mailboxMaxBatch;
+    
+    @Value("${editor.batch.window-ms:10}")
+    private long batchWindowMillis;
+    
+    // Edits are applied by one writer per document, see applyEdits
+    private DocumentMailboxes<PendingEdit> mailboxes;
+    // Cursor moves are collected per room and only the latest per user is sent
+    private DocumentMailboxes<PendingCursor> cursorMailboxes;
+    
+    private Timer broadcastTimer;
+    private DistributionSummary broadcastRecipients;
+    
+    // Failures that can repeat for every message are logged at most once per interval
+    private final LogThrottle fileUpdateErrors = new LogThrottle();
+    private final LogThrottle applyErrors = new LogThrottle();
+    private final LogThrottle syncErrors = new LogThrottle();
+    private final LogThrottle binaryEncodeErrors = new LogThrottle();
+    
+    @PostConstruct
+    public void startMailboxes() {
+        mailboxes = new DocumentMailboxes<>("edits", mailboxMaxBatch, batchWindowMillis,
+            this::applyEdits, meterRegistry);
+        cursorMailboxes = new DocumentMailboxes<>("cursors", mailboxMaxBatch, batchWindowMillis,
+            this::sendCursors, meterRegistry);
+        clusterNode.setListener(this::onClusterMessage);
+        clusterNode.addMembershipListener(new ClusterNode.MembershipListener() {
+            @Override
+            public void nodeJoined(String nodeId) {
+                registerWith(nodeId);
+            }
+
+            @Override
+            public void nodeLeft(String nodeId) {
+                forgetReplicasOf(nodeId);
+                // Every node notices on its own, so each tells only its own sessions
+                presenceService.forgetNode(nodeId).forEach((roomId, users) -> users.forEach(user ->
+                    deliver(roomId, new EncodedMessage(new UserLeftMessage(user)), Set.of(), Delivery.RELIABLE, null)));
+            }
+        });
+        
+        broadcastTimer = Timer.builder("editor.ws.broadcast")
+            .publishPercentileHistogram()
+            .register(meterRegistry);
+        broadcastRecipients = meterRegistry.summary("editor.ws.broadcast.recipients");
+        Gauge.builder("editor.ws.sessions", outboxes, Map::size)
+            .register(meterRegistry);
+        Gauge.builder("editor.ws.rooms", roomSessions, Map::size)
+            .register(meterRegistry);
+    }
+    
+    @PreDestroy
+    public void stopMailboxes() {
+        mailboxes.close();
+        cursorMailboxes.close();
+    }
     
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
@@ -41,36 +127,42 @@ public class WebSocketHandler extends TextWebSocketHandler {
         
         sessionToRoom.put(session.getId(), roomId);
         sessionToUser.put(session.getId(), username);
+        boolean binary = "binary".equals(extractParam(session, "encoding"));
+        outboxes.put(session.getId(), new SessionOutbox(session, binary, outboundQueueCapacity, meterRegistry));
         
         roomSessions.computeIfAbsent(roomId, k -> ConcurrentHashMap.newKeySet()).add(session);
-        roomService.addUserToRoom(roomId, username);
+        clusterNode.joinRoom(roomId);
+        registerReplica(roomId, session.getId());
+        boolean firstSession = presenceService.join(roomId, username);
         
         // Send current users list to new user
-        Set<String> activeUsers = roomService.getActiveUsers(roomId);
-        Map<String, Object> usersList = new HashMap<>();
-        usersList.put("type", "USERS_LIST");
-        usersList.put("users", activeUsers.stream()
-            .map(user -> {
-                Map<String, String> userMap = new HashMap<>();
-                userMap.put("id", user);
-                userMap.put("name", user);
-                return userMap;
-            })
-            .toList());
-        sendMessage(session, messageHandler.serializeMessage(usersList));
+        sendMessage(session.getId(), messageHandler.serializeMessage(usersList(roomId)));
         
-        // Broadcast user joined to others
-        broadcastToRoom(roomId, new UserJoinedMessage(username), session);
+        // Broadcast user joined to others, once per user rather than per tab
+        if (firstSession) {
+            broadcastToRoom(roomId, new UserJoinedMessage(username), session.getId());
+        }
         
-        System.out.println("User " + username + " joined room " + roomId);
+        log.debug("User {} joined room {}", username, roomId);
     }
     
     @Override
     protected void handleTextMessage(WebSocketSession session, TextMessage message) throws Exception {
         String payload = message.getPayload();
-        System.out.println("Received message: " + payload);
+        log.trace("Received message: {}", payload);
         
-        CodeChangeMessage msg = messageHandler.parseMessage(payload, CodeChangeMessage.class);
+        ClientMessage parsed = messageHandler.parseClientMessage(payload);
+        dispatch(session, parsed.message(), parsed.relayText());
+    }
+    
+    // Binary sessions send operations and cursor moves in the BinaryFrameCodec format
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws Exception {
+        dispatch(session, messageHandler.parseBinary(message.getPayload()), null);
+    }
+    
+    // relayText is the frame's original text if it can be forwarded as is
+    private void dispatch(WebSocketSession session, CodeChangeMessage msg, String relayText) {
         String roomId = sessionToRoom.get(session.getId());
         String username = sessionToUser.get(session.getId());
         
@@ -84,112 +176,429 @@ public class WebSocketHandler extends TextWebSocketHandler {
                 handleCodeChange(roomId, msg, session, username);
                 break;
             case "FILE_CREATE":
-                handleFileCreate(roomId, msg, session);
+                handleFileCreate(roomId, msg, relayText, session);
                 break;
             case "FILE_SAVE":
                 handleFileSave(roomId, msg, session);
                 break;
             case "CURSOR_MOVE":
-                broadcastToRoom(roomId, msg, session);
+                msg.setUserId(username);
+                String text = relayText != null ? messageHandler.withUserId(relayText, username) : null;
+                cursorMailboxes.submit(roomId, new PendingCursor(session, msg, text));
+                break;
+            case "SYNC_REQUEST":
+                handleSyncRequest(roomId, msg, session);
+                break;
+            case "SYNC_ACK":
+                handleSyncAck(roomId, msg, session);
                 break;
             default:
-                System.out.println("Unknown message type: " + msg.getType());
+                log.debug("Unknown message type: {}", msg.getType());
         }
     }
     
     private void handleCodeChange(String roomId, CodeChangeMessage msg, WebSocketSession sender, String username) {
-        System.out.println("Code change in room " + roomId + " by " + username);
+        log.debug("Code change in room {} by {}", roomId, username);
         
-        // Apply CRDT operation if provided
+        // Operation-based clients: queue the op on the document's mailbox, on the node that owns the room
         if (msg.getOperation() != null) {
             CRDTOperation operation = convertToOperation(msg.getOperation());
-            crdtService.applyOperation(roomId, msg.getFileId(), operation);
-            crdtSynchronizer.addOperation(roomId + ":" + msg.getFileId(), operation);
+            if (operation.getUserId() == null) {
+                operation.setUserId(username);
+            }
+            // Server-assigned sites are reserved, a client op naming one could collide with them
+            if (operation.getId() != null && (operation.getId().getSiteId() == null
+                    || CRDTDocument.isServerSite(operation.getId().getSiteId()))) {
+                return;
+            }
+            if (clusterNode.isOwner(roomId)) {
+                mailboxes.submit(roomId + ":" + msg.getFileId(),
+                    new PendingEdit(roomId, msg.getFileId(), sender.getId(), operation, null, null));
+            } else {
+                clusterNode.forward(ClusterMessage.operation(roomId, msg.getFileId(), sender.getId(), operation));
+            }
+            return;
         }
         
-        // Update file content directly
+        // Clients that do not send operations still send the whole file
         if (msg.getContent() != null && msg.getFileId() != null) {
-            try {
-                roomService.updateFile(roomId, msg.getFileId(), msg.getContent());
-            } catch (Exception e) {
-                System.err.println("Error updating file: " + e.getMessage());
-            }
+            replaceContent(roomId, msg.getFileId(), sender.getId(), username, msg.getContent());
         }
         
-        // Prepare broadcast message
-        Map<String, Object> broadcastMsg = new HashMap<>();
-        broadcastMsg.put("type", "CODE_UPDATE");
-        broadcastMsg.put("content", msg.getContent());
-        broadcastMsg.put("fileId", msg.getFileId());
-        broadcastMsg.put("userId", username);
-        broadcastMsg.put("roomId", roomId);
+        CodeUpdateMessage broadcastMsg = new CodeUpdateMessage(roomId, msg.getFileId(), username, msg.getContent());
         
-        // Broadcast to all users in room EXCEPT sender
-        broadcastToRoom(roomId, broadcastMsg, sender);
+        // Broadcast to all users in room EXCEPT sender; a newer copy of the file replaces one still queued
+        broadcastToRoom(roomId, broadcastMsg, sender.getId(), Delivery.COALESCE, "CODE_UPDATE:" + msg.getFileId());
+    }
+    
+    // The new content becomes ops on the live document, applied in order with
+    // everyone's ops, so the CRDT, its snapshot and the saved content never diverge
+    private void replaceContent(String roomId, String fileId, String senderId, String username, String content) {
+        if (clusterNode.isOwner(roomId)) {
+            mailboxes.submit(roomId + ":" + fileId, new PendingEdit(roomId, fileId, senderId, null, content, username));
+        } else {
+            clusterNode.forward(ClusterMessage.replace(roomId, fileId, senderId, username, content));
+        }
+    }
+    
+    // Runs on the document's mailbox thread: applies everything queued for the
+    // document in order and sends the applied ops to the room as one frame
+    private void applyEdits(String documentId, List<PendingEdit> edits) {
+        PendingEdit first = edits.get(0);
+        List<CRDTOperationDTO> applied = new ArrayList<>(edits.size());
+        List<String> appliedSenders = new ArrayList<>(edits.size());
+        for (PendingEdit edit : edits) {
+            try {
+                if (edit.operation() != null && edit.operation().getId() != null && !crdtSynchronizer.claimSite(
+                        edit.roomId(), edit.operation().getId().getSiteId(), edit.senderId())) {
+                    applyErrors.warn(log, "Dropping an operation for {}: site {} belongs to another session",
+                        documentId, edit.operation().getId().getSiteId());
+                    continue;
+                }
+                List<CRDTOperation> operations = edit.operation() != null ? List.of(edit.operation())
+                    : crdtService.createReplaceOperations(edit.roomId(), edit.fileId(), edit.userId(), edit.content());
+                for (CRDTOperation operation : operations) {
+                    if (crdtService.applyOperation(edit.roomId(), edit.fileId(), operation)) {
+                        crdtSynchronizer.addOperation(documentId, operation);
+                        applied.add(convertToDTO(operation));
+                        appliedSenders.add(edit.senderId());
+                    }
+                }
+            } catch (RuntimeException e) {
+                applyErrors.warn(log, "Error applying operation to {}: {}", documentId, e.getMessage());
+            }
+        }
+        if (applied.isEmpty()) {
+            return;
+        }
         
-        System.out.println("Broadcasted code change to room " + roomId);
+        // Everyone but the senders gets every op; each sender gets everyone else's,
+        // since position-based clients cannot tell their own ops apart
+        Set<String> senders = new LinkedHashSet<>(appliedSenders);
+        broadcastToRoom(first.roomId(), new EncodedMessage(opsFrame(first, applied)), senders, Delivery.RELIABLE, null);
+        if (senders.size() > 1) {
+            for (String sender : senders) {
+                List<CRDTOperationDTO> others = new ArrayList<>(applied.size());
+                for (int i = 0; i < applied.size(); i++) {
+                    if (!sender.equals(appliedSenders.get(i))) {
+                        others.add(applied.get(i));
+                    }
+                }
+                sendToSession(first.roomId(), sender, opsFrame(first, others));
+            }
+        }
+    }
+    
+    private static Object opsFrame(PendingEdit first, List<CRDTOperationDTO> operations) {
+        return operations.size() == 1
+            ? new OperationMessage(first.roomId(), first.fileId(), operations.get(0).getUserId(), operations.get(0))
+            : new OperationBatchMessage(first.roomId(), first.fileId(), operations);
+    }
+    
+    // Runs on the room's cursor mailbox thread once per batching window
+    private void sendCursors(String roomId, List<PendingCursor> moves) {
+        Map<String, PendingCursor> latest = new LinkedHashMap<>();
+        for (PendingCursor move : moves) {
+            latest.remove(move.message().getUserId());
+            latest.put(move.message().getUserId(), move);
+        }
+        for (PendingCursor move : latest.values()) {
+            broadcastToRoom(roomId, new EncodedMessage(move.message(), move.text()), move.sender().getId(),
+                Delivery.DROPPABLE, null);
+        }
+    }
+    
+    // Jobs submitted through ExecutionController stream their output to everyone in the room
+    @EventListener
+    public void onExecutionOutput(ExecutionOutputChunk chunk) {
+        broadcastToRoom(chunk.getRoomId(),
+            new ExecutionOutputMessage(chunk.getJobId(), chunk.getUserId(), chunk.getOutput()), null);
+    }
+    
+    @EventListener
+    public void onExecutionFinished(ExecutionJob job) {
+        if (!job.getRoomId().isEmpty()) {
+            broadcastToRoom(job.getRoomId(), new ExecutionDoneMessage(job.getId(), job.getUserId(), job.getResult()), null);
+        }
     }
     
-    private void handleFileCreate(String roomId, CodeChangeMessage msg, WebSocketSession sender) {
-        System.out.println("File creation in room " + roomId);
-        broadcastToRoom(roomId, msg, sender);
+    // Edits, sync requests and replicas forwarded to this node as the room's owner, and frames for this node's sessions
+    private void onClusterMessage(ClusterMessage message) {
+        switch (message.getType()) {
+            case OPERATION:
+                mailboxes.submit(message.getRoomId() + ":" + message.getFileId(), new PendingEdit(message.getRoomId(),
+                    message.getFileId(), message.getSenderSessionId(), message.getOperation(), null, null));
+                break;
+            case REPLACE:
+                mailboxes.submit(message.getRoomId() + ":" + message.getFileId(), new PendingEdit(message.getRoomId(),
+                    message.getFileId(), message.getSenderSessionId(), null, message.getText(), message.getUserId()));
+                break;
+            case SYNC:
+                Object response = syncResponse(message.getRoomId(), message.getFileId(), message.getVectorClock());
+                if (response != null) {
+                    clusterNode.broadcast(ClusterMessage.direct(message.getRoomId(), message.getSenderSessionId(),
+                        messageHandler.serializeMessage(response)));
+                }
+                break;
+            case BROADCAST:
+                deliver(message.getRoomId(), new EncodedMessage(message.getText(), message.getBinary()),
+                    message.getExcludedSessionIds() != null ? message.getExcludedSessionIds() : Set.of(),
+                    Delivery.valueOf(message.getDelivery()), message.getCoalesceKey());
+                break;
+            case DIRECT:
+                sendMessage(message.getSenderSessionId(), message.getText());
+                break;
+            case REGISTER:
+                remoteReplicas.computeIfAbsent(message.getOrigin(), k -> new ConcurrentHashMap<>())
+                    .put(message.getSenderSessionId(), message.getRoomId());
+                crdtSynchronizer.registerReplica(message.getRoomId(), message.getSenderSessionId());
+                break;
+            case UNREGISTER:
+                Map<String, String> replicas = remoteReplicas.get(message.getOrigin());
+                if (replicas != null) {
+                    replicas.remove(message.getSenderSessionId());
+                }
+                crdtSynchronizer.unregisterReplica(message.getRoomId(), message.getSenderSessionId());
+                break;
+            case ACK:
+                crdtSynchronizer.acknowledge(message.getRoomId(), message.getRoomId() + ":" + message.getFileId(),
+                    message.getSenderSessionId(), message.getVectorClock());
+                break;
+            case PRESENCE:
+                presenceService.onPresence(message);
+                break;
+            case PRESENCE_REPLY:
+                // Users who were here before this node joined the room never sent it USER_JOINED
+                if (presenceService.onPresence(message)) {
+                    deliver(message.getRoomId(), new EncodedMessage(usersList(message.getRoomId())), Set.of(),
+                        Delivery.RELIABLE, null);
+                }
+                break;
+        }
+    }
+    
+    private Map<String, Object> usersList(String roomId) {
+        Map<String, Object> usersList = new HashMap<>();
+        usersList.put("type", "USERS_LIST");
+        usersList.put("users", presenceService.getUsers(roomId).stream()
+            .map(user -> {
+                Map<String, String> userMap = new HashMap<>();
+                userMap.put("id", user);
+                userMap.put("name", user);
+                return userMap;
+            })
+            .toList());
+        return usersList;
+    }
+    
+    // A (re)connecting client sends its vector clock per file and gets back
+    // only the ops it has not seen, or a snapshot if those are no longer all kept
+    private void handleSyncRequest(String roomId, CodeChangeMessage msg, WebSocketSession session) {
+        if (msg.getFileId() == null) {
+            return;
+        }
+        Map<String, Long> clock = msg.getVectorClock() != null ? msg.getVectorClock() : Map.of();
+        if (!clusterNode.isOwner(roomId)) {
+            clusterNode.forward(ClusterMessage.sync(roomId, msg.getFileId(), session.getId(), clock));
+            return;
+        }
+        Object response = syncResponse(roomId, msg.getFileId(), clock);
+        if (response != null) {
+            sendMessage(session.getId(), messageHandler.serializeMessage(response));
+        }
+    }
+    
+    private Object syncResponse(String roomId, String fileId, Map<String, Long> clock) {
+        try {
+            // Read first: loading the document starts its history, and the delta may then run past this clock but not behind it
+            Map<String, Long> serverClock = crdtService.getVectorClock(roomId, fileId);
+            Optional<List<CRDTOperation>> delta = crdtSynchronizer.getOperationsNotCoveredBy(roomId + ":" + fileId, clock);
+            if (delta.isPresent()) {
+                List<CRDTOperationDTO> operations = delta.get().stream().map(this::convertToDTO).toList();
+                return new SyncDeltaMessage(roomId, fileId, operations, serverClock);
+            }
+            return new SyncSnapshotMessage(roomId, fileId, crdtService.getCompressedSnapshot(roomId, fileId));
+        } catch (RuntimeException e) {
+            syncErrors.warn(log, "Error syncing {}:{}: {}", roomId, fileId, e.getMessage());
+            return null;
+        }
+    }
+    
+
+    private void handleSyncAck(String roomId, CodeChangeMessage msg, WebSocketSession sender) {
+        if (msg.getFileId() != null && msg.getVectorClock() != null) {
+            if (clusterNode.isOwner(roomId)) {
+                crdtSynchronizer.acknowledge(roomId, roomId + ":" + msg.getFileId(), sender.getId(), msg.getVectorClock());
+            } else {
+                clusterNode.forward(ClusterMessage.replica(ClusterMessage.Type.ACK, roomId, msg.getFileId(),
+                    sender.getId(), msg.getVectorClock()));
+            }
+        }
+    }
+
+    // The owner's synchronizer keeps tombstones until every replica in the room acknowledged them
+    private void registerReplica(String roomId, String sessionId) {
+        if (clusterNode.isOwner(roomId)) {
+            crdtSynchronizer.registerReplica(roomId, sessionId);
+        } else {
+            clusterNode.forward(ClusterMessage.replica(ClusterMessage.Type.REGISTER, roomId, null, sessionId, null));
+        }
+    }
+
+    private void unregisterReplica(String roomId, String sessionId) {
+        if (clusterNode.isOwner(roomId)) {
+            crdtSynchronizer.unregisterReplica(roomId, sessionId);
+        } else {
+            clusterNode.forward(ClusterMessage.replica(ClusterMessage.Type.UNREGISTER, roomId, null, sessionId, null));
+        }
+    }
+
+    // A node that just started knows none of this node's sessions in the rooms it owns
+    private void registerWith(String nodeId) {
+        sessionToRoom.forEach((sessionId, roomId) -> {
+            if (nodeId.equals(clusterNode.ownerOf(roomId))) {
+                clusterNode.forward(ClusterMessage.replica(ClusterMessage.Type.REGISTER, roomId, null, sessionId, null));
+            }
+        });
+    }
+
+    // The sessions of a node that stopped or went quiet must not hold back tombstone collection
+    private void forgetReplicasOf(String nodeId) {
+        Map<String, String> replicas = remoteReplicas.remove(nodeId);
+        if (replicas != null) {
+            replicas.forEach((sessionId, roomId) -> crdtSynchronizer.unregisterReplica(roomId, sessionId));
+        }
+    }
+    
+    // The file is stored before it is announced, so edits to it find it
+    private void handleFileCreate(String roomId, CodeChangeMessage msg, String relayText, WebSocketSession sender) {
+        log.debug("File creation in room {}", roomId);
+        NewFile file = msg.getFile() != null ? msg.getFile() : new NewFile();
+        String fileId = msg.getFileId() != null ? msg.getFileId() : file.getId();
+        if (fileId != null) {
+            try {
+                roomService.createFile(roomId, fileId, file.getName(), file.getLanguage(),
+                    file.getContent() != null ? file.getContent() : msg.getContent());
+            } catch (RuntimeException e) {
+                fileUpdateErrors.warn(log, "Error creating file {} in room {}: {}", fileId, roomId, e.getMessage());
+            }
+        }
+        broadcastToRoom(roomId, new EncodedMessage(msg, relayText), sender.getId(), Delivery.RELIABLE, null);
     }
     
     private void handleFileSave(String roomId, CodeChangeMessage msg, WebSocketSession sender) {
-        System.out.println("File save in room " + roomId);
+        log.debug("File save in room {}", roomId);
         if (msg.getFileId() != null && msg.getContent() != null) {
-            roomService.updateFile(roomId, msg.getFileId(), msg.getContent());
+            replaceContent(roomId, msg.getFileId(), sender.getId(), sessionToUser.get(sender.getId()), msg.getContent());
         }
-        broadcastToRoom(roomId, msg, sender);
+        broadcastToRoom(roomId, msg, sender.getId());
     }
     
     @Override
     public void afterConnectionClosed(WebSocketSession session, CloseStatus status) throws Exception {
         String roomId = sessionToRoom.remove(session.getId());
         String username = sessionToUser.remove(session.getId());
+        SessionOutbox outbox = outboxes.remove(session.getId());
+        if (outbox != null) {
+            outbox.close();
+        }
         
         if (roomId != null) {
+            unregisterReplica(roomId, session.getId());
             Set<WebSocketSession> sessions = roomSessions.get(roomId);
+            boolean lastInRoom = false;
             if (sessions != null) {
                 sessions.remove(session);
                 if (sessions.isEmpty()) {
                     roomSessions.remove(roomId);
+                    clusterNode.leaveRoom(roomId);
+                    lastInRoom = true;
                 }
             }
             
-            if (username != null) {
-                roomService.removeUserFromRoom(roomId, username);
+            if (username != null && presenceService.leave(roomId, username)) {
                 broadcastToRoom(roomId, new UserLeftMessage(username), null);
-                System.out.println("User " + username + " left room " + roomId);
+                log.debug("User {} left room {}", username, roomId);
+            }
+            if (lastInRoom) {
+                presenceService.forgetRemote(roomId);
             }
         }
     }
     
-    private void broadcastToRoom(String roomId, Object message, WebSocketSession exclude) {
+    private void broadcastToRoom(String roomId, Object message, String excludeId) {
+        broadcastToRoom(roomId, message, excludeId, Delivery.RELIABLE, null);
+    }
+    
+    // Delivers to this node's sessions and, in cluster mode, to the room's sessions on other nodes
+    private void broadcastToRoom(String roomId, Object message, String excludeId,
+                                 Delivery delivery, String coalesceKey) {
+        broadcastToRoom(roomId, new EncodedMessage(message), excludeId, delivery, coalesceKey);
+    }
+    
+    private void broadcastToRoom(String roomId, EncodedMessage encoded, String excludeId,
+                                 Delivery delivery, String coalesceKey) {
+        broadcastToRoom(roomId, encoded, excludeId != null ? Set.of(excludeId) : Set.of(), delivery, coalesceKey);
+    }
+    
+    private void broadcastToRoom(String roomId, EncodedMessage encoded, Set<String> excludeIds,
+                                 Delivery delivery, String coalesceKey) {
+        deliver(roomId, encoded, excludeIds, delivery, coalesceKey);
+        if (clusterNode.isEnabled()) {
+            clusterNode.broadcast(ClusterMessage.broadcast(roomId, excludeIds, encoded.text(), encoded.binary(),
+                delivery.name(), coalesceKey));
+        }
+    }
+    
+    // To one session of the room, on whichever node it is connected to
+    private void sendToSession(String roomId, String sessionId, Object message) {
+        SessionOutbox outbox = outboxes.get(sessionId);
+        if (outbox != null) {
+            EncodedMessage encoded = new EncodedMessage(message);
+            byte[] binary = outbox.isBinary() ? encoded.binary() : null;
+            outbox.offer(Frame.reliable(binary != null ? new BinaryMessage(binary) : new TextMessage(encoded.text())));
+        } else if (clusterNode.isEnabled()) {
+            clusterNode.broadcast(ClusterMessage.direct(roomId, sessionId, messageHandler.serializeMessage(message)));
+        }
+    }
+    
+    // Encodes the message at most once per wire format and queues the shared
+    // frame on every recipient's outbox; never blocks on a socket
+    private void deliver(String roomId, EncodedMessage encoded, Set<String> excludeIds,
+                         Delivery delivery, String coalesceKey) {
         Set<WebSocketSession> sessions = roomSessions.get(roomId);
         if (sessions != null) {
-            String json = messageHandler.serializeMessage(message);
+            long start = System.nanoTime();
+            Frame textFrame = null;
+            Frame binaryFrame = null;
             int sentCount = 0;
             for (WebSocketSession s : sessions) {
-                if (!s.equals(exclude)) {
-                    sendMessage(s, json);
-                    sentCount++;
+                SessionOutbox outbox = outboxes.get(s.getId());
+                if (excludeIds.contains(s.getId()) || outbox == null) {
+                    continue;
                 }
+                if (outbox.isBinary() && encoded.binary() != null) {
+                    if (binaryFrame == null) {
+                        binaryFrame = new Frame(new BinaryMessage(encoded.binary()), delivery, coalesceKey);
+                    }
+                    outbox.offer(binaryFrame);
+                } else {
+                    if (textFrame == null) {
+                        textFrame = new Frame(new TextMessage(encoded.text()), delivery, coalesceKey);
+                    }
+                    outbox.offer(textFrame);
+                }
+                sentCount++;
             }
-            System.out.println("Message sent to " + sentCount + " users in room " + roomId);
+            broadcastTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            broadcastRecipients.record(sentCount);
         }
     }
     
-    private void sendMessage(WebSocketSession session, String message) {
-        try {
-            if (session.isOpen()) {
-                synchronized (session) {
-                    session.sendMessage(new TextMessage(message));
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-            e.printStackTrace();
+    private void sendMessage(String sessionId, String message) {
+        SessionOutbox outbox = outboxes.get(sessionId);
+        if (outbox != null) {
+            outbox.offer(Frame.reliable(new TextMessage(message)));
         }
     }
     
@@ -207,11 +616,89 @@ public class WebSocketHandler extends TextWebSocketHandler {
     private CRDTOperation convertToOperation(CRDTOperationDTO dto) {
         CRDTOperation op = new CRDTOperation();
         op.setOperationId(dto.getOperationId());
+        op.setId(dto.getId());
+        op.setOriginId(dto.getOriginId());
+        op.setTargetId(dto.getTargetId());
         op.setUserId(dto.getUserId());
         op.setType(CRDTOperation.OperationType.valueOf(dto.getType()));
         op.setPosition(dto.getPosition());
         op.setCharacter(dto.getCharacter());
         op.setTimestamp(dto.getTimestamp());
+        op.setEndId(dto.getEndId());
+        op.setLength(dto.getLength());
+        op.setVectorClock(dto.getVectorClock());
         return op;
     }
+    
+    private CRDTOperationDTO convertToDTO(CRDTOperation op) {
+        CRDTOperationDTO dto = new CRDTOperationDTO();
+        dto.setOperationId(op.getOperationId());
+        dto.setId(op.getId());
+        dto.setOriginId(op.getOriginId());
+        dto.setTargetId(op.getTargetId());
+        dto.setUserId(op.getUserId());
+        dto.setType(op.getType().name());
+        dto.setPosition(op.getPosition());
+        dto.setCharacter(op.getCharacter());
+        dto.setTimestamp(op.getTimestamp());
+        dto.setEndId(op.getEndId());
+        dto.setLength(op.getLength());
+        dto.setVectorClock(op.getVectorClock());
+        return dto;
+    }
+    
+    // Either an op, or the whole new content of a file from a client that does not send ops
+    private record PendingEdit(String roomId, String fileId, String senderId, CRDTOperation operation,
+                               String content, String userId) {
+    }
+    
+    // text is the client's own frame with its user id added, or null to serialize message
+    private record PendingCursor(WebSocketSession sender, CodeChangeMessage message, String text) {
+    }
+    
+    // A broadcast's payload, encoded on first use in each wire format
+    private final class EncodedMessage {
+        private final Object message;
+        private String text;
+        private byte[] binary;
+        private boolean binaryEncoded;
+        
+        private EncodedMessage(Object message) {
+            this(message, null);
+        }
+        
+        // Text already known, e.g. a client frame relayed unchanged; binary is still encoded from message
+        private EncodedMessage(Object message, String text) {
+            this.message = message;
+            this.text = text;
+        }
+        
+        // Already encoded by the node that sent the broadcast
+        private EncodedMessage(String text, byte[] binary) {
+            this.message = null;
+            this.text = text;
+            this.binary = binary;
+            this.binaryEncoded = true;
+        }
+        
+        private String text() {
+            if (text == null) {
+                text = messageHandler.serializeMessage(message);
+            }
+            return text;
+        }
+        
+        // Null if the message has no binary form, or one the codec refuses; binary sessions then get text
+        private byte[] binary() {
+            if (!binaryEncoded) {
+                binaryEncoded = true;
+                try {
+                    binary = messageHandler.serializeBinary(message);
+                } catch (IllegalArgumentException e) {
+                    binaryEncodeErrors.warn(log, "Sending {} as text: {}", message.getClass().getSimpleName(), e.getMessage());
+                }
+            }
+            return binary;
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,157 @@
+// Long-lived Node worker. Each request line on stdin is "<nonce> <json job>";
+// the job's code runs in a fresh vm context and the worker waits for the timers
+// it started. Output goes out as "O <length>\n<bytes>" frames and the job ends
+// with "E <nonce> <status> <clean>", where clean is 0 if the job left handles
+// open that would outlive it. Node cannot fork, so jobs share the process and
+// the pool only reuses a worker for the same owner. Each job runs in the work
+// dir it names. A request without a job is a health check.
+const readline = require('readline');
+const stream = require('stream');
+const util = require('util');
+const vm = require('vm');
+
+// Opened up front, so the handle does not count against the first job
+const stdout = process.stdout;
+const jobs = [];
+let busy = false;
+
+function frame(header, payload) {
+  stdout.write(payload ? Buffer.concat([Buffer.from(header + '\n'), payload]) : header + '\n');
+}
+
+function emit(chunk) {
+  const bytes = Buffer.isBuffer(chunk) ? chunk : Buffer.from(String(chunk));
+  if (bytes.length > 0) {
+    frame('O ' + bytes.length, bytes);
+  }
+  return true;
+}
+
+// Sockets, servers, watchers and the like; timers are tracked per job
+function openHandles() {
+  return process.getActiveResourcesInfo().filter((r) => r !== 'Timeout' && r !== 'Immediate').length;
+}
+
+class ExitSignal {
+  constructor(code) {
+    this.code = code;
+  }
+}
+
+function runJob(code, done) {
+  let status = 0;
+  let pending = 0;
+  let finished = false;
+  const handles = new Set();
+  const print = (...args) => emit(util.format(...args) + '\n');
+  const fail = (e) => {
+    if (e instanceof ExitSignal) {
+      status = e.code || 0;
+      handles.forEach((h) => clearTimeout(h));
+      handles.clear();
+      pending = 0;
+    } else {
+      print(e && e.stack ? e.stack : String(e));
+      status = 1;
+    }
+  };
+  const track = (schedule, repeat) => (fn, delay, ...args) => {
+    pending++;
+    const handle = schedule(() => {
+      if (!repeat) {
+        pending--;
+        handles.delete(handle);
+      }
+      try {
+        fn(...args);
+      } catch (e) {
+        fail(e);
+      }
+    }, delay);
+    handles.add(handle);
+    return handle;
+  };
+  const untrack = (clear) => (handle) => {
+    if (handles.delete(handle)) {
+      pending--;
+    }
+    clear(handle);
+  };
+  const onRejection = (e) => fail(e);
+  process.on('unhandledRejection', onRejection);
+
+  const sandbox = {
+    console: { log: print, info: print, warn: print, error: print, debug: print },
+    require,
+    Buffer,
+    URL,
+    TextEncoder,
+    TextDecoder,
+    setTimeout: track(setTimeout, false),
+    setInterval: track(setInterval, true),
+    setImmediate: (fn, ...args) => track(setTimeout, false)(fn, 0, ...args),
+    clearTimeout: untrack(clearTimeout),
+    clearInterval: untrack(clearInterval),
+    process: Object.create(process, {
+      exit: {
+        value: (code) => {
+          throw new ExitSignal(code);
+        },
+      },
+      stdin: { value: stream.Readable.from([]) },
+      stdout: { value: { write: emit } },
+      stderr: { value: { write: emit } },
+    }),
+  };
+
+  try {
+    vm.runInNewContext(code, sandbox, { filename: 'main.js' });
+  } catch (e) {
+    fail(e);
+  }
+
+  const check = () => {
+    if (finished) {
+      return;
+    }
+    if (pending > 0) {
+      setTimeout(check, 1);
+      return;
+    }
+    finished = true;
+    process.removeListener('unhandledRejection', onRejection);
+    done(status);
+  };
+  setImmediate(check);
+}
+
+function next() {
+  if (busy || jobs.length === 0) {
+    return;
+  }
+  busy = true;
+  const line = jobs.shift();
+  const space = line.indexOf(' ');
+  const nonce = line.substring(0, space);
+  const request = line.substring(space + 1);
+  const handles = openHandles();
+  const finish = (status) => {
+    frame('E ' + nonce + ' ' + status + ' ' + (openHandles() > handles ? 0 : 1));
+    busy = false;
+    next();
+  };
+  if (request.trim() === '') {
+    finish(0);
+  } else {
+    const job = JSON.parse(request);
+    if (job.cwd) {
+      process.chdir(job.cwd);
+    }
+    runJob(job.code, finish);
+  }
+}
+
+readline.createInterface({ input: process.stdin }).on('line', (line) => {
+  jobs.push(line);
+  next();
+});
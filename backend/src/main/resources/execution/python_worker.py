@@ -0,0 +1,97 @@
+# Long-lived Python worker. Each request line on stdin is "<nonce> <json job>".
+# The job runs in a forked child with fresh globals, so it never sees the
+# worker's stdin or stdout, and whatever it changes in the interpreter, threads
+# included, dies with the child. The child's stdout and stderr go to a pipe the
+# worker relays as "O <length>\n<bytes>" frames; the job ends with the frame
+# "E <nonce> <status> 1". Each job runs in the work dir it names. A request
+# without a job is a health check.
+import json
+import os
+import select
+import signal
+import sys
+import traceback
+
+OUT = sys.stdout.buffer
+
+
+def frame(header, payload=b""):
+    OUT.write(header + b"\n" + payload)
+    OUT.flush()
+
+
+def run(code):
+    try:
+        exec(compile(code, "main.py", "exec"), {"__name__": "__main__", "__builtins__": __builtins__})
+        return 0
+    except SystemExit as e:
+        if e.code is None:
+            return 0
+        return e.code if isinstance(e.code, int) else 1
+    except BaseException:
+        traceback.print_exc()
+        return 1
+
+
+def child(job, out_fd):
+    status = 1
+    try:
+        os.setsid()
+        devnull = os.open(os.devnull, os.O_RDONLY)
+        os.dup2(devnull, 0)
+        os.dup2(out_fd, 1)
+        os.dup2(out_fd, 2)
+        os.close(devnull)
+        os.close(out_fd)
+        if "cwd" in job:
+            os.chdir(job["cwd"])
+        status = run(job["code"])
+        sys.stdout.flush()
+        sys.stderr.flush()
+    finally:
+        os._exit(status)
+
+
+# Relays the child's output until it exits, then kills whatever it left in its
+# process group and drains what is already in the pipe
+def relay(pid, in_fd):
+    exited = False
+    while True:
+        ready, _, _ = select.select([in_fd], [], [], 0 if exited else 0.05)
+        if ready:
+            data = os.read(in_fd, 65536)
+            if not data:
+                break
+            frame(b"O %d" % len(data), data)
+        elif exited:
+            break
+        if not exited and os.waitid(os.P_PID, pid, os.WEXITED | os.WNOHANG | os.WNOWAIT) is not None:
+            exited = True
+            kill_group(pid)
+    os.close(in_fd)
+    status = os.waitstatus_to_exitcode(os.waitpid(pid, 0)[1])
+    kill_group(pid)
+    return status if status >= 0 else 128 - status
+
+
+def kill_group(pid):
+    try:
+        os.killpg(pid, signal.SIGKILL)
+    except ProcessLookupError:
+        pass
+
+
+def run_job(job):
+    in_fd, out_fd = os.pipe()
+    pid = os.fork()
+    if pid == 0:
+        os.close(in_fd)
+        child(job, out_fd)
+    os.close(out_fd)
+    return relay(pid, in_fd)
+
+
+for line in sys.stdin.buffer:
+    nonce, _, request = line.decode("utf-8").rstrip("\n").partition(" ")
+    status = run_job(json.loads(request)) if request.strip() else 0
+    frame(b"E " + nonce.encode("utf-8") + b" %d 1" % status)
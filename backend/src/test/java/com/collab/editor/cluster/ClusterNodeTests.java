@@ -0,0 +1,141 @@
+package com.collab.editor.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterNodeTests {
+
+	private final LoopbackClusterBus bus = new LoopbackClusterBus();
+	private final ClusterNode nodeA = new ClusterNode("a", List.of("a", "b"), bus);
+	private final ClusterNode nodeB = new ClusterNode("b", List.of("a", "b"), bus);
+	private final List<ClusterMessage> receivedA = new CopyOnWriteArrayList<>();
+	private final List<ClusterMessage> receivedB = new CopyOnWriteArrayList<>();
+
+	@BeforeEach
+	void setUp() throws IOException {
+		nodeA.setListener(receivedA::add);
+		nodeB.setListener(receivedB::add);
+		nodeA.start();
+		nodeB.start();
+	}
+
+	@AfterEach
+	void tearDown() {
+		nodeA.stop();
+		nodeB.stop();
+	}
+
+	@Test
+	void everyRoomHasExactlyOneOwner() {
+		for (int i = 0; i < 100; i++) {
+			assertNotEquals(nodeA.isOwner("room-" + i), nodeB.isOwner("room-" + i));
+		}
+	}
+
+	@Test
+	void forwardsEditsToTheRoomsOwnerOnly() {
+		String roomId = roomOwnedBy(nodeB);
+		nodeA.joinRoom(roomId);
+		nodeB.joinRoom(roomId);
+
+		nodeA.forward(ClusterMessage.sync(roomId, "main", "session-1", null));
+		assertEquals(List.of(), receivedA);
+		assertEquals(1, receivedB.size());
+		assertEquals(ClusterMessage.Type.SYNC, receivedB.get(0).getType());
+		assertEquals("a", receivedB.get(0).getOrigin());
+		assertEquals("session-1", receivedB.get(0).getSenderSessionId());
+	}
+
+	@Test
+	void broadcastsReachOtherNodesInTheRoomOnly() {
+		String roomId = roomOwnedBy(nodeA);
+		nodeA.joinRoom(roomId);
+
+		// B has no sessions in the room
+		nodeA.broadcast(ClusterMessage.direct(roomId, "session-1", "first"));
+		assertEquals(List.of(), receivedB);
+
+		nodeB.joinRoom(roomId);
+		nodeA.broadcast(ClusterMessage.direct(roomId, "session-1", "second"));
+		assertEquals(List.of("second"), receivedB.stream().map(ClusterMessage::getText).toList());
+		// A node does not hear its own broadcasts
+		assertEquals(List.of(), receivedA);
+
+		nodeB.leaveRoom(roomId);
+		nodeA.broadcast(ClusterMessage.direct(roomId, "session-1", "third"));
+		assertEquals(1, receivedB.size());
+	}
+
+	@Test
+	void tellsMembershipListenersWhenNodesJoinRestartAndLeave() {
+		List<String> events = new CopyOnWriteArrayList<>();
+		nodeA.addMembershipListener(new ClusterNode.MembershipListener() {
+			@Override
+			public void nodeJoined(String nodeId) {
+				events.add("joined " + nodeId);
+			}
+
+			@Override
+			public void nodeLeft(String nodeId) {
+				events.add("left " + nodeId);
+			}
+		});
+
+		nodeB.heartbeat();
+		nodeB.heartbeat();
+		assertEquals(List.of("joined b"), events);
+
+		// A node that restarted without saying goodbye comes back with a new epoch
+		heartbeatFrom("b", nodeB.getEpoch() + 1);
+		assertEquals(List.of("joined b", "left b", "joined b"), events);
+
+		heartbeatFrom("b", nodeB.getEpoch());
+		events.clear();
+		nodeB.stop();
+		assertEquals(List.of("left b"), events);
+	}
+
+	@Test
+	void dropsNodesThatStopHeartbeating() throws Exception {
+		ClusterNode impatient = new ClusterNode("c", List.of("a", "b", "c"), bus, 1000);
+		List<String> left = new CopyOnWriteArrayList<>();
+		impatient.addMembershipListener(new ClusterNode.MembershipListener() {
+			@Override
+			public void nodeJoined(String nodeId) {
+			}
+
+			@Override
+			public void nodeLeft(String nodeId) {
+				left.add(nodeId);
+			}
+		});
+		impatient.start();
+		nodeA.heartbeat();
+		impatient.heartbeat();
+		assertEquals(List.of(), left);
+
+		Thread.sleep(1500);
+		impatient.heartbeat();
+		assertEquals(List.of("a"), left);
+		impatient.stop();
+	}
+
+	private void heartbeatFrom(String nodeId, long epoch) {
+		ClusterMessage heartbeat = ClusterMessage.membership(ClusterMessage.Type.HEARTBEAT, epoch);
+		heartbeat.setOrigin(nodeId);
+		bus.publish("members", new ObjectMapper().writeValueAsBytes(heartbeat));
+	}
+
+	private static String roomOwnedBy(ClusterNode node) {
+		return IntStream.range(0, 100).mapToObj(i -> "room-" + i).filter(node::isOwner).findFirst().orElseThrow();
+	}
+}
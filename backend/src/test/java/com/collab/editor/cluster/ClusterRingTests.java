@@ -0,0 +1,58 @@
+package com.collab.editor.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ClusterRingTests {
+
+	private static final int KEYS = 3000;
+
+	@Test
+	void ownsEveryKeyByOneListedNodeTheSameWayEachTime() {
+		ClusterRing ring = new ClusterRing(List.of("a", "b", "c"), 128);
+		ClusterRing again = new ClusterRing(List.of("c", "a", "b"), 128);
+		for (int i = 0; i < KEYS; i++) {
+			String owner = ring.ownerOf("room-" + i);
+			assertTrue(List.of("a", "b", "c").contains(owner));
+			assertEquals(owner, again.ownerOf("room-" + i));
+		}
+	}
+
+	@Test
+	void spreadsKeysEvenly() {
+		ClusterRing ring = new ClusterRing(List.of("a", "b", "c"), 128);
+		Map<String, Integer> owned = new HashMap<>();
+		for (int i = 0; i < KEYS; i++) {
+			owned.merge(ring.ownerOf("room-" + i), 1, Integer::sum);
+		}
+		assertEquals(3, owned.size());
+		for (int count : owned.values()) {
+			assertTrue(count > KEYS / 5 && count < KEYS / 2, owned.toString());
+		}
+	}
+
+	@Test
+	void addingANodeOnlyMovesKeysOntoIt() {
+		ClusterRing before = new ClusterRing(List.of("a", "b", "c"), 128);
+		ClusterRing after = new ClusterRing(List.of("a", "b", "c", "d"), 128);
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String owner = after.ownerOf("room-" + i);
+			if (!owner.equals(before.ownerOf("room-" + i))) {
+				assertEquals("d", owner);
+				moved++;
+			}
+		}
+		assertTrue(moved > KEYS / 8 && moved < KEYS * 3 / 8, "moved " + moved);
+	}
+
+	@Test
+	void needsANode() {
+		assertThrows(IllegalArgumentException.class, () -> new ClusterRing(List.of(), 128));
+	}
+}
@@ -0,0 +1,244 @@
+package com.collab.editor.cluster;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SocketClusterBusTests {
+
+	private static final String SECRET = "test-secret";
+	private static final int MAX_FRAME_BYTES = 1024;
+
+	private final List<AutoCloseable> closeables = new ArrayList<>();
+
+	@AfterEach
+	void tearDown() throws Exception {
+		for (AutoCloseable closeable : closeables) {
+			closeable.close();
+		}
+	}
+
+	@Test
+	void deliversToSubscribedPeersAndRefusesOthers() throws Exception {
+		SocketClusterBus b = start(List.of(), SECRET);
+		List<String> received = new CopyOnWriteArrayList<>();
+		b.subscribe("room:x", message -> received.add(new String(message, StandardCharsets.UTF_8)));
+
+		SocketClusterBus a = start(List.of(address(b.getPort())), SECRET);
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (received.isEmpty() && System.nanoTime() < deadline) {
+			a.publish("room:x", "from a".getBytes(StandardCharsets.UTF_8));
+			Thread.sleep(20);
+		}
+		assertTrue(received.contains("from a"));
+
+		// A node without the secret never gets a message through
+		SocketClusterBus c = start(List.of(address(b.getPort())), "wrong");
+		for (int i = 0; i < 50; i++) {
+			c.publish("room:x", "from c".getBytes(StandardCharsets.UTF_8));
+			Thread.sleep(20);
+		}
+		assertFalse(received.contains("from c"));
+	}
+
+	@Test
+	void sendsOnlyTopicsThePeerSubscribesTo() throws Exception {
+		try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			SocketClusterBus a = start(List.of(address(server.getLocalPort())), SECRET);
+			try (Socket socket = server.accept()) {
+				socket.setSoTimeout(5000);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				acceptAndAuthenticate(in, out);
+				out.writeByte('S');
+				out.writeUTF("room:x");
+				out.flush();
+
+				Thread publisher = Thread.ofVirtual().start(() -> {
+					while (!Thread.currentThread().isInterrupted()) {
+						a.publish("room:y", new byte[]{1});
+						a.publish("room:x", new byte[]{2});
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				});
+				try {
+					for (int i = 0; i < 3; i++) {
+						assertEquals('M', in.readByte());
+						assertEquals("room:x", in.readUTF());
+						assertEquals(1, in.readInt());
+						assertEquals(2, in.readByte());
+					}
+				} finally {
+					publisher.interrupt();
+				}
+			}
+		}
+	}
+
+	@Test
+	void disconnectsPeersThatStopReadingInsteadOfDroppingMessages() throws Exception {
+		try (ServerSocket server = new ServerSocket()) {
+			// A small window, so the kernel does not buffer everything the bus sends
+			server.setReceiveBufferSize(4096);
+			server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1);
+			SocketClusterBus a = start(List.of(address(server.getLocalPort())), SECRET);
+			try (Socket socket = server.accept()) {
+				socket.setSoTimeout(30000);
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+				acceptAndAuthenticate(in, out);
+				out.writeByte('S');
+				out.writeUTF("room:x");
+				out.flush();
+
+				// Once the peer is known to be subscribed, send far more than the queue and the socket buffers hold
+				Thread probe = Thread.ofVirtual().start(() -> {
+					while (!Thread.currentThread().isInterrupted()) {
+						a.publish("room:x", ByteBuffer.allocate(4).putInt(-1).array());
+						try {
+							Thread.sleep(10);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				});
+				assertEquals(-1, readSequence(in));
+				probe.interrupt();
+				probe.join();
+				Thread publisher = Thread.ofVirtual().start(() -> {
+					for (int i = 0; i < 20000; i++) {
+						a.publish("room:x", ByteBuffer.allocate(MAX_FRAME_BYTES).putInt(i).array());
+					}
+				});
+				assertTrue(publisher.join(Duration.ofSeconds(30)));
+
+				// Everything queued before the disconnect arrives, in order and without gaps
+				int last = -1;
+				while (true) {
+					int next;
+					try {
+						next = readSequence(in);
+					} catch (EOFException e) {
+						break;
+					}
+					if (next >= 0) {
+						assertEquals(last + 1, next);
+						last = next;
+					}
+				}
+				assertTrue(last >= 0);
+				assertTrue(last < 19999);
+			}
+		}
+	}
+
+	@Test
+	void dropsPeersThatSendOversizedFrames() throws Exception {
+		SocketClusterBus b = start(List.of(), SECRET);
+		List<byte[]> received = new CopyOnWriteArrayList<>();
+		b.subscribe("room:x", received::add);
+
+		try (Socket socket = new Socket("127.0.0.1", b.getPort())) {
+			socket.setSoTimeout(5000);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+			connectAndAuthenticate(in, out);
+			out.writeByte('M');
+			out.writeUTF("room:x");
+			out.writeInt(MAX_FRAME_BYTES + 1);
+			out.write(new byte[MAX_FRAME_BYTES + 1]);
+			out.flush();
+
+			// Subscription frames may come first; the connection then ends
+			while (in.read() != -1) {
+				continue;
+			}
+		} catch (IOException e) {
+			// Reset by the bus, also fine
+		}
+		assertEquals(List.of(), received);
+	}
+
+	@Test
+	void needsASecret() {
+		assertThrows(IllegalArgumentException.class,
+			() -> new SocketClusterBus("127.0.0.1", 0, List.of(), " ", MAX_FRAME_BYTES, 100));
+	}
+
+	private SocketClusterBus start(List<InetSocketAddress> peers, String secret) throws IOException {
+		SocketClusterBus bus = new SocketClusterBus("127.0.0.1", 0, peers, secret, MAX_FRAME_BYTES, 100);
+		closeables.add(bus);
+		bus.start();
+		return bus;
+	}
+
+	private static int readSequence(DataInputStream in) throws IOException {
+		assertEquals('M', in.readByte());
+		assertEquals("room:x", in.readUTF());
+		byte[] payload = new byte[in.readInt()];
+		in.readFully(payload);
+		return ByteBuffer.wrap(payload).getInt();
+	}
+
+	private static InetSocketAddress address(int port) {
+		return new InetSocketAddress("127.0.0.1", port);
+	}
+
+	// The bus's handshake, played by hand from the accepting side
+	private static void acceptAndAuthenticate(DataInputStream in, DataOutputStream out) throws Exception {
+		byte[] ourNonce = new byte[32];
+		out.write(ourNonce);
+		out.flush();
+		byte[] theirNonce = new byte[32];
+		in.readFully(theirNonce);
+		byte[] proof = new byte[32];
+		in.readFully(proof);
+		assertArrayEquals(mac("connect", ourNonce, theirNonce), proof);
+		out.write(mac("accept", ourNonce, theirNonce));
+		out.flush();
+	}
+
+	// ... and from the connecting side
+	private static void connectAndAuthenticate(DataInputStream in, DataOutputStream out) throws Exception {
+		byte[] theirNonce = new byte[32];
+		in.readFully(theirNonce);
+		byte[] ourNonce = new byte[32];
+		out.write(ourNonce);
+		out.write(mac("connect", theirNonce, ourNonce));
+		out.flush();
+		byte[] proof = new byte[32];
+		in.readFully(proof);
+		assertArrayEquals(mac("accept", theirNonce, ourNonce), proof);
+	}
+
+	private static byte[] mac(String role, byte[] acceptorNonce, byte[] connectorNonce) throws Exception {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(new SecretKeySpec(SECRET.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+		mac.update(role.getBytes(StandardCharsets.US_ASCII));
+		mac.update(acceptorNonce);
+		return mac.doFinal(connectorNonce);
+	}
+}
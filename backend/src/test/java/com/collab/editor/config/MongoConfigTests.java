@@ -0,0 +1,43 @@
+package com.collab.editor.config;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ServerAddress;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionDescription;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandSucceededEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.BsonDocument;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@SpringBootTest
+class MongoConfigTests {
+
+	@Autowired
+	private MongoConfig mongoConfig;
+
+	@Autowired
+	private MeterRegistry meterRegistry;
+
+	@Test
+	void clientSettingsRecordCommandMetrics() {
+		MongoClientSettings.Builder builder = MongoClientSettings.builder();
+		mongoConfig.configureClientSettings(builder);
+		MongoClientSettings settings = builder.build();
+		assertFalse(settings.getCommandListeners().isEmpty());
+
+		ConnectionDescription connection = new ConnectionDescription(
+			new ServerId(new ClusterId(), new ServerAddress("localhost", 27017)));
+		CommandSucceededEvent event = new CommandSucceededEvent(null, 1, 1, connection, "collaborative_editor",
+			"find", new BsonDocument(), 1000);
+		for (CommandListener listener : settings.getCommandListeners()) {
+			listener.commandSucceeded(event);
+		}
+		assertNotNull(meterRegistry.find("mongodb.driver.commands").tag("command", "find").timer());
+	}
+}
@@ -0,0 +1,268 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRDTDocumentTests {
+
+	@Test
+	void concurrentInsertsConvergeInAnyDeliveryOrder() {
+		CRDTDocument alice = new CRDTDocument();
+		CRDTDocument bob = new CRDTDocument();
+
+		// Both replicas type at the start of an empty document without seeing each other
+		CRDTOperation a1 = insert("alice", 1, null, "a");
+		CRDTOperation a2 = insert("alice", 2, a1.getId(), "b");
+		CRDTOperation b1 = insert("bob", 1, null, "x");
+		CRDTOperation b2 = insert("bob", 2, b1.getId(), "y");
+
+		for (CRDTOperation op : List.of(a1, a2, b2, b1)) {
+			alice.applyOperation(copy(op));
+		}
+		for (CRDTOperation op : List.of(b2, a2, b1, a1)) {
+			bob.applyOperation(copy(op));
+		}
+
+		assertEquals(alice.getText(), bob.getText());
+		assertEquals(4, alice.getText().length());
+		assertTrue(alice.getPending().isEmpty());
+		assertTrue(bob.getPending().isEmpty());
+	}
+
+	@Test
+	void deleteArrivingBeforeItsInsertIsBuffered() {
+		CRDTDocument document = new CRDTDocument();
+		CRDTOperation insert = insert("alice", 1, null, "a");
+		CRDTOperation delete = CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.DELETE)
+			.id(new CRDTId("bob", 2))
+			.targetId(insert.getId())
+			.userId("bob")
+			.build();
+
+		assertTrue(document.applyOperation(delete));
+		assertEquals(1, document.getPending().size());
+
+		document.applyOperation(insert);
+		assertEquals("", document.getText());
+		assertTrue(document.getPending().isEmpty());
+		assertEquals(1, document.getTombstoneCount());
+	}
+
+	@Test
+	void serverAssignedIdsDoNotCollideWithTheClientsOwnAndRedeliveredDeletesAreIgnored() {
+		CRDTDocument document = new CRDTDocument();
+		document.applyOperation(insert("alice", 1, null, "a"));
+
+		// A position-based op from alice gets an id in a site of its own, not (alice, 2)
+		CRDTOperation typed = positional(CRDTOperation.OperationType.INSERT, 1, "b");
+		typed.setUserId("alice");
+		assertTrue(document.applyOperation(typed));
+		assertEquals(new CRDTId(CRDTDocument.SERVER_SITE_PREFIX + "alice", 2), typed.getId());
+		assertTrue(document.applyOperation(insert("alice", 2, new CRDTId("alice", 1), "c")));
+		assertEquals("abc", document.getText());
+
+		CRDTOperation delete = positional(CRDTOperation.OperationType.DELETE, 0, null);
+		delete.setUserId("alice");
+		assertTrue(document.applyOperation(delete));
+		assertFalse(document.applyOperation(copy(delete)));
+		assertEquals("bc", document.getText());
+		assertEquals(1, document.getTombstoneCount());
+	}
+
+	@Test
+	void rejectsCountersThatAreNotPositiveOrJumpFarAheadOfTheClock() {
+		CRDTDocument document = new CRDTDocument();
+		assertFalse(document.applyOperation(insert("alice", 0, null, "a")));
+		assertFalse(document.applyOperation(insert("alice", -5, null, "a")));
+		assertFalse(document.applyOperation(insert("alice", CRDTDocument.MAX_CLOCK_JUMP + 1, null, "a")));
+		CRDTOperation overflowing = insert("alice", Long.MAX_VALUE, null, "ab");
+		overflowing.setType(CRDTOperation.OperationType.INSERT_TEXT);
+		assertFalse(document.applyOperation(overflowing));
+		assertEquals("", document.getText());
+		assertEquals(0, document.getClock());
+
+		assertTrue(document.applyOperation(insert("alice", CRDTDocument.MAX_CLOCK_JUMP, null, "a")));
+		assertEquals("a", document.getText());
+	}
+
+	@Test
+	void positionalOperationsMatchPlainStringEditsAndCompact() {
+		Random random = new Random(7);
+		CRDTDocument document = new CRDTDocument();
+		StringBuilder expected = new StringBuilder();
+
+		for (int i = 0; i < 5000; i++) {
+			if (expected.length() == 0 || random.nextInt(3) > 0) {
+				int position = random.nextInt(expected.length() + 1);
+				String character = String.valueOf((char) ('a' + random.nextInt(26)));
+				document.applyOperation(positional(CRDTOperation.OperationType.INSERT, position, character));
+				expected.insert(position, character);
+			} else {
+				int position = random.nextInt(expected.length());
+				document.applyOperation(positional(CRDTOperation.OperationType.DELETE, position, null));
+				expected.deleteCharAt(position);
+			}
+			if (i % 1000 == 0) {
+				document.compact(id -> random.nextBoolean());
+			}
+		}
+
+		assertEquals(expected.toString(), document.getText());
+		document.compact(id -> true);
+		assertEquals(0, document.getTombstoneCount());
+		assertEquals(expected.toString(), document.getText());
+	}
+
+	@Test
+	void compactingInSlicesRemovesEveryStableTombstone() {
+		Random random = new Random(3);
+		CRDTDocument document = new CRDTDocument();
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 2000; i++) {
+			int position = random.nextInt(expected.length() + 1);
+			document.applyOperation(positional(CRDTOperation.OperationType.INSERT, position, "x"));
+			expected.insert(position, 'x');
+			if (random.nextInt(3) == 0) {
+				position = random.nextInt(expected.length());
+				document.applyOperation(positional(CRDTOperation.OperationType.DELETE, position, null));
+				expected.deleteCharAt(position);
+			}
+		}
+		int tombstones = document.getTombstoneCount();
+
+		int removed = 0;
+		int slices = 0;
+		for (int index = 0; index >= 0; slices++) {
+			CRDTDocument.Compaction slice = document.compact(id -> true, index, 16);
+			removed += slice.removed();
+			index = slice.nextIndex();
+		}
+		assertTrue(slices > 1);
+		assertEquals(tombstones, removed);
+		assertEquals(0, document.getTombstoneCount());
+		assertEquals(expected.toString(), document.getText());
+	}
+
+	@Test
+	void typingBurstIsStoredAsOneSpanUntilEditedInside() {
+		CRDTDocument document = new CRDTDocument();
+		for (int i = 0; i < 1000; i++) {
+			document.applyOperation(positional(CRDTOperation.OperationType.INSERT, i, "x"));
+		}
+		assertEquals(1, document.getCharacters().spanCount());
+
+		document.applyOperation(positional(CRDTOperation.OperationType.INSERT, 500, "y"));
+		assertEquals(3, document.getCharacters().spanCount());
+
+		// Deleting forwards from the same spot grows one tombstone span
+		for (int i = 0; i < 10; i++) {
+			document.applyOperation(positional(CRDTOperation.OperationType.DELETE, 501, null));
+		}
+		assertEquals(4, document.getCharacters().spanCount());
+		assertEquals("x".repeat(500) + "y" + "x".repeat(490), document.getText());
+
+		// The text is rebuilt only after the next change
+		long version = document.getTextVersion();
+		assertSame(document.getText(), document.getText());
+		document.applyOperation(positional(CRDTOperation.OperationType.DELETE, 0, null));
+		assertEquals(version + 1, document.getTextVersion());
+		assertEquals(990, document.getText().length());
+	}
+
+	@Test
+	void rangeDeleteKeepsTextInsertedConcurrentlyInsideIt() {
+		CRDTDocument alice = new CRDTDocument();
+		CRDTDocument bob = new CRDTDocument();
+		CRDTOperation paste = positional(CRDTOperation.OperationType.INSERT_TEXT, 0, "hello world");
+		paste.setUserId("alice");
+		alice.applyOperation(paste);
+		bob.applyOperation(copy(paste));
+		assertEquals(1, bob.getCharacters().spanCount());
+
+		// Alice deletes "o w" while Bob types inside it
+		CRDTOperation delete = positional(CRDTOperation.OperationType.DELETE_RANGE, 4, null);
+		delete.setUserId("alice");
+		delete.setLength(3);
+		alice.applyOperation(delete);
+		CRDTOperation typed = positional(CRDTOperation.OperationType.INSERT_TEXT, 5, ", big");
+		typed.setUserId("bob");
+		bob.applyOperation(typed);
+
+		alice.applyOperation(copy(typed));
+		bob.applyOperation(copy(delete));
+		assertEquals("hell, bigorld", alice.getText());
+		assertEquals(alice.getText(), bob.getText());
+		assertEquals(alice.getVectorClock(), bob.getVectorClock());
+	}
+
+	@Test
+	void randomConcurrentEditsConverge() {
+		Random random = new Random(11);
+		List<CRDTDocument> replicas = List.of(new CRDTDocument(), new CRDTDocument(), new CRDTDocument());
+
+		// Each round every replica edits its own view, then everything is exchanged
+		for (int round = 0; round < 50; round++) {
+			List<CRDTOperation> generated = new ArrayList<>();
+			for (int r = 0; r < replicas.size(); r++) {
+				CRDTDocument replica = replicas.get(r);
+				for (int k = 0; k < 5; k++) {
+					int length = replica.getText().length();
+					CRDTOperation op = length > 0 && random.nextInt(4) == 0
+						? positional(CRDTOperation.OperationType.DELETE, random.nextInt(length), null)
+						: positional(CRDTOperation.OperationType.INSERT, random.nextInt(length + 1), "" + (char) ('a' + r));
+					op.setUserId("site-" + r);
+					replica.applyOperation(op);
+					generated.add(op);
+				}
+			}
+			for (int r = 0; r < replicas.size(); r++) {
+				List<CRDTOperation> shuffled = new ArrayList<>(generated);
+				Collections.shuffle(shuffled, random);
+				for (CRDTOperation op : shuffled) {
+					if (!op.getId().getSiteId().equals("site-" + r)) {
+						replicas.get(r).applyOperation(copy(op));
+					}
+				}
+			}
+		}
+
+		String text = replicas.get(0).getText();
+		for (CRDTDocument replica : replicas) {
+			assertEquals(text, replica.getText());
+			assertTrue(replica.getPending().isEmpty());
+		}
+	}
+
+	private static CRDTOperation insert(String site, long counter, CRDTId origin, String character) {
+		return CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.INSERT)
+			.id(new CRDTId(site, counter))
+			.originId(origin)
+			.userId(site)
+			.character(character)
+			.build();
+	}
+
+	private static CRDTOperation positional(CRDTOperation.OperationType type, int position, String character) {
+		return CRDTOperation.builder()
+			.type(type)
+			.userId("local")
+			.position(position)
+			.character(character)
+			.build();
+	}
+
+	private static CRDTOperation copy(CRDTOperation op) {
+		return new CRDTOperation(op.getOperationId(), op.getId(), op.getOriginId(), op.getTargetId(),
+			op.getUserId(), op.getType(), op.getPosition(), op.getCharacter(), op.getTimestamp(), op.getVectorClock(),
+			op.getEndId(), op.getLength());
+	}
+}
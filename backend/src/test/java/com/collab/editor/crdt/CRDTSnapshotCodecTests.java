@@ -0,0 +1,75 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRDTSnapshotCodecTests {
+
+	@Test
+	void roundTripsWithAndWithoutCompression() {
+		CRDTDocument document = editedDocument();
+
+		for (boolean compress : new boolean[]{false, true}) {
+			CRDTDocument decoded = CRDTSnapshotCodec.decode(CRDTSnapshotCodec.encode(document, compress));
+
+			assertEquals(document.getText(), decoded.getText());
+			assertEquals(document.getClock(), decoded.getClock());
+			assertEquals(document.getVectorClock(), decoded.getVectorClock());
+			assertEquals(new ArrayList<>(document.getCharacters()), new ArrayList<>(decoded.getCharacters()));
+			assertEquals(document.getPending(), decoded.getPending());
+		}
+	}
+
+	@Test
+	void decodesVersion1Snapshots() {
+		CRDTDocument document = editedDocument();
+
+		CRDTDocument decoded = CRDTSnapshotCodec.decode(CRDTSnapshotCodec.encodeVersion1(document));
+
+		assertEquals(document.getText(), decoded.getText());
+		assertEquals(new ArrayList<>(document.getCharacters()), new ArrayList<>(decoded.getCharacters()));
+		assertEquals(document.getPending(), decoded.getPending());
+	}
+
+	@Test
+	void isSmallerThanVersion1() {
+		CRDTDocument document = editedDocument();
+
+		int version1 = CRDTSnapshotCodec.encodeVersion1(document).length;
+		assertTrue(CRDTSnapshotCodec.encode(document, false).length * 3 < version1);
+		assertTrue(CRDTSnapshotCodec.encode(document, true).length * 6 < version1);
+	}
+
+	// Two authors typing and deleting, with non-BMP characters and a buffered op
+	private static CRDTDocument editedDocument() {
+		CRDTDocument document = new CRDTDocument();
+		Random random = new Random(7);
+		List<String> characters = List.of("a", "b", "\n", " ", "😀", "é");
+		for (int i = 0; i < 4000; i++) {
+			String user = i % 500 < 250 ? "alice" : "bob";
+			int size = document.getText().length();
+			CRDTOperation op = random.nextInt(5) == 0 && size > 0
+				? CRDTOperation.builder().type(CRDTOperation.OperationType.DELETE).position(random.nextInt(size)).build()
+				: CRDTOperation.builder().type(CRDTOperation.OperationType.INSERT)
+					.position(Math.min(size, i % 80 == 0 ? random.nextInt(size + 1) : size))
+					.character(characters.get(random.nextInt(characters.size()))).build();
+			op.setUserId(user);
+			op.setTimestamp(1_700_000_000_000L + i * 150L);
+			document.applyOperation(op);
+		}
+		document.applyOperation(CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.INSERT)
+			.id(new CRDTId("carol", document.getClock() + 5))
+			.originId(new CRDTId("carol", document.getClock() + 4))
+			.userId("carol")
+			.character("z")
+			.build());
+		return document;
+	}
+}
@@ -0,0 +1,99 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CRDTSynchronizerTests {
+
+	@Test
+	void onlyOpsEveryConnectedReplicaAcknowledgedAreStable() {
+		CRDTSynchronizer synchronizer = new CRDTSynchronizer(1000);
+		synchronizer.registerReplica("room", "s1");
+		synchronizer.registerReplica("room", "s2");
+		synchronizer.acknowledge("room", "room:main", "s1", Map.of("alice", 3L));
+		assertFalse(synchronizer.stabilityCheck("room", "room:main").test(new CRDTId("alice", 1)));
+
+		synchronizer.acknowledge("room", "room:main", "s2", Map.of("alice", 2L));
+		Predicate<CRDTId> stable = synchronizer.stabilityCheck("room", "room:main");
+		assertTrue(stable.test(new CRDTId("alice", 2)));
+		assertFalse(stable.test(new CRDTId("alice", 3)));
+		assertFalse(stable.test(new CRDTId("bob", 1)));
+	}
+
+	@Test
+	void tombstonesSurviveWhileNobodyIsConnectedSoOfflineEditsStillIntegrate() {
+		CRDTSynchronizer synchronizer = new CRDTSynchronizer(1000);
+		CRDTDocument server = new CRDTDocument();
+		CRDTOperation a = insert("alice", 1, null, "a");
+		CRDTOperation b = insert("alice", 2, a.getId(), "b");
+		server.applyOperation(a);
+		server.applyOperation(b);
+
+		// Bob goes offline having seen "ab"; alice deletes "b", acknowledges it and leaves
+		synchronizer.registerReplica("room", "alice-session");
+		server.applyOperation(CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.DELETE)
+			.id(new CRDTId("alice", 3))
+			.targetId(b.getId())
+			.userId("alice")
+			.build());
+		synchronizer.acknowledge("room", "room:main", "alice-session", Map.of("alice", 3L));
+		synchronizer.unregisterReplica("room", "alice-session");
+
+		assertEquals(0, server.compact(synchronizer.stabilityCheck("room", "room:main")));
+
+		// Bob reconnects with what he typed after "b" while offline
+		assertTrue(server.applyOperation(insert("bob", 3, b.getId(), "c")));
+		assertEquals("ac", server.getText());
+		assertTrue(server.getPending().isEmpty());
+	}
+
+	@Test
+	void acknowledgedClocksAreForgottenWhenTheDocumentIsEvictedOrTheReplicaLeaves() {
+		CRDTSynchronizer synchronizer = new CRDTSynchronizer(1000);
+		CRDTId id = new CRDTId("alice", 1);
+		synchronizer.registerReplica("room", "s1");
+		synchronizer.acknowledge("room", "room:main", "s1", Map.of("alice", 1L));
+		assertTrue(synchronizer.stabilityCheck("room", "room:main").test(id));
+
+		synchronizer.clearHistory("room", "room:main");
+		assertFalse(synchronizer.stabilityCheck("room", "room:main").test(id));
+
+		// A late acknowledgement from a replica that already left is not kept
+		synchronizer.unregisterReplica("room", "s1");
+		synchronizer.acknowledge("room", "room:main", "s1", Map.of("alice", 1L));
+		synchronizer.registerReplica("room", "s1");
+		assertFalse(synchronizer.stabilityCheck("room", "room:main").test(id));
+	}
+
+	private static CRDTOperation insert(String site, long counter, CRDTId origin, String character) {
+		return CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.INSERT)
+			.id(new CRDTId(site, counter))
+			.originId(origin)
+			.userId(site)
+			.character(character)
+			.build();
+	}
+
+	@Test
+	void aSiteBelongsToOneReplicaUntilItLeaves() {
+		CRDTSynchronizer synchronizer = new CRDTSynchronizer(1000);
+		synchronizer.registerReplica("room", "s1");
+		synchronizer.registerReplica("room", "s2");
+		assertTrue(synchronizer.claimSite("room", "alice", "s1"));
+		assertTrue(synchronizer.claimSite("room", "alice", "s1"));
+		assertFalse(synchronizer.claimSite("room", "alice", "s2"));
+		// Sites are per room
+		assertTrue(synchronizer.claimSite("other", "alice", "s2"));
+
+		// A client that reconnects gets its site back
+		synchronizer.unregisterReplica("room", "s1");
+		assertTrue(synchronizer.claimSite("room", "alice", "s2"));
+	}
+}
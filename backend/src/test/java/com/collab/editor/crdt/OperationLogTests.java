@@ -0,0 +1,87 @@
+package com.collab.editor.crdt;
+
+import com.collab.editor.model.CRDTOperation;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OperationLogTests {
+
+	@Test
+	void findsOpsBySequenceAndTimestampAcrossSegments() {
+		OperationLog log = new OperationLog(10000, Map.of());
+		List<CRDTOperation> applied = new ArrayList<>();
+		for (int i = 1; i <= 1000; i++) {
+			// Every tenth client clock lags behind; range keys still never decrease
+			CRDTOperation operation = insert("alice", i, i % 10 == 0 ? i - 50 : i);
+			applied.add(operation);
+			assertEquals(i, log.append(operation));
+		}
+
+		assertEquals(applied.subList(300, 1000), log.afterSequence(300));
+		assertEquals(List.of(), log.afterSequence(1000));
+		assertEquals(applied.subList(500, 1000), log.afterTimestamp(500));
+		assertEquals(applied, log.afterTimestamp(0));
+		assertEquals(List.of(), log.afterTimestamp(1000));
+	}
+
+	@Test
+	void droppedSegmentsMoveIntoTheBaseClock() {
+		OperationLog log = new OperationLog(OperationLog.SEGMENT_SIZE, Map.of("bob", 7L));
+		for (int i = 1; i <= OperationLog.SEGMENT_SIZE * 3; i++) {
+			log.append(insert("alice", i, i));
+		}
+
+		// Only the newest segment is kept
+		assertNull(log.afterSequence(0));
+		assertEquals(OperationLog.SEGMENT_SIZE, log.afterSequence(OperationLog.SEGMENT_SIZE * 2L).size());
+		assertNull(log.notCoveredBy(Map.of("alice", (long) OperationLog.SEGMENT_SIZE * 2)));
+		assertNull(log.notCoveredBy(Map.of("bob", 7L)));
+		assertEquals(OperationLog.SEGMENT_SIZE,
+			log.notCoveredBy(Map.of("alice", (long) OperationLog.SEGMENT_SIZE * 2, "bob", 7L)).size());
+
+		log.truncate(OperationLog.SEGMENT_SIZE * 3L);
+		assertEquals(OperationLog.SEGMENT_SIZE * 3L, log.getLastSequence());
+	}
+
+	@Test
+	void notCoveredByReturnsOnlyUnseenOpsInAppliedOrder() {
+		OperationLog log = new OperationLog(2000, Map.of());
+		Random random = new Random(42);
+		Map<String, Long> counters = new HashMap<>();
+		List<CRDTOperation> applied = new ArrayList<>();
+		for (int i = 1; i <= 3000; i++) {
+			String site = "site-" + random.nextInt(4);
+			CRDTOperation operation = insert(site, counters.merge(site, 1L, Long::sum), i);
+			applied.add(operation);
+			log.append(operation);
+		}
+
+		// The log holds the newest 2000 or so; a replica that saw everything up to op 1500 of each site
+		Map<String, Long> clock = new HashMap<>();
+		for (CRDTOperation operation : applied.subList(0, 1500)) {
+			clock.merge(operation.getId().getSiteId(), operation.getId().getCounter(), Math::max);
+		}
+		List<CRDTOperation> expected = applied.stream()
+			.filter(op -> clock.getOrDefault(op.getId().getSiteId(), 0L) < op.getId().getCounter())
+			.toList();
+		assertEquals(expected, log.notCoveredBy(clock));
+		assertEquals(List.of(), log.notCoveredBy(counters));
+	}
+
+	private static CRDTOperation insert(String site, long counter, long timestamp) {
+		return CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.INSERT)
+			.id(new CRDTId(site, counter))
+			.userId(site)
+			.character("x")
+			.timestamp(timestamp)
+			.build();
+	}
+}
@@ -0,0 +1,99 @@
+package com.collab.editor.execution;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CompilationCacheTests {
+
+	@TempDir
+	Path root;
+
+	private final AtomicInteger compiles = new AtomicInteger();
+
+	private CompilationCache cache(long maxBytes) {
+		return new CompilationCache(root.toString(), maxBytes, new SimpleMeterRegistry());
+	}
+
+	// Stands in for a compiler: the "binary" is the source padded to a fixed size
+	private CompilationCache.Artifact get(CompilationCache cache, List<String> flags, String source)
+			throws IOException, InterruptedException {
+		return cache.get("cpp", flags, source, dir -> {
+			compiles.incrementAndGet();
+			Files.writeString(dir.resolve("program"), source + " ".repeat(100 - source.length()));
+		});
+	}
+
+	@Test
+	void unchangedSourceIsCompiledOnce() throws Exception {
+		CompilationCache cache = cache(1 << 20);
+		Path first;
+		try (CompilationCache.Artifact artifact = get(cache, List.of(), "a")) {
+			first = artifact.getDirectory();
+		}
+		try (CompilationCache.Artifact artifact = get(cache, List.of(), "a")) {
+			assertEquals(first, artifact.getDirectory());
+			assertEquals("a", Files.readString(artifact.getDirectory().resolve("program")).trim());
+		}
+		assertEquals(1, compiles.get());
+	}
+
+	@Test
+	void changedSourceOrFlagsCompileAgain() throws Exception {
+		CompilationCache cache = cache(1 << 20);
+		get(cache, List.of(), "a").close();
+		try (CompilationCache.Artifact artifact = get(cache, List.of(), "b")) {
+			assertEquals("b", Files.readString(artifact.getDirectory().resolve("program")).trim());
+		}
+		get(cache, List.of("-O2"), "b").close();
+		assertEquals(3, compiles.get());
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedEntryButNotOneInUse() throws Exception {
+		// Room for two entries of about 100 bytes each
+		CompilationCache cache = cache(250);
+		CompilationCache.Artifact a = get(cache, List.of(), "a");
+		Path aDir = a.getDirectory();
+		a.close();
+		CompilationCache.Artifact b = get(cache, List.of(), "b");
+		Path bDir = b.getDirectory();
+		get(cache, List.of(), "a").close();
+
+		// b is the least recently used, but a run still holds it, so a goes instead
+		CompilationCache.Artifact c = get(cache, List.of(), "c");
+		Path cDir = c.getDirectory();
+		c.close();
+		assertTrue(Files.exists(bDir));
+		assertFalse(Files.exists(aDir));
+		b.close();
+
+		get(cache, List.of(), "b").close();
+		assertEquals(3, compiles.get());
+		get(cache, List.of(), "a").close();
+		assertEquals(4, compiles.get());
+		// Using b again left c the least recently used
+		assertFalse(Files.exists(cDir));
+		assertTrue(Files.exists(bDir));
+	}
+
+	@Test
+	void picksUpEntriesLeftOnDiskAndDropsHalfWrittenOnes() throws Exception {
+		get(cache(1 << 20), List.of(), "a").close();
+		Path interrupted = Files.createDirectory(root.resolve("interrupted"));
+
+		try (CompilationCache.Artifact artifact = get(cache(1 << 20), List.of(), "a")) {
+			assertEquals("a", Files.readString(artifact.getDirectory().resolve("program")).trim());
+		}
+		assertEquals(1, compiles.get());
+		assertFalse(Files.exists(interrupted));
+	}
+}
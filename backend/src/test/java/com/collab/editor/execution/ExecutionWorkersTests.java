@@ -0,0 +1,143 @@
+package com.collab.editor.execution;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class ExecutionWorkersTests {
+
+	private static final long TIMEOUT_MS = 10000;
+
+	private Sandbox sandbox;
+	private ExecutionWorkers workers;
+	private final List<Path> workDirs = new ArrayList<>();
+
+	@BeforeEach
+	void setUp() {
+		sandbox = new Sandbox(false, 512, 1024, 16, 10, "", "", 2048, "max 100000");
+		// One worker per language, so consecutive jobs land on the same worker when allowed to
+		workers = new ExecutionWorkers(sandbox, 1, 100, 1);
+	}
+
+	@AfterEach
+	void tearDown() {
+		workers.close();
+		workDirs.forEach(sandbox::deleteWorkDir);
+	}
+
+	@Test
+	void pythonJobCannotEndItselfEarlyOrSeeTheNextJob() throws IOException {
+		assumeTrue(installed("python3"));
+		List<String> first = new ArrayList<>();
+		int status = workers.runPython("a", """
+			import builtins, os, sys, threading, time
+			print("E guess 0 1")
+			os.write(1, b"E guess 0 1\\n")
+			print("stdin", repr(sys.__stdin__.read()))
+			threading.Thread(target=lambda: (time.sleep(0.3), print("leaked"))).start()
+			builtins.len = None
+			""", workDir(), TIMEOUT_MS, first::add);
+		assertEquals(0, status);
+		assertEquals(List.of("E guess 0 1", "E guess 0 1", "stdin ''"), first);
+
+		List<String> second = new ArrayList<>();
+		status = workers.runPython("b", """
+			import time
+			time.sleep(0.5)
+			print(len("second"))
+			""", workDir(), TIMEOUT_MS, second::add);
+		assertEquals(0, status);
+		assertEquals(List.of("6"), second);
+	}
+
+	@Test
+	void nodeJobCannotEndItselfEarly() throws IOException {
+		assumeTrue(installed("node"));
+		List<String> output = new ArrayList<>();
+		int status = workers.runJavaScript("a", """
+			process.stdout.write('E guess 0 1\\n');
+			console.log('after');
+			process.exit(3);
+			""", workDir(), TIMEOUT_MS, output::add);
+		assertEquals(3, status);
+		assertEquals(List.of("E guess 0 1", "after"), output);
+
+		// Writing around the framing fails the job rather than ending it
+		assertThrows(IOException.class, () -> workers.runJavaScript("a",
+			"require('fs').writeSync(1, 'E guess 0 1\\n');", workDir(), TIMEOUT_MS, line -> { }));
+
+		output.clear();
+		status = workers.runJavaScript("a", "console.log('ok');", workDir(), TIMEOUT_MS, output::add);
+		assertEquals(0, status);
+		assertEquals(List.of("ok"), output);
+	}
+
+	@Test
+	void nodeWorkersAreReusedOnlyForTheSameOwner() throws IOException {
+		assumeTrue(installed("node"));
+		assertEquals(List.of("set"), runNode("a", "require('fs').marker = 'a'; console.log('set');"));
+		assertEquals(List.of("a"), runNode("a", "console.log(String(require('fs').marker));"));
+		assertEquals(List.of("undefined"), runNode("b", "console.log(String(require('fs').marker));"));
+
+		// A job that leaves a server listening gets its worker replaced, even for the same owner
+		runNode("b", "require('fs').marker = 'b'; require('net').createServer().listen(0);");
+		assertEquals(List.of("undefined"), runNode("b", "console.log(String(require('fs').marker));"));
+	}
+
+	@Test
+	void poolGrowsPastItsWarmSizeUpToMaxConcurrent() throws Exception {
+		assumeTrue(installed("python3"));
+		ExecutionWorkers concurrent = new ExecutionWorkers(sandbox, 1, 100, 3);
+		try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+			long startedAt = System.nanoTime();
+			List<Future<Integer>> runs = new ArrayList<>();
+			for (int i = 0; i < 3; i++) {
+				Path dir = workDir();
+				runs.add(executor.submit(() -> concurrent.runPython("owner", "import time\ntime.sleep(1)", dir,
+					TIMEOUT_MS, line -> { })));
+			}
+			for (Future<Integer> run : runs) {
+				assertEquals(0, run.get());
+			}
+			// One after another would take three seconds
+			assertTrue(System.nanoTime() - startedAt < TimeUnit.MILLISECONDS.toNanos(2500));
+		} finally {
+			concurrent.close();
+		}
+	}
+
+	private List<String> runNode(String owner, String code) throws IOException {
+		List<String> output = new ArrayList<>();
+		assertEquals(0, workers.runJavaScript(owner, code, workDir(), TIMEOUT_MS, output::add));
+		return output;
+	}
+
+	private Path workDir() throws IOException {
+		Path dir = sandbox.createWorkDir();
+		workDirs.add(dir);
+		return dir;
+	}
+
+	private static boolean installed(String runtime) {
+		try {
+			return new ProcessBuilder(runtime, "--version").redirectErrorStream(true).start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.collab.editor.execution;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SandboxTests {
+
+	@Test
+	void enabledSandboxStartsRuntimesWithoutACgroup() throws Exception {
+		Sandbox sandbox = new Sandbox(true, 512, 256, 16, 10, "", "", 2048, "max 100000");
+		Process process = sandbox.start(new ProcessBuilder("true"));
+		assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+		assertEquals(0, process.exitValue());
+	}
+
+	@Test
+	void unusableCgroupFallsBackToPrlimitOnFirstUse(@TempDir Path dir) throws Exception {
+		Path cgroup = dir.resolve("not-a-cgroup");
+		Sandbox sandbox = new Sandbox(true, 512, 256, 16, 10, "", cgroup.toString(), 2048, "max 100000");
+		// Nothing is set up while the bean is created
+		assertFalse(Files.exists(cgroup));
+
+		Files.writeString(cgroup, "a file");
+		Process process = sandbox.start(new ProcessBuilder("true"));
+		assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+		assertEquals(0, process.exitValue());
+	}
+
+	@Test
+	void reportsProcessesLeftBehindAndKillsThemWithTheProcess() throws Exception {
+		Sandbox sandbox = new Sandbox(false, 512, 256, 16, 10, "", "", 2048, "max 100000");
+		Process process = sandbox.start(new ProcessBuilder("sh", "-c", "sleep 30 & read _"));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!sandbox.hasStrays(process) && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(sandbox.hasStrays(process));
+		ProcessHandle child = process.descendants().findFirst().orElseThrow();
+
+		sandbox.destroy(process);
+		child.onExit().get(5, TimeUnit.SECONDS);
+		assertFalse(child.isAlive());
+	}
+
+	@Test
+	void clearingAWorkDirKeepsTheDirButNotItsFiles() throws IOException {
+		Sandbox sandbox = new Sandbox(false, 512, 256, 16, 10, "", "", 2048, "max 100000");
+		Path dir = sandbox.createWorkDir();
+		try {
+			Files.createDirectories(dir.resolve("nested"));
+			Files.writeString(dir.resolve("nested/out.txt"), "left by the last job");
+			Files.writeString(dir.resolve("input.txt"), "left by the last job");
+
+			sandbox.clearWorkDir(dir);
+			assertTrue(Files.isDirectory(dir));
+			try (Stream<Path> files = Files.list(dir)) {
+				assertEquals(0, files.count());
+			}
+		} finally {
+			sandbox.deleteWorkDir(dir);
+		}
+	}
+}
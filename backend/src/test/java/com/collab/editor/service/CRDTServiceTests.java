@@ -0,0 +1,52 @@
+package com.collab.editor.service;
+
+import com.collab.editor.crdt.CRDTDocument;
+import com.collab.editor.model.CRDTOperation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class CRDTServiceTests {
+
+	private final DocumentCacheService documentCache = mock(DocumentCacheService.class);
+	private final CRDTService crdtService = new CRDTService(documentCache, new SimpleMeterRegistry());
+	private final CRDTDocument document = new CRDTDocument();
+
+	@Test
+	void replaceOperationsTurnTheTextIntoTheNewContent() {
+		when(documentCache.read(anyString(), anyString(), any())).thenAnswer(
+			invocation -> invocation.<Function<CRDTDocument, Object>>getArgument(2).apply(document));
+
+		for (String content : List.of("hello world", "hello brave world", "hello world", "say hello world",
+				"world", "", "x", "xx", "x")) {
+			for (CRDTOperation operation : crdtService.createReplaceOperations("r", "main", "alice", content)) {
+				assertTrue(document.applyOperation(operation));
+			}
+			assertEquals(content, document.getText());
+		}
+	}
+
+	@Test
+	void replaceOperationsOnlyTouchTheChangedMiddle() {
+		when(documentCache.read(anyString(), anyString(), any())).thenAnswer(
+			invocation -> invocation.<Function<CRDTDocument, Object>>getArgument(2).apply(document));
+		crdtService.createReplaceOperations("r", "main", "alice", "abcdef").forEach(document::applyOperation);
+
+		List<CRDTOperation> operations = crdtService.createReplaceOperations("r", "main", "alice", "abXYef");
+		assertEquals(2, operations.size());
+		assertEquals(CRDTOperation.OperationType.DELETE_RANGE, operations.get(0).getType());
+		assertEquals(2, operations.get(0).getPosition());
+		assertEquals(2, operations.get(0).getLength());
+		assertEquals(CRDTOperation.OperationType.INSERT_TEXT, operations.get(1).getType());
+		assertEquals("XY", operations.get(1).getCharacter());
+		assertEquals(List.of(), crdtService.createReplaceOperations("r", "main", "alice", "abcdef"));
+	}
+}
@@ -0,0 +1,68 @@
+package com.collab.editor.service;
+
+import com.collab.editor.execution.CompilationCache;
+import com.collab.editor.execution.ExecutionWorkers;
+import com.collab.editor.execution.Sandbox;
+import com.collab.editor.model.ExecutionResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+import static org.mockito.Mockito.mock;
+
+class CodeExecutionServiceTests {
+
+	@TempDir
+	Path cacheDir;
+
+	private CodeExecutionService executionService;
+
+	@BeforeEach
+	void setUp() {
+		assumeTrue(installed("g++"));
+		Sandbox sandbox = new Sandbox(false, 512, 1024, 16, 10, "", "", 2048, "max 100000");
+		CompilationCache cache = new CompilationCache(cacheDir.toString(), 1 << 26, new SimpleMeterRegistry());
+		executionService = new CodeExecutionService(mock(ExecutionWorkers.class), cache, sandbox);
+	}
+
+	@Test
+	void compilesAndRunsCpp() {
+		ExecutionResult result = executionService.executeCode(
+			"#include <iostream>\nint main() { std::cout << \"hello\" << std::endl; }\n", "cpp");
+		assertTrue(result.isSuccess(), result.getError());
+		assertEquals("hello", result.getOutput().trim());
+	}
+
+	@Test
+	void reportsCompilerErrorsLongerThanThePipeHolds() {
+		// Each undeclared name is its own error, well over the 64 KiB a pipe buffers
+		StringBuilder code = new StringBuilder("int main() {\n");
+		for (int i = 0; i < 2000; i++) {
+			code.append("    undeclared_").append(i).append("++;\n");
+		}
+		code.append("}\n");
+
+		ExecutionResult result = assertTimeoutPreemptively(Duration.ofSeconds(30),
+			() -> executionService.executeCode(code.toString(), "cpp"));
+		assertFalse(result.isSuccess());
+		assertTrue(result.getError().contains("undeclared_1999"), "the last error is reported too");
+	}
+
+	private static boolean installed(String program) {
+		try {
+			return new ProcessBuilder(program, "--version").redirectErrorStream(true).start().waitFor() == 0;
+		} catch (IOException e) {
+			return false;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
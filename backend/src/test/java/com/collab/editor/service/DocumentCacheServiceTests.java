@@ -0,0 +1,167 @@
+package com.collab.editor.service;
+
+import com.collab.editor.crdt.CRDTDocument;
+import com.collab.editor.crdt.CRDTSnapshotCodec;
+import com.collab.editor.crdt.CRDTSynchronizer;
+import com.collab.editor.model.CRDTOperation;
+import com.collab.editor.model.CodeFile;
+import com.collab.editor.model.OperationLogEntry;
+import com.collab.editor.repository.CodeFileRepository;
+import com.collab.editor.repository.OperationLogRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+class DocumentCacheServiceTests {
+
+	private final CodeFileRepository codeFileRepository = mock(CodeFileRepository.class);
+	private final OperationLogRepository operationLogRepository = mock(OperationLogRepository.class);
+	private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+
+	private DocumentCacheService cache(int maxDocuments, int snapshotInterval) {
+		return new DocumentCacheService(codeFileRepository, operationLogRepository, mongoTemplate,
+			new CRDTSynchronizer(1000), new SimpleMeterRegistry(), maxDocuments, 500, snapshotInterval, true);
+	}
+
+	private void storeFile(String fileId, String content, byte[] snapshot, long snapshotSequence) {
+		CodeFile file = new CodeFile();
+		file.setRoomId("room");
+		file.setFileId(fileId);
+		file.setContent(content);
+		file.setCrdtSnapshot(snapshot);
+		file.setSnapshotSequence(snapshotSequence);
+		when(codeFileRepository.findByRoomIdAndFileId("room", fileId)).thenReturn(Optional.of(file));
+	}
+
+	@Test
+	void writesEditsBehindOnFlush() {
+		storeFile("main", "", null, 0);
+		DocumentCacheService cache = cache(10, 1000);
+
+		assertTrue(cache.apply("room", "main", insert(0, "hi")));
+		assertEquals(Optional.of("hi"), cache.peekText("room", "main"));
+		verifyNoInteractions(mongoTemplate);
+		verify(operationLogRepository, never()).insert(anyList());
+		assertEquals(1, cache.getDirtyCount());
+
+		cache.flushDirtyDocuments();
+		@SuppressWarnings("unchecked")
+		ArgumentCaptor<List<OperationLogEntry>> entries = ArgumentCaptor.forClass(List.class);
+		verify(operationLogRepository).insert(entries.capture());
+		assertEquals(1, entries.getValue().size());
+		assertEquals(1, entries.getValue().get(0).getSequence());
+		assertEquals("hi", set(captureUpdate()).get("content"));
+		assertEquals(0, cache.getDirtyCount());
+
+		// Nothing new, nothing written
+		cache.flushDirtyDocuments();
+		verify(mongoTemplate, times(1)).updateFirst(any(Query.class), any(Update.class), eq(CodeFile.class));
+	}
+
+	@Test
+	void storesASnapshotEverySnapshotIntervalOpsAndReloadsFromIt() {
+		storeFile("main", "", null, 0);
+		DocumentCacheService cache = cache(10, 2);
+		cache.apply("room", "main", insert(0, "ab"));
+		cache.apply("room", "main", insert(2, "c"));
+		cache.flushDirtyDocuments();
+
+		Document set = set(captureUpdate());
+		byte[] snapshot = (byte[]) set.get("crdtSnapshot");
+		assertEquals(2L, set.get("snapshotSequence"));
+		assertEquals("abc", CRDTSnapshotCodec.decode(snapshot).getText());
+		verify(operationLogRepository).deleteByRoomIdAndFileIdAndSequenceLessThanEqual("room", "main", 2);
+
+		// Another node loads the snapshot and replays the log written after it
+		CRDTDocument edited = CRDTSnapshotCodec.decode(snapshot);
+		CRDTOperation later = insert(3, "d");
+		edited.applyOperation(later);
+		storeFile("main", "abc", snapshot, 2);
+		when(operationLogRepository.findByRoomIdAndFileIdAndSequenceGreaterThanOrderBySequenceAsc("room", "main", 2))
+			.thenReturn(List.of(new OperationLogEntry("room:main:3", "room", "main", 3, later)));
+		DocumentCacheService reloaded = cache(10, 2);
+		assertEquals("abcd", reloaded.read("room", "main", CRDTDocument::getText));
+	}
+
+	@Test
+	void aSeededDocumentIsOnlySnapshottedWithItsFirstEdit() {
+		storeFile("main", "seed", null, 0);
+		DocumentCacheService cache = cache(10, 1000);
+
+		// The seed gets the same ids on every load, so there is nothing to write yet
+		assertEquals("seed", cache.read("room", "main", CRDTDocument::getText));
+		cache.flushDirtyDocuments();
+		verifyNoInteractions(mongoTemplate);
+
+		cache.apply("room", "main", insert(4, "!"));
+		cache.flushDirtyDocuments();
+		Document set = set(captureUpdate());
+		assertEquals("seed!", CRDTSnapshotCodec.decode((byte[]) set.get("crdtSnapshot")).getText());
+		assertEquals(1L, set.get("snapshotSequence"));
+	}
+
+	@Test
+	void evictsTheLeastRecentlyUsedDocument() {
+		storeFile("a", "a", null, 0);
+		storeFile("b", "b", null, 0);
+		storeFile("c", "c", null, 0);
+		DocumentCacheService cache = cache(2, 1000);
+
+		cache.read("room", "a", CRDTDocument::getText);
+		cache.read("room", "b", CRDTDocument::getText);
+		cache.read("room", "a", CRDTDocument::getText);
+		cache.read("room", "c", CRDTDocument::getText);
+
+		assertEquals(Optional.of("a"), cache.peekText("room", "a"));
+		assertEquals(Optional.empty(), cache.peekText("room", "b"));
+		assertEquals(Optional.of("c"), cache.peekText("room", "c"));
+		// Loading b again evicts a, now the least recently used
+		assertEquals("b", cache.read("room", "b", CRDTDocument::getText));
+		verify(codeFileRepository, times(2)).findByRoomIdAndFileId("room", "b");
+		assertEquals(Optional.empty(), cache.peekText("room", "a"));
+	}
+
+	@Test
+	void flushesADocumentBeforeEvictingIt() {
+		storeFile("a", "", null, 0);
+		storeFile("b", "", null, 0);
+		DocumentCacheService cache = cache(1, 1000);
+
+		cache.apply("room", "a", insert(0, "x"));
+		cache.read("room", "b", CRDTDocument::getText);
+
+		assertEquals(Optional.empty(), cache.peekText("room", "a"));
+		verify(operationLogRepository).insert(anyList());
+		assertEquals("x", set(captureUpdate()).get("content"));
+	}
+
+	private Update captureUpdate() {
+		ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate, atLeastOnce()).updateFirst(any(Query.class), update.capture(), eq(CodeFile.class));
+		return update.getValue();
+	}
+
+	private static Document set(Update update) {
+		return (Document) update.getUpdateObject().get("$set");
+	}
+
+	private static CRDTOperation insert(int position, String text) {
+		return CRDTOperation.builder()
+			.type(CRDTOperation.OperationType.INSERT_TEXT)
+			.userId("alice")
+			.position(position)
+			.character(text)
+			.build();
+	}
+}
@@ -0,0 +1,116 @@
+package com.collab.editor.service;
+
+import com.collab.editor.exception.ExecutionQueueFullException;
+import com.collab.editor.model.ExecutionJob;
+import com.collab.editor.model.ExecutionResult;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ExecutionSchedulerServiceTests {
+
+	private final CodeExecutionService executionService = mock(CodeExecutionService.class);
+	private final CountDownLatch blocker = new CountDownLatch(1);
+	private final List<String> ran = new ArrayList<>();
+
+	@AfterEach
+	void tearDown() {
+		blocker.countDown();
+	}
+
+	// Runs one job at a time; the job with code "block" holds the slot until the latch opens
+	private ExecutionSchedulerService scheduler(int maxQueuedPerRoom, int maxQueuedPerUser) {
+		when(executionService.executeCode(anyString(), anyString(), nullable(String.class), any())).thenAnswer(invocation -> {
+			String code = invocation.getArgument(0);
+			if (code.equals("block")) {
+				blocker.await();
+			}
+			synchronized (ran) {
+				ran.add(code);
+			}
+			return ExecutionResult.success(code);
+		});
+		return new ExecutionSchedulerService(executionService, event -> { }, new SimpleMeterRegistry(),
+			1, 100, maxQueuedPerRoom, maxQueuedPerUser);
+	}
+
+	@Test
+	void picksJobsRoundRobinAcrossRoomsThenUsers() throws Exception {
+		ExecutionSchedulerService scheduler = scheduler(20, 5);
+		ExecutionJob first = scheduler.submit("a", "u1", "block", "python");
+		List<ExecutionJob> jobs = new ArrayList<>();
+		jobs.add(scheduler.submit("a", "u1", "a1", "python"));
+		jobs.add(scheduler.submit("a", "u1", "a2", "python"));
+		jobs.add(scheduler.submit("a", "u3", "a3", "python"));
+		jobs.add(scheduler.submit("b", "u2", "b1", "python"));
+		jobs.add(scheduler.submit("b", "u2", "b2", "python"));
+		assertEquals(5, scheduler.getQueuedCount());
+
+		blocker.countDown();
+		first.getCompletion().get(5, TimeUnit.SECONDS);
+		for (ExecutionJob job : jobs) {
+			job.getCompletion().get(5, TimeUnit.SECONDS);
+		}
+		assertEquals(List.of("block", "a1", "b1", "a3", "b2", "a2"), ran);
+	}
+
+	@Test
+	void capsJobsWaitingPerRoomAndPerUser() throws Exception {
+		ExecutionSchedulerService scheduler = scheduler(3, 2);
+		scheduler.submit("a", "u1", "block", "python");
+		scheduler.submit("a", "u1", "1", "python");
+		scheduler.submit("a", "u1", "2", "python");
+		assertThrows(ExecutionQueueFullException.class, () -> scheduler.submit("a", "u1", "3", "python"));
+		// The same user in another room counts against the same cap
+		assertThrows(ExecutionQueueFullException.class, () -> scheduler.submit("b", "u1", "3", "python"));
+
+		scheduler.submit("a", "u2", "3", "python");
+		assertThrows(ExecutionQueueFullException.class, () -> scheduler.submit("a", "u3", "4", "python"));
+		ExecutionJob other = scheduler.submit("b", "u3", "4", "python");
+
+		blocker.countDown();
+		other.getCompletion().get(5, TimeUnit.SECONDS);
+		// Caps count waiting jobs only, so the room and user can queue again once they drain
+		scheduler.submit("a", "u1", "5", "python").getCompletion().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void jobsWithoutAUserAreOnlyCappedPerRoom() throws Exception {
+		ExecutionSchedulerService scheduler = scheduler(3, 1);
+		scheduler.submit("a", null, "block", "python");
+		scheduler.submit("a", null, "1", "python");
+		scheduler.submit("b", null, "2", "python");
+		scheduler.submit("b", "", "3", "python");
+		assertEquals(3, scheduler.getQueuedCount());
+		// Users with a name still have their own cap
+		scheduler.submit("b", "u1", "4", "python");
+		assertThrows(ExecutionQueueFullException.class, () -> scheduler.submit("c", "u1", "5", "python"));
+
+		blocker.countDown();
+		ExecutionJob last = scheduler.submit("a", null, "6", "python");
+		assertNull(last.getUserId());
+		last.getCompletion().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void completesTheJobEvenWhenExecutionThrowsAnError() throws Exception {
+		when(executionService.executeCode(anyString(), anyString(), anyString(), any()))
+			.thenThrow(new StackOverflowError());
+		ExecutionSchedulerService scheduler = new ExecutionSchedulerService(executionService, event -> { },
+			new SimpleMeterRegistry(), 1, 100, 20, 5);
+
+		ExecutionResult result = scheduler.submit("a", "u1", "code", "python").getCompletion().get(5, TimeUnit.SECONDS);
+		assertFalse(result.isSuccess());
+		assertEquals(0, scheduler.getRunningCount());
+	}
+}
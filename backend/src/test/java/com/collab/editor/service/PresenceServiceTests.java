@@ -0,0 +1,134 @@
+package com.collab.editor.service;
+
+import com.collab.editor.cluster.ClusterMessage;
+import com.collab.editor.cluster.ClusterNode;
+import com.collab.editor.cluster.LoopbackClusterBus;
+import com.collab.editor.model.Room;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+class PresenceServiceTests {
+
+	private final LoopbackClusterBus bus = new LoopbackClusterBus();
+	private final MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+	private final ClusterNode nodeA = new ClusterNode("a", List.of("a", "b"), bus);
+	private final ClusterNode nodeB = new ClusterNode("b", List.of("a", "b"), bus);
+	private final PresenceService presenceA = presence(nodeA);
+	private final PresenceService presenceB = presence(nodeB);
+
+	@AfterEach
+	void tearDown() {
+		nodeA.stop();
+		nodeB.stop();
+	}
+
+	private PresenceService presence(ClusterNode node) {
+		PresenceService presence = new PresenceService(mongoTemplate, node);
+		node.setListener(message -> {
+			if (message.getType() == ClusterMessage.Type.PRESENCE
+				|| message.getType() == ClusterMessage.Type.PRESENCE_REPLY) {
+				presence.onPresence(message);
+			}
+		});
+		return presence;
+	}
+
+	@Test
+	void mergesTheUsersOfEveryNode() throws IOException {
+		nodeA.start();
+		nodeB.start();
+		nodeA.joinRoom("r");
+		assertTrue(presenceA.join("r", "alice"));
+
+		// B only learns about alice from A's reply to its own announcement
+		nodeB.joinRoom("r");
+		assertTrue(presenceB.join("r", "bob"));
+		assertEquals(Set.of("alice", "bob"), presenceA.getUsers("r"));
+		assertEquals(Set.of("alice", "bob"), presenceB.getUsers("r"));
+	}
+
+	@Test
+	void userLeavesWithTheirLastSessionOnAnyNode() throws IOException {
+		nodeA.start();
+		nodeB.start();
+		nodeA.joinRoom("r");
+		nodeB.joinRoom("r");
+		assertTrue(presenceA.join("r", "alice"));
+		assertFalse(presenceB.join("r", "alice"));
+
+		assertFalse(presenceA.leave("r", "alice"));
+		assertEquals(Set.of("alice"), presenceA.getUsers("r"));
+		assertTrue(presenceB.leave("r", "alice"));
+		assertEquals(Set.of(), presenceA.getUsers("r"));
+		assertEquals(Set.of(), presenceB.getUsers("r"));
+	}
+
+	@Test
+	void savesOnlyThisNodesUsers() {
+		presenceA.join("r", "alice");
+		presenceA.flush();
+
+		ArgumentCaptor<Update> update = ArgumentCaptor.forClass(Update.class);
+		verify(mongoTemplate).upsert(any(Query.class), update.capture(), eq(Room.class));
+		Document set = (Document) update.getValue().getUpdateObject().get("$set");
+		assertEquals(Set.of("alice"), set.get("activeUsers.a"));
+		assertFalse(set.containsKey("activeUserIds"));
+	}
+
+	@Test
+	void forgetsTheUsersOfANodeThatLeft() throws IOException {
+		nodeA.start();
+		nodeB.start();
+		nodeA.joinRoom("r");
+		nodeB.joinRoom("r");
+		presenceA.join("r", "alice");
+		presenceB.join("r", "alice");
+		presenceB.join("r", "bob");
+
+		assertEquals(Map.of("r", Set.of("bob")), presenceA.forgetNode("b"));
+		assertEquals(Set.of("alice"), presenceA.getUsers("r"));
+	}
+
+	@Test
+	void aRestartedNodesAnnouncementsSupersedeItsEarlierOnes() throws IOException {
+		nodeA.start();
+		nodeB.start();
+		nodeA.joinRoom("r");
+		nodeB.joinRoom("r");
+		presenceB.join("r", "bob");
+		for (int i = 0; i < 10; i++) {
+			presenceB.join("r", "user-" + i);
+		}
+
+		// The new process counts its versions from its own, later boot time
+		ClusterNode restarted = new ClusterNode("b", List.of("a", "b"), bus) {
+			@Override
+			public long getEpoch() {
+				return nodeB.getEpoch() + 1;
+			}
+		};
+		nodeB.stop();
+		PresenceService presenceRestarted = presence(restarted);
+		restarted.start();
+		restarted.joinRoom("r");
+		presenceRestarted.join("r", "carol");
+		assertEquals(Set.of("carol"), presenceA.getUsers("r"));
+		restarted.stop();
+	}
+}
@@ -0,0 +1,129 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.crdt.CRDTId;
+import com.collab.editor.websocket.MessageHandler.*;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryFrameCodecTests {
+
+	@Test
+	void clientFramesRoundTrip() {
+		for (CRDTOperationDTO operation : List.of(
+				operation("INSERT", "x"),
+				operation("INSERT_TEXT", "héllo\nwörld"),
+				operation("DELETE", null),
+				operation("DELETE_RANGE", null))) {
+			CodeChangeMessage change = new CodeChangeMessage();
+			change.setType("CODE_CHANGE");
+			change.setFileId("main");
+			change.setOperation(operation);
+
+			assertEquals(change, BinaryFrameCodec.decode(ByteBuffer.wrap(BinaryFrameCodec.encode(change))));
+		}
+
+		CodeChangeMessage cursor = new CodeChangeMessage();
+		cursor.setType("CURSOR_MOVE");
+		cursor.setFileId("main");
+		cursor.setUserId("alice");
+		cursor.setLine(42);
+		assertEquals(cursor, BinaryFrameCodec.decode(ByteBuffer.wrap(BinaryFrameCodec.encode(cursor))));
+	}
+
+	@Test
+	void serverFramesStartWithTheirFrameType() {
+		byte[] operation = BinaryFrameCodec.encode(new OperationMessage("room", "main", "alice", operation("INSERT", "x")));
+		byte[] batch = BinaryFrameCodec.encode(new OperationBatchMessage("room", "main",
+			List.of(operation("INSERT", "x"), operation("DELETE", null))));
+
+		assertEquals(BinaryFrameCodec.OPERATION, operation[0]);
+		assertEquals(BinaryFrameCodec.OPS_BATCH, batch[0]);
+		assertNull(BinaryFrameCodec.encode(new UserJoinedMessage("alice")));
+	}
+
+	@Test
+	void encodeRefusesWhatItCannotRepresent() {
+		assertThrows(IllegalArgumentException.class,
+			() -> BinaryFrameCodec.encode(new OperationMessage("room", null, "alice", operation("INSERT", "x"))));
+		assertThrows(IllegalArgumentException.class,
+			() -> BinaryFrameCodec.encode(new OperationMessage("room", "main", "alice", operation("MOVE", null))));
+	}
+
+	@Test
+	void malformedFramesAreRejected() {
+		CodeChangeMessage change = new CodeChangeMessage();
+		change.setType("CODE_CHANGE");
+		change.setFileId("main");
+		change.setOperation(operation("INSERT_TEXT", "hello"));
+		byte[] valid = BinaryFrameCodec.encode(change);
+
+		for (int length = 0; length < valid.length; length++) {
+			assertRejected(Arrays.copyOf(valid, length));
+		}
+		assertRejected(new byte[] {99});
+		// Operation type out of range
+		assertRejected(frame(BinaryFrameCodec.CODE_CHANGE, varint(4), "main".getBytes(), new byte[] {9, 0}));
+		// String lengths past the end of the frame, up to ones that would not fit an array
+		assertRejected(frame(BinaryFrameCodec.CODE_CHANGE, varint(1L << 40)));
+		assertRejected(frame(BinaryFrameCodec.CODE_CHANGE, varint(Integer.MAX_VALUE)));
+		assertRejected(frame(BinaryFrameCodec.CURSOR_MOVE, varint(-1)));
+		// A varint that never ends
+		byte[] endless = new byte[16];
+		Arrays.fill(endless, (byte) 0x80);
+		assertRejected(frame(BinaryFrameCodec.CURSOR_MOVE, endless));
+	}
+
+	private static void assertRejected(byte[] frame) {
+		RuntimeException e = assertThrows(RuntimeException.class, () -> BinaryFrameCodec.decode(ByteBuffer.wrap(frame)));
+		assertTrue(e.getMessage().startsWith("Failed to parse binary message"), e.getMessage());
+	}
+
+	private static CRDTOperationDTO operation(String type, String character) {
+		CRDTOperationDTO op = new CRDTOperationDTO();
+		op.setOperationId("alice:7");
+		op.setId(new CRDTId("alice", 7));
+		op.setUserId("alice");
+		op.setType(type);
+		op.setCharacter(character);
+		op.setTimestamp(1_700_000_000_000L);
+		if (type.startsWith("DELETE")) {
+			op.setTargetId(new CRDTId("bob", 3));
+			op.setPosition(-1);
+		} else {
+			op.setOriginId(new CRDTId("bob", 3));
+			op.setPosition(12);
+		}
+		if (type.equals("DELETE_RANGE")) {
+			op.setEndId(new CRDTId("bob", 9));
+			op.setLength(7);
+			op.setVectorClock(Map.of("alice", 6L, "bob", 9L));
+		}
+		return op;
+	}
+
+	private static byte[] frame(byte type, byte[]... parts) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(type);
+		for (byte[] part : parts) {
+			out.writeBytes(part);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] varint(long value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		while ((value & ~0x7FL) != 0) {
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,98 @@
+package com.collab.editor.websocket;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DocumentMailboxesTests {
+
+	@Test
+	void keepsSubmissionOrderPerDocumentAndCapsBatches() throws InterruptedException {
+		int documents = 8;
+		int perDocument = 5000;
+		Map<String, List<Integer>> received = new ConcurrentHashMap<>();
+		AtomicInteger largestBatch = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(documents * perDocument);
+		try (DocumentMailboxes<Integer> mailboxes = new DocumentMailboxes<>("test", 64, 0, (documentId, batch) -> {
+			largestBatch.accumulateAndGet(batch.size(), Math::max);
+			// One writer per document at a time, so the list needs no lock
+			received.computeIfAbsent(documentId, k -> new ArrayList<>()).addAll(batch);
+			batch.forEach(message -> done.countDown());
+		}, new SimpleMeterRegistry())) {
+			for (int i = 0; i < perDocument; i++) {
+				for (int d = 0; d < documents; d++) {
+					mailboxes.submit("doc-" + d, i);
+				}
+			}
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(documents, received.size());
+		for (List<Integer> messages : received.values()) {
+			assertEquals(perDocument, messages.size());
+			for (int i = 0; i < perDocument; i++) {
+				assertEquals(i, messages.get(i));
+			}
+		}
+		assertTrue(largestBatch.get() <= 64);
+	}
+
+	@Test
+	void burstWithinTheWindowIsHandledAsOneBatch() throws InterruptedException {
+		List<List<String>> batches = new ArrayList<>();
+		CountDownLatch done = new CountDownLatch(1);
+		try (DocumentMailboxes<String> mailboxes = new DocumentMailboxes<>("test", 64, 200, (documentId, batch) -> {
+			synchronized (batches) {
+				batches.add(batch);
+			}
+			done.countDown();
+		}, new SimpleMeterRegistry())) {
+			for (String key : List.of("a", "b", "c", "d")) {
+				mailboxes.submit("doc", key);
+			}
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+		}
+
+		assertEquals(List.of(List.of("a", "b", "c", "d")), batches);
+	}
+
+	@Test
+	void drainedMailboxesAreDropped() throws InterruptedException {
+		SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+		AtomicInteger handled = new AtomicInteger();
+		try (DocumentMailboxes<Integer> mailboxes = new DocumentMailboxes<>("test", 64, 0,
+				(documentId, batch) -> handled.addAndGet(batch.size()), meterRegistry)) {
+			for (int i = 0; i < 100; i++) {
+				mailboxes.submit("doc-" + i, i);
+			}
+			awaitDrained(meterRegistry, handled, 100);
+
+			// A document that comes back gets a new mailbox
+			mailboxes.submit("doc-1", 100);
+			awaitDrained(meterRegistry, handled, 101);
+		}
+	}
+
+	private static void awaitDrained(SimpleMeterRegistry meterRegistry, AtomicInteger handled, int expected)
+			throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((handled.get() < expected || documents(meterRegistry) > 0) && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		assertEquals(expected, handled.get());
+		assertEquals(0, documents(meterRegistry));
+	}
+
+	private static double documents(SimpleMeterRegistry meterRegistry) {
+		return meterRegistry.get("editor.mailbox.documents").gauge().value();
+	}
+}
@@ -0,0 +1,131 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.websocket.MessageHandler.*;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import tools.jackson.databind.JsonNode;
+import tools.jackson.databind.ObjectMapper;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageHandlerTests {
+
+	private final MessageHandler messageHandler = new MessageHandler(new SimpleMeterRegistry());
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	void bindsTypeFirstFramesAfterTheType() {
+		ClientMessage parsed = messageHandler.parseClientMessage("""
+			{"type":"CODE_CHANGE","roomId":"r","fileId":"main",
+			 "operation":{"type":"INSERT","character":"x","position":3},"vectorClock":{"alice":2}}""");
+		CodeChangeMessage message = parsed.message();
+		assertEquals("CODE_CHANGE", message.getType());
+		assertEquals("r", message.getRoomId());
+		assertEquals("main", message.getFileId());
+		assertEquals("x", message.getOperation().getCharacter());
+		assertEquals(3, message.getOperation().getPosition());
+		assertEquals(Map.of("alice", 2L), message.getVectorClock());
+		assertNull(parsed.relayText());
+
+		parsed = messageHandler.parseClientMessage("{\"type\":\"SYNC_REQUEST\"}");
+		assertEquals("SYNC_REQUEST", parsed.message().getType());
+		assertNull(parsed.message().getFileId());
+	}
+
+	@Test
+	void bindsTheWholeFrameWhenTheTypeIsNotFirst() {
+		for (String payload : List.of(
+				"{\"fileId\":\"main\",\"type\":\"CODE_CHANGE\",\"content\":\"print(1)\"}",
+				"{\"fileId\":\"main\",\"content\":\"print(1)\",\"type\":\"CODE_CHANGE\"}")) {
+			ClientMessage parsed = messageHandler.parseClientMessage(payload);
+			assertEquals("CODE_CHANGE", parsed.message().getType());
+			assertEquals("main", parsed.message().getFileId());
+			assertEquals("print(1)", parsed.message().getContent());
+			assertNull(parsed.relayText());
+		}
+
+		// Relay types are only relayed unchanged from the type-first fast path
+		ClientMessage cursor = messageHandler.parseClientMessage("{\"line\":4,\"type\":\"CURSOR_MOVE\"}");
+		assertEquals("CURSOR_MOVE", cursor.message().getType());
+		assertEquals(4, cursor.message().getLine());
+		assertNull(cursor.relayText());
+	}
+
+	@Test
+	void relaysCursorMovesAndNewFilesUnchanged() {
+		String cursor = "{\"type\":\"CURSOR_MOVE\",\"fileId\":\"main\",\"line\":4,\"column\":7,\"selection\":{\"a\":[1,2]}}";
+		ClientMessage parsed = messageHandler.parseClientMessage(cursor);
+		assertEquals(cursor, parsed.relayText());
+		assertEquals("main", parsed.message().getFileId());
+		assertEquals(4, parsed.message().getLine());
+		assertEquals(7, parsed.message().getColumn());
+
+		String file = "{\"type\":\"FILE_CREATE\",\"file\":{\"id\":\"f\",\"name\":\"a.py\",\"language\":\"python\"},\"userId\":\"x\"}";
+		parsed = messageHandler.parseClientMessage(file);
+		assertEquals(file, parsed.relayText());
+		assertEquals("a.py", parsed.message().getFile().getName());
+		assertEquals("python", parsed.message().getFile().getLanguage());
+	}
+
+	@Test
+	void relaysCursorMovesWithoutTheUserTheyName() {
+		ClientMessage parsed = messageHandler.parseClientMessage(
+			"{\"type\":\"CURSOR_MOVE\",\"userId\":\"mallory\",\"fileId\":\"main\",\"line\":4,\"selection\":[1,2]}");
+		assertEquals("{\"type\":\"CURSOR_MOVE\",\"fileId\":\"main\",\"line\":4,\"selection\":[1,2]}",
+			parsed.relayText());
+		assertEquals("main", parsed.message().getFileId());
+		assertEquals(4, parsed.message().getLine());
+		// The server sets the user from the session, not from the frame
+		assertNull(parsed.message().getUserId());
+
+		assertEquals("{\"type\":\"CURSOR_MOVE\",\"line\":4 }", messageHandler.parseClientMessage(
+			"{\"type\":\"CURSOR_MOVE\",\"line\":4, \"userId\" : {\"name\":\"mallory\"} }").relayText());
+		assertEquals("{\"type\":\"CURSOR_MOVE\"}", messageHandler.parseClientMessage(
+			"{\"type\":\"CURSOR_MOVE\",\"userId\":\"a\",\"userId\":\"b\"}").relayText());
+	}
+
+	@Test
+	void acceptsNumericFileIds() {
+		ClientMessage cursor = messageHandler.parseClientMessage("{\"type\":\"CURSOR_MOVE\",\"fileId\":1,\"line\":4}");
+		assertEquals("1", cursor.message().getFileId());
+		ClientMessage change = messageHandler.parseClientMessage(
+			"{\"type\":\"CODE_CHANGE\",\"fileId\":2,\"content\":\"x\"}");
+		assertEquals("2", change.message().getFileId());
+	}
+
+	@Test
+	void rejectsMalformedFrames() {
+		for (String payload : List.of(
+				"",
+				"[]",
+				"\"CODE_CHANGE\"",
+				"{\"type\":\"CODE_CHANGE\",",
+				"{\"type\":\"CURSOR_MOVE\",\"line\":}",
+				"{\"type\":\"CURSOR_MOVE\",\"line\":4",
+				"{\"type\":\"CURSOR_MOVE\"}{\"type\":\"CURSOR_MOVE\"}",
+				"{\"type\":\"FILE_CREATE\"} trailing",
+				"{\"type\":\"SYNC_REQUEST\",\"fileId\":\"main\"} trailing",
+				"{\"type\":\"CODE_CHANGE\",\"vectorClock\":\"none\"}")) {
+			assertThrows(RuntimeException.class, () -> messageHandler.parseClientMessage(payload), payload);
+		}
+	}
+
+	@Test
+	void addsTheUserIdAsTheFirstFieldAndEscapesIt() {
+		String relayText = "{\"type\":\"CURSOR_MOVE\",\"line\":4}";
+		assertEquals("{\"userId\":\"alice\",\"type\":\"CURSOR_MOVE\",\"line\":4}",
+			messageHandler.withUserId(relayText, "alice"));
+
+		String userId = "a\"b\\c\n\u0001</script>é";
+		JsonNode frame = objectMapper.readTree(messageHandler.withUserId(relayText, userId));
+		assertEquals(userId, frame.get("userId").asString());
+		assertEquals("CURSOR_MOVE", frame.get("type").asString());
+		assertEquals(4, frame.get("line").asInt());
+
+		// Whitespace before the opening brace is kept
+		assertEquals(" {\"userId\":\"bob\", \"line\":4}", messageHandler.withUserId(" { \"line\":4}", "bob"));
+	}
+}
@@ -0,0 +1,122 @@
+package com.collab.editor.websocket;
+
+import com.collab.editor.websocket.SessionOutbox.Delivery;
+import com.collab.editor.websocket.SessionOutbox.Frame;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class SessionOutboxTests {
+
+	private final List<String> sent = new CopyOnWriteArrayList<>();
+	private final CountDownLatch firstSendStarted = new CountDownLatch(1);
+	private final CountDownLatch releaseSends = new CountDownLatch(1);
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+	private WebSocketSession session;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		session = mock(WebSocketSession.class);
+		when(session.getId()).thenReturn("session-1");
+		when(session.isOpen()).thenReturn(true);
+		// The first send blocks until released, so everything offered meanwhile stays queued
+		doAnswer(invocation -> {
+			WebSocketMessage<?> message = invocation.getArgument(0);
+			sent.add((String) message.getPayload());
+			firstSendStarted.countDown();
+			assertTrue(releaseSends.await(5, TimeUnit.SECONDS));
+			return null;
+		}).when(session).sendMessage(any());
+	}
+
+	// Lets a writer still stuck in its first send finish
+	@AfterEach
+	void tearDown() {
+		releaseSends.countDown();
+	}
+
+	@Test
+	void fullQueueShedsCursorMovesBeforeReliableFrames() throws Exception {
+		SessionOutbox outbox = blockedOutbox(4);
+		outbox.offer(frame("cursor-1", Delivery.DROPPABLE, null));
+		outbox.offer(frame("cursor-2", Delivery.DROPPABLE, null));
+		outbox.offer(frame("op-1", Delivery.RELIABLE, null));
+		outbox.offer(frame("op-2", Delivery.RELIABLE, null));
+		outbox.offer(frame("op-3", Delivery.RELIABLE, null));
+		outbox.offer(frame("cursor-3", Delivery.DROPPABLE, null));
+
+		assertEquals(List.of("first", "op-1", "op-2", "op-3", "cursor-3"), drain(outbox, 5));
+		assertEquals(2, meterRegistry.counter("editor.ws.outbound.shed", "reason", "dropped").count());
+		verify(session, never()).close(any());
+	}
+
+	@Test
+	void newerFullContentUpdateReplacesTheQueuedOneInPlace() throws Exception {
+		SessionOutbox outbox = blockedOutbox(8);
+		outbox.offer(frame("main v1", Delivery.COALESCE, "CODE_UPDATE:main"));
+		outbox.offer(frame("op-1", Delivery.RELIABLE, null));
+		outbox.offer(frame("other v1", Delivery.COALESCE, "CODE_UPDATE:other"));
+		outbox.offer(frame("main v2", Delivery.COALESCE, "CODE_UPDATE:main"));
+
+		assertEquals(List.of("first", "main v2", "op-1", "other v1"), drain(outbox, 4));
+		assertEquals(1, meterRegistry.counter("editor.ws.outbound.shed", "reason", "coalesced").count());
+
+		// Once sent, the next update for the file is queued again
+		outbox.offer(frame("main v3", Delivery.COALESCE, "CODE_UPDATE:main"));
+		assertEquals("main v3", drain(outbox, 5).get(4));
+	}
+
+	@Test
+	void reliableFrameThatDoesNotFitDisconnectsTheSession() throws Exception {
+		SessionOutbox outbox = blockedOutbox(2);
+		outbox.offer(frame("op-1", Delivery.RELIABLE, null));
+		outbox.offer(frame("op-2", Delivery.RELIABLE, null));
+
+		// A cursor move that does not fit is dropped; the session stays
+		outbox.offer(frame("cursor-1", Delivery.DROPPABLE, null));
+		assertEquals(2, outbox.getQueueDepth());
+		verify(session, never()).close(any());
+
+		outbox.offer(frame("op-3", Delivery.RELIABLE, null));
+		verify(session, timeout(5000)).close(CloseStatus.SESSION_NOT_RELIABLE);
+		assertEquals(0, outbox.getQueueDepth());
+		outbox.offer(frame("op-4", Delivery.RELIABLE, null));
+		assertEquals(0, outbox.getQueueDepth());
+		assertEquals(1, meterRegistry.counter("editor.ws.outbound.overflows").count());
+	}
+
+	// An outbox whose writer is stuck sending "first"
+	private SessionOutbox blockedOutbox(int capacity) throws InterruptedException {
+		SessionOutbox outbox = new SessionOutbox(session, false, capacity, meterRegistry);
+		outbox.offer(frame("first", Delivery.RELIABLE, null));
+		assertTrue(firstSendStarted.await(5, TimeUnit.SECONDS));
+		return outbox;
+	}
+
+	private List<String> drain(SessionOutbox outbox, int expected) throws InterruptedException {
+		releaseSends.countDown();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while ((sent.size() < expected || outbox.getQueueDepth() > 0) && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		return List.copyOf(sent);
+	}
+
+	private static Frame frame(String text, Delivery delivery, String coalesceKey) {
+		return new Frame(new TextMessage(text), delivery, coalesceKey);
+	}
+}
@@ -122,7 +122,8 @@ const CollaborativeCodeEditor = () => {
         body: JSON.stringify({
           code: code,
           language: language,
-          roomId: roomId
+          roomId: roomId,
+          userId: username
         })
       });
       